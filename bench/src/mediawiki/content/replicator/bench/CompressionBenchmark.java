@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mediawiki.content.replicator.DummyOutputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Потоки сжатия и кодирования дампа: bzip2 и Base64.
+ * Одна операция - весь буфер из size байт викитекста,
+ * так что МБ/с = size / время операции.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark
+{
+	@Param({"4194304"})
+	public int size;
+
+	@Param({"9"})
+	public int blockSize;
+
+	protected byte[] data;
+	protected byte[] compressed;
+	protected byte[] buffer;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		data = SyntheticPages.createText(new Random(1), size).getBytes("UTF-8");
+		buffer = new byte[0x10000];
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream os = new BZip2CompressorOutputStream(baos, blockSize);
+
+		os.write(data);
+		os.close();
+
+		compressed = baos.toByteArray();
+	}
+
+	protected void copy(OutputStream os) throws IOException
+	{
+		for(int off = 0; off < data.length; off += buffer.length)
+		{
+			os.write(data, off, Math.min(buffer.length, data.length - off));
+		}
+
+		os.close();
+	}
+
+	@Benchmark
+	public void bzip2Compress() throws IOException
+	{
+		copy(new BZip2CompressorOutputStream(new DummyOutputStream(), blockSize));
+	}
+
+	@Benchmark
+	public long bzip2Decompress() throws IOException
+	{
+		InputStream is = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed));
+
+		long total = 0;
+		int len;
+
+		while((len = is.read(buffer)) > 0)
+		{
+			total += len;
+		}
+
+		is.close();
+		return total;
+	}
+
+	@Benchmark
+	public void base64Encode() throws IOException
+	{
+		copy(new Base64OutputStream(new DummyOutputStream()));
+	}
+}
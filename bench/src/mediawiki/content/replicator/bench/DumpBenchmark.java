@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mediawiki.content.replicator.DummyOutputStream;
+import mediawiki.content.replicator.WikiPage;
+import mediawiki.content.replicator.WikiRevision;
+import mediawiki.content.replicator.XMLDumpWriter;
+import mediawiki.content.replicator.XMLStringBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Выгрузка ревизий в XML дампа: WikiRevision.dump в XMLStringBuilder,
+ * в память и с записью в поток через flush(), как при экспорте,
+ * а также в XMLDumpWriter, который экранирует текст прямо в буфер потока.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumpBenchmark
+{
+	@Param({"1", "20", "200"})
+	public int revisions;
+
+	@Param({"2000", "50000"})
+	public int textSize;
+
+	protected WikiPage page;
+
+	protected XMLStringBuilder memory;
+	protected XMLStringBuilder stream;
+	protected XMLStringBuilder writer;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		page = new WikiPage(1, 0);
+		SyntheticPages.createPage(page, revisions, textSize, 1);
+
+		memory = new XMLStringBuilder();
+		stream = new XMLStringBuilder(new DummyOutputStream(), "UTF-8");
+		writer = new XMLDumpWriter(new DummyOutputStream(), "UTF-8");
+	}
+
+	@Benchmark
+	public XMLStringBuilder dumpToMemory()
+	{
+		memory.reset();
+
+		for(WikiRevision rv : page.listRevisions())
+		{
+			rv.dump(memory);
+		}
+
+		return memory;
+	}
+
+	@Benchmark
+	public XMLStringBuilder dumpToStream() throws IOException
+	{
+		for(WikiRevision rv : page.listRevisions())
+		{
+			rv.dump(stream);
+			stream.flush();
+		}
+
+		return stream;
+	}
+
+	@Benchmark
+	public XMLStringBuilder dumpToWriter() throws IOException
+	{
+		for(WikiRevision rv : page.listRevisions())
+		{
+			rv.dump(writer);
+			writer.flush();
+		}
+
+		return writer;
+	}
+}
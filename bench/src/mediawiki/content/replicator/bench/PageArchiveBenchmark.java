@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mediawiki.content.replicator.WikiPage;
+import mediawiki.content.replicator.WikiRevision;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Архивы ревизий страницы: WikiPage.deflate, inflate и inflateRevision.
+ * Архивы пишутся во временный каталог на диске, как и в настоящем проекте.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageArchiveBenchmark
+{
+	@Param({"1", "20", "200"})
+	public int revisions;
+
+	@Param({"2000", "50000"})
+	public int textSize;
+
+	protected File dir;
+
+	protected WikiPage source;
+	protected String[] texts;
+	protected File deflated;
+
+	protected WikiPage page;
+	protected File archive;
+	protected WikiRevision newest;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		dir = File.createTempFile("mwcr-bench", "");
+		dir.delete();
+		dir.mkdirs();
+
+		source = new WikiPage(1, 0);
+		texts = SyntheticPages.createPage(source, revisions, textSize, 1);
+		deflated = new File(dir, "deflate.zip");
+
+		page = new WikiPage(2, 0);
+		SyntheticPages.createPage(page, revisions, textSize, 1);
+
+		archive = new File(dir, "inflate.zip");
+		page.deflate(archive);
+
+		for(WikiRevision rv : page.listRevisions())
+		{
+			newest = rv;
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		page.closeArchive();
+
+		deflated.delete();
+		archive.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public long deflate() throws IOException
+	{
+		SyntheticPages.restoreTexts(source, texts);
+		source.deflate(deflated);
+
+		return deflated.length();
+	}
+
+	@Benchmark
+	public String inflateAll() throws IOException
+	{
+		page.inflate(archive, WikiPage.INFLATE_ALL);
+		return newest.getText();
+	}
+
+	@Benchmark
+	public String inflateLatest() throws IOException
+	{
+		page.inflate(archive, WikiPage.INFLATE_LATEST);
+		return newest.getText();
+	}
+
+	@Benchmark
+	public String inflateRevision() throws IOException
+	{
+		page.openArchive(archive);
+		page.inflateRevision(newest);
+
+		return newest.getText();
+	}
+}
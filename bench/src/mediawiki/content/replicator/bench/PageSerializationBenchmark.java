@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mediawiki.content.replicator.Project;
+import mediawiki.content.replicator.WikiPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Запись и чтение записи страницы в файле данных проекта (WikiPage.write / read).
+ * Текст ревизий в запись не входит, поэтому важно только число ревизий.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageSerializationBenchmark
+{
+	@Param({"1", "20", "500"})
+	public int revisions;
+
+	protected WikiPage page;
+	protected byte[] record;
+
+	protected ByteArrayOutputStream buffer;
+	protected NullProgressMonitor progress;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		page = new WikiPage(1, 0);
+		SyntheticPages.createPage(page, revisions, 16, 1);
+
+		buffer = new ByteArrayOutputStream();
+		page.write(new DataOutputStream(buffer));
+
+		record = buffer.toByteArray();
+		progress = new NullProgressMonitor();
+	}
+
+	@Benchmark
+	public int write() throws IOException
+	{
+		buffer.reset();
+		page.write(new DataOutputStream(buffer));
+
+		return buffer.size();
+	}
+
+	@Benchmark
+	public WikiPage read() throws IOException
+	{
+		return new WikiPage(new DataInputStream(new ByteArrayInputStream(record)), Project.VERSION, progress);
+	}
+}
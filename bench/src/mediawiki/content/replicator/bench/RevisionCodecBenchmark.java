@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mediawiki.content.replicator.Project;
+import mediawiki.content.replicator.Util;
+import mediawiki.content.replicator.WikiPage;
+import mediawiki.content.replicator.WikiRevision;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * История страницы в ZIP архиве (каждая ревизия сжата отдельно, как пишет
+ * WikiPage.deflate) и в RevisionStore (дельты от родителя с ключевыми
+ * кадрами): время inflateRevision и inflate, а размер обоих вариантов
+ * на диске печатается в конце каждого прогона.
+ *
+ * Ревизии для inflateRevision читаются от новых к старым, так что
+ * родитель ни разу не оказывается в кэше RevisionStore и каждый раз
+ * раскручивается вся цепочка дельт до ключевого кадра.
+ *
+ * С -p project=папка_проекта вместо синтетической истории берется
+ * настоящая: самая длинная история страницы из этого проекта
+ * (revisions и textSize тогда ни на что не влияют).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevisionCodecBenchmark
+{
+	@Param({"20", "200"})
+	public int revisions;
+
+	@Param({"2000", "50000"})
+	public int textSize;
+
+	@Param({""})
+	public String project;
+
+	protected File dir;
+	protected Project storeProject;
+
+	protected WikiPage zipPage;
+	protected File archive;
+	protected WikiRevision[] zipRevisions;
+
+	protected WikiPage packedPage;
+	protected WikiRevision[] packedRevisions;
+
+	protected int next;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		dir = File.createTempFile("mwcr-bench", "");
+		dir.delete();
+		dir.mkdirs();
+
+		storeProject = new Project(new File(dir, "store").getPath());
+
+		zipPage = new WikiPage(1, 0);
+		packedPage = new WikiPage(1, 0);
+		packedPage.setProject(storeProject);
+
+		if(project.isEmpty())
+		{
+			SyntheticPages.createPage(zipPage, revisions, textSize, 1);
+			SyntheticPages.createPage(packedPage, revisions, textSize, 1);
+		}
+		else
+		{
+			WikiPage source = findLongestHistory(project);
+
+			copyHistory(source, zipPage);
+			copyHistory(source, packedPage);
+		}
+
+		archive = new File(dir, "page.zip");
+
+		zipPage.deflate(archive);
+		packedPage.pack();
+
+		storeProject.getRevisionStore().sync();
+
+		zipRevisions = zipPage.listRevisions().toArray(new WikiRevision[0]);
+		packedRevisions = packedPage.listRevisions().toArray(new WikiRevision[0]);
+
+		zipPage.openArchive(archive);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		System.out.println();
+		System.out.println("ZIP: " + Util.formatNumber(archive.length()) + " bytes, RevisionStore: " + Util.formatNumber(storeProject.getRevisionStore().getDataSize()) + " bytes");
+
+		zipPage.closeArchive();
+		storeProject.getRevisionStore().close();
+
+		Util.deleteFile(dir);
+	}
+
+	/**
+	 * Страница с наибольшим числом сохраненных ревизий.
+	 */
+	protected static WikiPage findLongestHistory(String path) throws IOException
+	{
+		NullProgressMonitor progress = new NullProgressMonitor();
+
+		Project source = new Project(path);
+
+		if(!source.read(progress))
+		{
+			throw new IOException("no project found in " + path);
+		}
+
+		WikiPage longest = null;
+		int longestCount = 0;
+
+		for(WikiPage page : source.listPages())
+		{
+			page.load(progress);
+
+			int count = page.hasZipName() ? page.countDownloadedRevisions() : 0;
+
+			if(count > longestCount)
+			{
+				longest = page;
+				longestCount = count;
+			}
+
+			page.unload(false);
+		}
+
+		if(longest == null)
+		{
+			throw new IOException("no downloaded pages in " + path);
+		}
+
+		longest.load(progress);
+		longest.inflate(new File(source.getWikiDir(), longest.getZipName().replace('/', File.separatorChar)), WikiPage.INFLATE_ALL);
+
+		return longest;
+	}
+
+	protected static void copyHistory(WikiPage source, WikiPage target)
+	{
+		for(WikiRevision rv : source.listRevisions())
+		{
+			if(rv.hasText())
+			{
+				WikiRevision copy = new WikiRevision(rv.getID(), rv.getParentID(), rv.getTimestamp());
+
+				copy.setUser(rv.getUser());
+				copy.setComment(rv.getComment());
+				copy.setText(rv.getText());
+
+				target.addRevision(copy);
+			}
+		}
+
+		target.setTitle(source.getTitle());
+	}
+
+	protected int nextRevision()
+	{
+		if(next == 0)
+		{
+			next = zipRevisions.length;
+		}
+
+		return --next;
+	}
+
+	@Benchmark
+	public String zipInflateRevision() throws IOException
+	{
+		WikiRevision rv = zipRevisions[nextRevision()];
+
+		zipPage.inflateRevision(rv);
+		return rv.getText();
+	}
+
+	@Benchmark
+	public String storeInflateRevision() throws IOException
+	{
+		WikiRevision rv = packedRevisions[nextRevision()];
+
+		packedPage.inflateRevision(rv);
+		return rv.getText();
+	}
+
+	@Benchmark
+	public String zipInflateAll() throws IOException
+	{
+		zipPage.inflate(archive, WikiPage.INFLATE_ALL);
+
+		return zipRevisions[zipRevisions.length - 1].getText();
+	}
+
+	@Benchmark
+	public String storeInflateAll() throws IOException
+	{
+		packedPage.inflate(archive, WikiPage.INFLATE_ALL);
+
+		return packedRevisions[packedRevisions.length - 1].getText();
+	}
+}
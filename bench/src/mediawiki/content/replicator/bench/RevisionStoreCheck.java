@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import mediawiki.content.replicator.RevisionStore;
+import mediawiki.content.replicator.Util;
+
+/**
+ * Проверка RevisionStore на записи и чтении после повторного открытия,
+ * когда текст уже не лежит в кэше последней ревизии.
+ *
+ * JMH не нужен: ant -f bench/build.xml check
+ */
+public class RevisionStoreCheck
+{
+	public static void main(String[] args) throws IOException
+	{
+		File dir = File.createTempFile("mwcr-check", "");
+		dir.delete();
+
+		try
+		{
+			checkEmptyText(new File(dir, "empty"));
+			checkDeletionChain(new File(dir, "deletions"));
+		}
+		finally
+		{
+			Util.deleteFile(dir);
+		}
+
+		System.out.println("RevisionStore: OK");
+	}
+
+	/**
+	 * Пустой текст сжимается в поток zlib, из которого ничего не распаковывается.
+	 */
+	protected static void checkEmptyText(File dir) throws IOException
+	{
+		byte[] empty = new byte[0];
+
+		RevisionStore store = new RevisionStore(dir);
+
+		store.put(1, empty);
+		store.put(2, 1, bytes("text"));
+		store.close();
+
+		store = new RevisionStore(dir);
+
+		expect(store, 1, empty);
+		expect(store, 2, bytes("text"));
+
+		/*
+		 * Повторный пустой текст ищется среди уже записанных,
+		 * и для сравнения их тоже приходится распаковать.
+		 */
+
+		store.put(3, 2, empty);
+		store.close();
+
+		store = new RevisionStore(dir);
+
+		expect(store, 3, empty);
+		expect(store, 1, empty);
+
+		store.close();
+	}
+
+	/**
+	 * Правки, которые только удаляют текст, дают дельты с пустой серединой.
+	 * Цепочка длиннее KEYFRAME_INTERVAL, так что в ней есть и ключевой кадр,
+	 * а читается она от новых ревизий к старым, мимо кэша.
+	 */
+	protected static void checkDeletionChain(File dir) throws IOException
+	{
+		int count = RevisionStore.KEYFRAME_INTERVAL * 2 + 5;
+		byte[][] texts = new byte[count][];
+
+		String text = SyntheticPages.createText(new Random(1), 64 * 1024);
+
+		RevisionStore store = new RevisionStore(dir);
+
+		for(int i = 0; i < count; i++)
+		{
+			if(i > 0)
+			{
+				int from = text.length() / 2;
+				text = text.substring(0, from) + text.substring(from + 200);
+			}
+
+			texts[i] = bytes(text);
+			store.put(i + 1, i, texts[i]);
+		}
+
+		store.close();
+
+		store = new RevisionStore(dir);
+
+		for(int i = count - 1; i >= 0; i--)
+		{
+			expect(store, i + 1, texts[i]);
+		}
+
+		if(store.getDataSize() >= texts[0].length * 2)
+		{
+			throw new IllegalStateException("deletions are not stored as deltas: " + store.getDataSize() + " bytes");
+		}
+
+		store.close();
+	}
+
+	protected static void expect(RevisionStore store, int id, byte[] text) throws IOException
+	{
+		byte[] data = store.read(id);
+
+		if(!Arrays.equals(data, text))
+		{
+			throw new IllegalStateException("revision " + id + " reads back as " + (data != null ? data.length + " bytes" : "null") + " instead of " + text.length + " bytes");
+		}
+	}
+
+	protected static byte[] bytes(String text)
+	{
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator.bench;
+
+import java.util.Random;
+import mediawiki.content.replicator.WikiPage;
+import mediawiki.content.replicator.WikiRevision;
+
+/**
+ * Синтетические страницы для бенчмарков.
+ *
+ * Текст похож на викитекст: слова вперемешку латиницей и кириллицей,
+ * ссылки, шаблоны и заголовки разделов. Соседние ревизии отличаются
+ * небольшой правкой, как в настоящей истории страницы.
+ */
+public class SyntheticPages
+{
+	protected static final String[] WORDS =
+	{
+		"the", "of", "and", "wiki", "page", "revision", "content", "history",
+		"статья", "история", "правка", "страница", "текст", "ссылка", "шаблон",
+		"Lorem", "ipsum", "dolor", "sit", "amet", "данные", "проект", "архив"
+	};
+
+	public static String createText(Random random, int size)
+	{
+		StringBuilder text = new StringBuilder(size + 64);
+
+		while(text.length() < size)
+		{
+			int kind = random.nextInt(40);
+
+			if(kind == 0)
+			{
+				text.append("\r\n== ").append(WORDS[random.nextInt(WORDS.length)]).append(" ==\r\n");
+			}
+			else if(kind < 4)
+			{
+				text.append("[[").append(WORDS[random.nextInt(WORDS.length)]).append('|').append(WORDS[random.nextInt(WORDS.length)]).append("]] ");
+			}
+			else if(kind == 4)
+			{
+				text.append("{{").append(WORDS[random.nextInt(WORDS.length)]).append("|a=1 & b<2}} ");
+			}
+			else
+			{
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+		}
+
+		text.setLength(size);
+		return text.toString();
+	}
+
+	/**
+	 * Создать страницу с историей из revisions ревизий.
+	 *
+	 * @return тексты ревизий по возрастанию id; в самих ревизиях текст тоже выставлен
+	 */
+	public static String[] createPage(WikiPage page, int revisions, int textSize, long seed)
+	{
+		Random random = new Random(seed);
+		String[] texts = new String[revisions];
+
+		String text = createText(random, textSize);
+
+		for(int i = 0; i < revisions; i++)
+		{
+			if(i > 0)
+			{
+				int pos = random.nextInt(text.length());
+				String edit = createText(random, 1 + random.nextInt(Math.max(1, textSize / 20)));
+
+				text = text.substring(0, pos) + edit + text.substring(Math.min(text.length(), pos + edit.length()));
+			}
+
+			WikiRevision rv = new WikiRevision(1000 + i, i > 0 ? 999 + i : 0, String.format("2015-01-%02dT%02d:%02d:00Z", 1 + i % 28, i % 24, i % 60));
+
+			rv.setUser("User " + (i % 13));
+			rv.setComment("edit " + i);
+			rv.setText(text);
+
+			page.addRevision(rv);
+			texts[i] = text;
+		}
+
+		page.setTitle("Synthetic page " + revisions + "x" + textSize);
+
+		return texts;
+	}
+
+	public static void restoreTexts(WikiPage page, String[] texts)
+	{
+		int i = 0;
+
+		for(WikiRevision rv : page.listRevisions())
+		{
+			rv.setText(texts[i++]);
+		}
+	}
+}
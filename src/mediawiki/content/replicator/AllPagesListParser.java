@@ -16,10 +16,16 @@
 
 package mediawiki.content.replicator;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -27,18 +33,41 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+/**
+ * Список страниц проекта.
+ *
+ * Вместе с prop=info (generator=allpages) сразу приходят последняя ревизия
+ * и размер каждой страницы, и тогда это заодно и подготовка обновления:
+ * отдельный проход UpdateListParser по всем страницам уже не нужен.
+ */
 public class AllPagesListParser extends DefaultHandler
 {
 	public static void getAllPagesList(Project project, ProgressMonitor progress) throws ParserConfigurationException, SAXException, IOException
+	{
+		getAllPagesList(project, progress, false);
+	}
+	
+	/**
+	 * @param withInfo true - запрашивать и prop=info, помечая устаревшие
+	 * страницы как требующие загрузки
+	 */
+	public static void getAllPagesList(Project project, ProgressMonitor progress, boolean withInfo) throws ParserConfigurationException, SAXException, IOException
 	{
 		progress.initProgress(true, false, true);
 		progress.setOperationLimit(2);
 		progress.setProjectLimit(project.listNamespaces().size());
 		
 		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser parser = factory.newSAXParser();
+		final SAXParser parser = factory.newSAXParser();
 		
-		AllPagesListParser handler = new AllPagesListParser(project);
+		final AllPagesListParser handler = new AllPagesListParser(project, progress);
+		
+		/*
+		 * Как и в UpdateListParser, время последней правки
+		 * запоминается до начала прохода.
+		 */
+		
+		String updateTimestamp = withInfo ? RecentChangesParser.getChangeTimestamp(project, progress, false) : null;
 		
 		for(WikiNamespace ns : project.listNamespaces())
 		{
@@ -46,7 +75,16 @@ public class AllPagesListParser extends DefaultHandler
 
 			do
 			{
-				String request = project.getBaseURL() + "api.php?format=xml&action=query&list=allpages&aplimit=max&apnamespace=" + ns.getID();
+				String request;
+				
+				if(withInfo)
+				{
+					request = project.getBaseURL() + "api.php?format=xml&action=query&generator=allpages&gaplimit=max&gapnamespace=" + ns.getID() + "&prop=info";
+				}
+				else
+				{
+					request = project.getBaseURL() + "api.php?format=xml&action=query&list=allpages&aplimit=max&apnamespace=" + ns.getID();
+				}
 
 				if(handler.queryContinuePair != null)
 				{
@@ -56,41 +94,31 @@ public class AllPagesListParser extends DefaultHandler
 					handler.queryContinuePair = null;
 				}
 
-				for(int tries = 0; tries < 5 && !progress.isCancelled(); tries++)
+				boolean success = RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
 				{
-					try
+					public void handleResponse(InputStream is) throws Exception
 					{
-						InputStream is = Util.openConnection(request);
-						progress.setOperationProgress(1);
-
 						parser.parse(is, handler);
-						progress.setOperationProgress(2);
-
-						is.close();
-						progress.setOperationProgress(0);
 
 						if(handler.parsed)
 						{
 							handler.parsed = false;
-							break;
 						}
 						else
 						{
 							throw new IOException("empty result");
 						}
 					}
-					catch(Throwable ex)
-					{
-						progress.showErrMsg(ex);
-
-						try
-						{
-							Thread.sleep(5000);
-						}
-						catch(InterruptedException ie)
-						{
-						}
-					}
+				});
+				
+				if(withInfo && !success && !progress.isCancelled())
+				{
+					/*
+					 * Иначе страницы с оставшейся части списка
+					 * так и останутся считаться актуальными.
+					 */
+					
+					throw new IOException("request failed: " + request);
 				}
 			}
 			while(handler.queryContinuePair != null && !progress.isCancelled());
@@ -102,6 +130,45 @@ public class AllPagesListParser extends DefaultHandler
 				break;
 			}
 		}
+		
+		if(withInfo)
+		{
+			progress.println("... " + handler.parsedPages + " pages, " + handler.updatedPages + " need update, " + handler.newPages + " new pages");
+			
+			if(!progress.isCancelled())
+			{
+				project.setUpdateTimestamp(updateTimestamp);
+			}
+		}
+	}
+	
+	/**
+	 * Записать список страниц в pages.ini в папке проекта.
+	 */
+	public static void writePageList(Project project) throws IOException
+	{
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(project.getBaseDir() + "pages.ini"), Util.BUFFER_SIZE);
+		PrintWriter ps = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+
+		for(WikiNamespace ns : project.listNamespaces())
+		{
+			ps.println(IniEntry.SECTION_START + ns.getID() + ":" + ns.getName() + IniEntry.SECTION_END);
+			ps.println();
+
+			ArrayList<WikiPage> pages = project.listPages(ns.getID());
+
+			if(pages != null)
+			{
+				for(WikiPage p : pages)
+				{
+					ps.println(p.getTitle() + "\t" + IniEntry.VALUE_DELIMITER + "\t" + p.getID());
+				}
+
+				ps.println();
+			}
+		}
+
+		ps.close();
 	}
 	
 	protected static final int MODE_NULL = 0;
@@ -109,16 +176,22 @@ public class AllPagesListParser extends DefaultHandler
 	protected static final int MODE_QUERY_CONTINUE = 2;
 	
 	protected Project project;
+	protected ProgressMonitor progress;
 	protected int mode = MODE_NULL;
 	
+	public int parsedPages = 0;
+	public int updatedPages = 0;
+	public int newPages = 0;
+	
 	public String queryContinueFrom = null;
 	public String queryContinuePair = null;
 	
 	public boolean parsed = false;
 	
-	public AllPagesListParser(Project project)
+	public AllPagesListParser(Project project, ProgressMonitor progress)
 	{
 		this.project = project;
+		this.progress = progress;
 	}
 	
 	public void startElement(String uri, String localName, String qName, Attributes attributes)
@@ -151,6 +224,60 @@ public class AllPagesListParser extends DefaultHandler
 			
 			parsed = true;
 		}
+		else if(mode == MODE_QUERY && qName.equals("page"))
+		{
+			int id = Integer.parseInt(attributes.getValue("pageid"));
+			int ns = Integer.parseInt(attributes.getValue("ns"));
+			
+			int lastrevid = Integer.parseInt(Util.noEmpty(attributes.getValue("lastrevid"), "0"));
+			int length = Integer.parseInt(Util.noEmpty(attributes.getValue("length"), "-1"));
+			
+			WikiPage page = project.getPage(id);
+			
+			if(page == null)
+			{
+				page = new WikiPage(id, ns);
+				project.addPage(page);
+				
+				newPages++;
+			}
+			
+			page.setTitle(attributes.getValue("title"));
+			page.setNS(ns);
+			
+			project.invalidateIndex();
+			
+			try
+			{
+				boolean loaded = page.load(progress);
+				boolean updated = page.getContentLength() != length;
+				
+				page.setContentLength(length);
+				
+				if(page.requiresDownload() || lastrevid > page.getNewestRevisionID())
+				{
+					if(page.isActual() && !page.requiresDownload())
+					{
+						updatedPages++;
+					}
+					
+					updated |= page.isActual();
+					page.setActual(false);
+				}
+				
+				if(loaded)
+				{
+					page.unload(updated);
+				}
+			}
+			catch(IOException ex)
+			{
+				progress.showErrMsg(ex);
+			}
+			
+			parsedPages++;
+			parsed = true;
+		}
 		else if(mode == MODE_QUERY_CONTINUE && qName.equals("allpages"))
 		{
 			try
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Буферизованное чтение DataInput из FileChannel с произвольным позиционированием.
+ *
+ * RandomAccessFile делает системный вызов на каждый readInt() / readUTF(),
+ * а здесь данные читаются окнами по BUFFER_SIZE байт и разбираются из ByteBuffer.
+ * Чтение идет по абсолютной позиции, так что указатель файла
+ * у того, кто в этот же канал пишет, не сдвигается.
+ */
+public class ChannelDataInput implements DataInput
+{
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	protected FileChannel channel;
+	protected ByteBuffer buffer;
+
+	/** позиция в файле, с которой начинается буфер */
+	protected long bufferStart = 0;
+
+	public ChannelDataInput(FileChannel channel)
+	{
+		this.channel = channel;
+
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.limit(0);
+	}
+
+	public long getFilePointer()
+	{
+		return bufferStart + buffer.position();
+	}
+
+	public void seek(long pos) throws IOException
+	{
+		if(pos >= bufferStart && pos <= bufferStart + buffer.limit())
+		{
+			buffer.position((int)(pos - bufferStart));
+		}
+		else
+		{
+			bufferStart = pos;
+			buffer.limit(0);
+		}
+	}
+
+	/**
+	 * Убедиться, что в буфере есть хотя бы count байт (count <= BUFFER_SIZE).
+	 */
+	protected void require(int count) throws IOException
+	{
+		if(buffer.remaining() >= count)
+		{
+			return;
+		}
+
+		bufferStart += buffer.position();
+		buffer.compact();
+
+		while(buffer.position() < count)
+		{
+			int len = channel.read(buffer, bufferStart + buffer.position());
+
+			if(len < 0)
+			{
+				buffer.flip();
+				throw new EOFException();
+			}
+		}
+
+		buffer.flip();
+	}
+
+	public void readFully(byte[] b) throws IOException
+	{
+		readFully(b, 0, b.length);
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(!buffer.hasRemaining())
+			{
+				require(1);
+			}
+
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+
+			off += count;
+			len -= count;
+		}
+	}
+
+	public int skipBytes(int n) throws IOException
+	{
+		seek(getFilePointer() + n);
+		return n;
+	}
+
+	public boolean readBoolean() throws IOException
+	{
+		require(1);
+		return buffer.get() != 0;
+	}
+
+	public byte readByte() throws IOException
+	{
+		require(1);
+		return buffer.get();
+	}
+
+	public int readUnsignedByte() throws IOException
+	{
+		require(1);
+		return buffer.get() & 0xFF;
+	}
+
+	public short readShort() throws IOException
+	{
+		require(2);
+		return buffer.getShort();
+	}
+
+	public int readUnsignedShort() throws IOException
+	{
+		require(2);
+		return buffer.getShort() & 0xFFFF;
+	}
+
+	public char readChar() throws IOException
+	{
+		require(2);
+		return buffer.getChar();
+	}
+
+	public int readInt() throws IOException
+	{
+		require(4);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws IOException
+	{
+		require(8);
+		return buffer.getLong();
+	}
+
+	public float readFloat() throws IOException
+	{
+		require(4);
+		return buffer.getFloat();
+	}
+
+	public double readDouble() throws IOException
+	{
+		require(8);
+		return buffer.getDouble();
+	}
+
+	public String readLine() throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+
+		while(true)
+		{
+			int c;
+
+			try
+			{
+				c = readUnsignedByte();
+			}
+			catch(EOFException ex)
+			{
+				if(line.length() == 0)
+				{
+					return null;
+				}
+
+				break;
+			}
+
+			if(c == '\n')
+			{
+				break;
+			}
+			else if(c != '\r')
+			{
+				line.append((char)c);
+			}
+		}
+
+		return line.toString();
+	}
+
+	public String readUTF() throws IOException
+	{
+		return DataInputStream.readUTF(this);
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запуск операций над проектом без GUI, например по расписанию на сервере:
+ *
+ * java -cp MediaWiki_Content_Replicator.jar mediawiki.content.replicator.CommandLine
+ *      [параметры] папка_проекта команда [команда ...]
+ *
+ * Команды выполняются по порядку, как если бы нажимались кнопки ControlPanel;
+ * после первой неудачной остальные не выполняются. Ctrl+C отменяет текущую
+ * команду штатно, то есть с сохранением проекта.
+ *
+ * Код возврата: 0 - все выполнено, 1 - ошибка, 2 - ошибка в параметрах
+ * (после Ctrl+C его выставляет сама JVM).
+ */
+public class CommandLine
+{
+	/**
+	 * Сколько ждать штатного завершения команды после Ctrl+C.
+	 */
+	public static final long SHUTDOWN_TIMEOUT = 60 * 1000;
+
+	protected static final String[] COMMANDS =
+	{
+		"list-namespaces",
+		"list-pages",
+		"prepare-update",
+		"get-pages",
+		"download-images",
+		"export-dump",
+		"import-via-script",
+		"pack-archives"
+	};
+
+	protected static final String[] FORMATS = {"plain", "compressed", "dry-run"};
+	protected static final String[] UPLOAD_MODES = {"link", "embed", "ignore"};
+
+	protected Project project;
+	protected ConsoleProgressMonitor progress;
+
+	protected String dumpFile = null;
+	protected int dumpFormat = DumpExporter.FORMAT_COMPRESSED;
+	protected int uploadMode = WikiPage.UPLOAD_LINK;
+	protected boolean allRevisions = false;
+
+	protected volatile ScriptImporter script;
+
+	/**
+	 * Открывается, когда команды выполнены и лог закрыт.
+	 */
+	protected final CountDownLatch finished = new CountDownLatch(1);
+
+	public static void main(String[] args)
+	{
+		System.exit(run(args));
+	}
+
+	protected static int run(String[] args)
+	{
+		CommandLine cmd = new CommandLine();
+
+		String logFile = null;
+		File projectDir = null;
+		ArrayList<String> commands = new ArrayList();
+
+		try
+		{
+			for(int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+
+				if(arg.equals("--log"))
+				{
+					logFile = getValue(args, ++i);
+				}
+				else if(arg.equals("--threads"))
+				{
+					Util.downloadThreads = Integer.parseInt(getValue(args, ++i));
+				}
+				else if(arg.equals("--connections-per-host"))
+				{
+					Util.connectionsPerHost = Integer.parseInt(getValue(args, ++i));
+				}
+				else if(arg.equals("--requests-per-second"))
+				{
+					Util.requestsPerSecond = Double.parseDouble(getValue(args, ++i));
+				}
+				else if(arg.equals("--no-batch"))
+				{
+					Util.batchRequests = false;
+				}
+				else if(arg.equals("--time-limit"))
+				{
+					Util.downloadTimeLimit = (long)(Double.parseDouble(getValue(args, ++i)) * 60 * 1000);
+				}
+				else if(arg.equals("--full-update"))
+				{
+					Util.incrementalUpdates = false;
+				}
+				else if(arg.equals("--no-page-info"))
+				{
+					Util.listPageInfo = false;
+				}
+				else if(arg.equals("--export-threads"))
+				{
+					Util.exportThreads = Integer.parseInt(getValue(args, ++i));
+				}
+				else if(arg.equals("--export-window"))
+				{
+					Util.exportWindow = Integer.parseInt(getValue(args, ++i));
+				}
+				else if(arg.equals("--dump"))
+				{
+					cmd.dumpFile = getValue(args, ++i);
+				}
+				else if(arg.equals("--format"))
+				{
+					cmd.dumpFormat = indexOf(FORMATS, getValue(args, ++i), "format");
+				}
+				else if(arg.equals("--uploads"))
+				{
+					cmd.uploadMode = indexOf(UPLOAD_MODES, getValue(args, ++i), "upload mode");
+				}
+				else if(arg.equals("--all-revisions"))
+				{
+					cmd.allRevisions = true;
+				}
+				else if(arg.startsWith("--"))
+				{
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+				else if(projectDir == null)
+				{
+					projectDir = new File(arg);
+				}
+				else
+				{
+					indexOf(COMMANDS, arg, "command");
+					commands.add(arg);
+				}
+			}
+
+			if(projectDir == null || commands.isEmpty())
+			{
+				throw new IllegalArgumentException("project directory and at least one command are required");
+			}
+			else if(commands.contains("export-dump") && cmd.dumpFile == null && cmd.dumpFormat != DumpExporter.FORMAT_DRY_RUN)
+			{
+				throw new IllegalArgumentException("export-dump requires --dump");
+			}
+		}
+		catch(RuntimeException ex)
+		{
+			System.err.println(ex.getMessage() != null ? ex.getMessage() : ex.toString());
+			System.err.println();
+			printUsage();
+
+			return 2;
+		}
+
+		PrintWriter log;
+
+		try
+		{
+			File file;
+
+			if(logFile != null)
+			{
+				file = new File(logFile);
+			}
+			else
+			{
+				File dir = new File(projectDir, "logs");
+				dir.mkdirs();
+
+				file = new File(dir, Long.toString(System.currentTimeMillis()) + ".log");
+			}
+
+			log = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+		}
+		catch(Throwable ex)
+		{
+			ex.printStackTrace();
+			log = null;
+		}
+
+		cmd.progress = new ConsoleProgressMonitor(System.out, log);
+
+		try
+		{
+			return cmd.execute(projectDir, commands);
+		}
+		finally
+		{
+			cmd.progress.close();
+			cmd.finished.countDown();
+		}
+	}
+
+	/**
+	 * Открыть проект и выполнить команды, перехватив Ctrl+C.
+	 */
+	protected int execute(File projectDir, ArrayList<String> commands)
+	{
+		Thread shutdownHook = new Thread()
+		{
+			public void run()
+			{
+				if(finished.getCount() > 0)
+				{
+					progress.println("Cancelling...");
+					progress.setCancelled(true);
+
+					ScriptImporter importer = script;
+
+					if(importer != null)
+					{
+						importer.destroy();
+					}
+
+					try
+					{
+						finished.await(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+					}
+					catch(InterruptedException ex)
+					{
+					}
+				}
+			}
+		};
+
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		try
+		{
+			progress.println("Reading project...");
+
+			project = new Project(projectDir.getAbsolutePath());
+
+			if(!project.read(progress))
+			{
+				progress.println("No project found in " + projectDir.getAbsolutePath());
+				return 1;
+			}
+
+			for(String command : commands)
+			{
+				long startTime = System.currentTimeMillis();
+
+				progress.println();
+				progress.println("=== " + command);
+
+				executeCommand(command);
+
+				progress.println("Finished in " + Util.formatNumber(System.currentTimeMillis() - startTime) + " ms");
+
+				if(progress.isCancelled())
+				{
+					return 1;
+				}
+			}
+
+			return 0;
+		}
+		catch(Throwable ex)
+		{
+			progress.showErrMsg(ex);
+			return 1;
+		}
+	}
+
+	protected void executeCommand(String command) throws Exception
+	{
+		if(command.equals("list-namespaces"))
+		{
+			progress.println("Requesting namespace list...");
+
+			NamespaceParser.getNamespaces(project);
+			project.write(progress);
+
+			progress.println("Printing list...");
+			NamespaceParser.writeNamespaceList(project);
+		}
+		else if(command.equals("list-pages"))
+		{
+			progress.println("Requesting page list...");
+
+			AllPagesListParser.getAllPagesList(project, progress, Util.listPageInfo);
+			project.write(progress);
+
+			progress.println("Printing list...");
+			AllPagesListParser.writePageList(project);
+		}
+		else if(command.equals("prepare-update"))
+		{
+			progress.println("Preparing update...");
+
+			UpdateListParser.prepareUpdate(project, progress, Util.pagesPerRequest, Util.projectSaveInterval, Util.incrementalUpdates);
+			project.write(progress);
+		}
+		else if(command.equals("get-pages"))
+		{
+			progress.println("Downloading pages...");
+
+			PageContentParser.getPagesContents(project, progress, Util.pagesPerRequest, Util.projectSaveInterval, false, Util.downloadThreads, Util.batchRequests, Util.downloadTimeLimit);
+			project.write(progress);
+		}
+		else if(command.equals("download-images"))
+		{
+			progress.println("Downloading images...");
+
+			ImageDownloader.downloadImages(project, progress, Util.projectSaveInterval, Util.downloadThreads, Util.connectionsPerHost);
+		}
+		else if(command.equals("export-dump"))
+		{
+			progress.println("Exporting all pages...");
+
+			String filename = DumpExporter.getDumpFileName(dumpFile != null ? dumpFile : "dump", dumpFormat);
+
+			if(dumpFormat != DumpExporter.FORMAT_DRY_RUN)
+			{
+				progress.println("Writing to " + filename);
+			}
+
+			DumpExporter.exportAllPages(project, progress, DumpExporter.createOutputStream(filename, dumpFormat), allRevisions, uploadMode, dumpFormat == DumpExporter.FORMAT_DRY_RUN, Util.exportThreads, Util.exportWindow);
+		}
+		else if(command.equals("import-via-script"))
+		{
+			progress.println("Running import script...");
+
+			script = new ScriptImporter(project, progress);
+
+			try
+			{
+				script.importAllPages(allRevisions, uploadMode, dumpFormat == DumpExporter.FORMAT_DRY_RUN);
+			}
+			finally
+			{
+				script = null;
+			}
+		}
+		else if(command.equals("pack-archives"))
+		{
+			progress.println("Moving page archives into the revision store...");
+
+			RevisionStore.packArchives(project, progress, Util.projectSaveInterval);
+		}
+	}
+
+	protected static String getValue(String[] args, int index)
+	{
+		if(index >= args.length)
+		{
+			throw new IllegalArgumentException("missing value for " + args[index - 1]);
+		}
+
+		return args[index];
+	}
+
+	protected static int indexOf(String[] values, String value, String what)
+	{
+		for(int i = 0; i < values.length; i++)
+		{
+			if(values[i].equals(value))
+			{
+				return i;
+			}
+		}
+
+		throw new IllegalArgumentException("unknown " + what + " " + value);
+	}
+
+	protected static void printUsage()
+	{
+		System.err.println("Usage: CommandLine [options] <project dir> <command> [<command> ...]");
+		System.err.println();
+		System.err.println("Commands (executed in order):");
+		System.err.println("  list-namespaces       request namespaces, write namespaces.ini");
+		System.err.println("  list-pages            request page list, write pages.ini,");
+		System.err.println("                        mark pages changed since the last download");
+		System.err.println("  prepare-update        mark pages changed since the last update");
+		System.err.println("  get-pages             download page contents");
+		System.err.println("  download-images       download uploaded files");
+		System.err.println("  export-dump           export all pages into an XML dump");
+		System.err.println("  import-via-script     import pages through maintenance/importDump.php");
+		System.err.println("  pack-archives         move page ZIP archives into the revision store");
+		System.err.println("                        (packs/), new pages are stored there too");
+		System.err.println();
+		System.err.println("Options:");
+		System.err.println("  --log <file>                    log file (default: <project dir>/logs/<time>.log)");
+		System.err.println("  --threads <n>                   download threads (default: " + Util.downloadThreads + ")");
+		System.err.println("  --connections-per-host <n>      image downloads per host (default: " + Util.connectionsPerHost + ")");
+		System.err.println("  --requests-per-second <r>       API request rate limit, 0 - no limit (default: " + Util.requestsPerSecond + ")");
+		System.err.println("  --no-batch                      request contents one page at a time");
+		System.err.println("  --time-limit <minutes>          get-pages stops starting new pages when they would not");
+		System.err.println("                                  finish in time, the rest is left for the next run");
+		System.err.println("  --full-update                   prepare-update checks every page instead of recent changes");
+		System.err.println("  --no-page-info                  list-pages only lists pages, without checking for changes");
+		System.err.println("  --dump <file>                   dump file for export-dump");
+		System.err.println("  --format plain|compressed|dry-run  dump format (default: compressed)");
+		System.err.println("  --uploads link|embed|ignore     uploads in dump (default: link)");
+		System.err.println("  --export-threads <n>            export-dump threads (default: " + Util.exportThreads + ")");
+		System.err.println("  --export-window <n>             pages export-dump keeps in memory at once (default: " + Util.exportWindow + ")");
+		System.err.println("  --all-revisions                 export / import all revisions not yet uploaded");
+		System.err.println("                                  and mark pages as uploaded");
+	}
+}
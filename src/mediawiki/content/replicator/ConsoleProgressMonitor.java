@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Монитор для работы без GUI: лог идет в консоль и, если задан, в файл.
+ *
+ * Вместо полос прогресса раз в STATUS_INTERVAL выводится строка
+ * с текущими значениями счетчиков, и только в консоль.
+ */
+public class ConsoleProgressMonitor implements ProgressMonitor
+{
+	public static final long STATUS_INTERVAL = 10 * 1000;
+
+	protected PrintStream out;
+	protected PrintWriter log;
+
+	protected ProgressData counters;
+	protected long statusTime;
+
+	protected volatile boolean cancelled;
+
+	/**
+	 * @param log файл лога или null
+	 */
+	public ConsoleProgressMonitor(PrintStream out, PrintWriter log)
+	{
+		this.out = out;
+		this.log = log;
+
+		counters = new ProgressData();
+		statusTime = System.currentTimeMillis() + STATUS_INTERVAL;
+	}
+
+	public void close()
+	{
+		out.flush();
+
+		if(log != null)
+		{
+			log.close();
+		}
+	}
+
+	public synchronized void resetLog()
+	{
+	}
+
+	public synchronized void print(String text)
+	{
+		out.print(text);
+
+		if(log != null)
+		{
+			log.print(text);
+		}
+	}
+
+	public void println(String text)
+	{
+		print(text + "\n");
+	}
+
+	public void println()
+	{
+		print("\n");
+	}
+
+	public synchronized void showErrMsg(Throwable ex)
+	{
+		ex.printStackTrace();
+
+		if(log != null)
+		{
+			ex.printStackTrace(log);
+		}
+
+		println(ex.toString());
+	}
+
+	/**
+	 * Вывести состояние счетчиков, если давно не выводили.
+	 */
+	protected void updateProgress()
+	{
+		long currentTime = System.currentTimeMillis();
+
+		if(currentTime < statusTime)
+		{
+			return;
+		}
+
+		statusTime = currentTime + STATUS_INTERVAL;
+
+		StringBuilder status = new StringBuilder("--");
+
+		if(counters.projectMonitored)
+		{
+			status.append(" project ").append(Util.formatNumber(counters.projectProgress)).append(" / ").append(Util.formatNumber(counters.projectLimit));
+		}
+
+		if(counters.pageMonitored)
+		{
+			status.append(" page ").append(Util.formatNumber(counters.pageProgress)).append(" / ").append(Util.formatNumber(counters.pageLimit));
+		}
+
+		if(counters.operationMonitored)
+		{
+			status.append(" operation ").append(Util.formatNumber(counters.operationProgress)).append(" / ").append(Util.formatNumber(counters.operationLimit));
+		}
+
+		long total = Runtime.getRuntime().totalMemory();
+		long used = total - Runtime.getRuntime().freeMemory();
+
+		status.append(", heap ").append(Util.formatNumber(used)).append(" / ").append(Util.formatNumber(total));
+
+		out.println(status);
+	}
+
+	public synchronized void initProgress(boolean operation, boolean page, boolean project)
+	{
+		counters = new ProgressData();
+
+		counters.operationMonitored = operation;
+		counters.pageMonitored = page;
+		counters.projectMonitored = project;
+	}
+
+	public synchronized boolean isOperationMonitored()
+	{
+		return counters.operationMonitored;
+	}
+
+	public synchronized boolean isPageMonitored()
+	{
+		return counters.pageMonitored;
+	}
+
+	public synchronized boolean isProjectMonitored()
+	{
+		return counters.projectMonitored;
+	}
+
+	public synchronized int getOperationLimit()
+	{
+		return counters.operationLimit;
+	}
+
+	public synchronized int getOperationProgress()
+	{
+		return counters.operationProgress;
+	}
+
+	public synchronized void setOperationLimit(int limit)
+	{
+		counters.operationLimit = limit;
+		updateProgress();
+	}
+
+	public synchronized void setOperationProgress(int value)
+	{
+		counters.operationProgress = value;
+		updateProgress();
+	}
+
+	public synchronized void progressOperation(int amount)
+	{
+		counters.operationProgress += amount;
+		updateProgress();
+	}
+
+	public synchronized int getPageLimit()
+	{
+		return counters.pageLimit;
+	}
+
+	public synchronized int getPageProgress()
+	{
+		return counters.pageProgress;
+	}
+
+	public synchronized void setPageLimit(int limit)
+	{
+		counters.pageLimit = limit;
+		updateProgress();
+	}
+
+	public synchronized void setPageProgress(int value)
+	{
+		counters.pageProgress = value;
+		updateProgress();
+	}
+
+	public synchronized void progressPage(int amount)
+	{
+		counters.pageProgress += amount;
+		updateProgress();
+	}
+
+	public synchronized int getProjectLimit()
+	{
+		return counters.projectLimit;
+	}
+
+	public synchronized int getProjectProgress()
+	{
+		return counters.projectProgress;
+	}
+
+	public synchronized void setProjectLimit(int limit)
+	{
+		counters.projectLimit = limit;
+		updateProgress();
+	}
+
+	public synchronized void setProjectProgress(int value)
+	{
+		counters.projectProgress = value;
+		updateProgress();
+	}
+
+	public synchronized void progressProject(int amount)
+	{
+		counters.projectProgress += amount;
+		updateProgress();
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public void setCancelled(boolean cancelled)
+	{
+		this.cancelled = cancelled;
+	}
+}
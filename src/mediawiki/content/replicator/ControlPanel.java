@@ -16,12 +16,9 @@
 
 package mediawiki.content.replicator;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,18 +30,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.DefaultListModel;
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
 import javax.swing.border.TitledBorder;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 
 public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 {
@@ -53,8 +42,8 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 	protected StringBuilder logBuffer;
 	protected PrintWriter stdlog;
 	
-	protected boolean cancelled;
-	protected Process script;
+	protected volatile boolean cancelled;
+	protected volatile ScriptImporter script;
 	
 	protected File projectDir;
 	protected Project project;
@@ -1441,26 +1430,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 					project.write(ControlPanel.this);
 
 					println("Printing list...");
-
-					OutputStream os = new BufferedOutputStream(new FileOutputStream(project.getBaseDir() + "namespaces.ini"), Util.BUFFER_SIZE);
-					PrintWriter ps = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
-
-					for(WikiNamespace ns : project.listAllNamespaces())
-					{
-						ps.println(ns.getID() + "\t=\t" + ns.getName());
-					}
-
-					ps.println();
-
-					for(WikiNamespace ns : project.listAllNamespaces())
-					{
-						if(ns.getID() >= 100)
-						{
-							ps.println("$wgExtraNamespaces[" + ns.getID() + "] = \"" + ns.getName().replace(' ', '_') + "\";");
-						}
-					}
-
-					ps.close();
+					NamespaceParser.writeNamespaceList(project);
 				}
 				catch(Throwable ex)
 				{
@@ -1579,34 +1549,12 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					AllPagesListParser.getAllPagesList(project, ControlPanel.this);
+					AllPagesListParser.getAllPagesList(project, ControlPanel.this, Util.listPageInfo);
 
 					project.write(ControlPanel.this);
 
 					println("Printing list...");
-
-					OutputStream os = new BufferedOutputStream(new FileOutputStream(project.getBaseDir() + "pages.ini"), Util.BUFFER_SIZE);
-					PrintWriter ps = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
-
-					for(WikiNamespace ns : project.listNamespaces())
-					{
-						ps.println(IniEntry.SECTION_START + ns.getID() + ":" + ns.getName() + IniEntry.SECTION_END);
-						ps.println();
-
-						ArrayList<WikiPage> pages = project.listPages(ns.getID());
-
-						if(pages != null)
-						{
-							for(WikiPage p : pages)
-							{
-								ps.println(p.getTitle() + "\t" + IniEntry.VALUE_DELIMITER + "\t" + p.getID());
-							}
-
-							ps.println();
-						}
-					}
-
-					ps.close();
+					AllPagesListParser.writePageList(project);
 				}
 				catch(Throwable ex)
 				{
@@ -1630,7 +1578,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					UpdateListParser.markForUpdates(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval);
+					UpdateListParser.prepareUpdate(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, Util.incrementalUpdates);
 					project.write(ControlPanel.this);
 				}
 				catch(Throwable ex)
@@ -1655,7 +1603,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					PageContentParser.getPagesContents(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, false);
+					PageContentParser.getPagesContents(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, false, Util.downloadThreads, Util.batchRequests, Util.downloadTimeLimit);
 					project.write(ControlPanel.this);
 				}
 				catch(Throwable ex)
@@ -2054,187 +2002,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					initProgress(true, true, true);
-					
-					project.getImageDir().mkdirs();
-					project.getImageArchiveDir().mkdirs();
-
-					long currentTime = System.currentTimeMillis();
-					long projectSaveTime = currentTime + Util.projectSaveInterval;
-
-					for(WikiNamespace ns : project.listNamespaces())
-					{
-						if(isCancelled())
-						{
-							break;
-						}
-						
-						println("Processing namespace " + ns.getID() + " (" + ns.getName() + ")...");
-
-						int totalPages = project.countPages(ns.getID());
-						int currentPage = 0;
-						
-						setProjectProgress(0);
-						setProjectLimit(totalPages);
-
-						ArrayList<WikiPage> pages = project.listPages(ns.getID());
-
-						if(pages == null)
-						{
-							continue;
-						}
-
-						for(WikiPage page : pages)
-						{
-							currentPage++;
-							
-							page.load(ControlPanel.this);
-							boolean updated = false;
-							
-							if(page.getDownloadStatus() != WikiPage.DOWNLOADED)
-							{
-								println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
-								
-								String newestTimestamp = page.getNewestImageTimestamp();
-
-								setPageProgress(0);
-								setPageLimit(page.listImages().size());
-
-								for(WikiImage img : page.listImages())
-								{
-									if(!img.hasURL())
-									{
-										progressPage(1);
-										continue;
-									}
-
-									String filename = img.getFileName();
-									File archiveFile = new File(project.getImageArchiveDir(), filename);
-
-									if(archiveFile.isFile() && !filename.equals(img.getDefaultFileName()))
-									{
-										filename = img.getDefaultFileName();
-										archiveFile.renameTo(archiveFile = new File(project.getImageArchiveDir(), filename));
-									}
-
-									File file = new File(project.getImageDir(), filename);
-
-									if(file.isFile() || archiveFile.isFile())
-									{
-										img.setFileName(filename);
-										updated = true;
-									}
-									else
-									{
-										byte[] data = null;
-
-										for(int tries = 0, maxtries = 5; tries < maxtries && !isCancelled(); tries++)
-										{
-											print("... revision " + img.getTimestamp());
-
-											if(tries > 0)
-											{
-												print(" attempt " + (tries + 1));
-											}
-
-											try
-											{
-												data = Util.downloadFile(img.getURL(), ControlPanel.this);
-
-												println(" - OK");
-												break;
-											}
-											catch(FileNotFoundException ex)
-											{
-												img.setURL(null);
-												
-												println(" - Not Found");
-												break;
-											}
-											catch(Throwable ex)
-											{
-												println(" - Error");
-												showErrMsg(ex);
-
-												if(tries < (maxtries - 1))
-												{
-													Thread.sleep(5000);
-												}
-											}
-										}
-
-										if(data != null)
-										{
-											try
-											{
-												File dir = file.getParentFile();
-												
-												if(!dir.isDirectory())
-												{
-													dir.mkdirs();
-												}
-												
-												FileOutputStream out = new FileOutputStream(file);
-												out.write(data);
-												out.close();
-
-												img.setFileName(filename);
-												updated = true;
-											}
-											catch(Throwable ex)
-											{
-												showErrMsg(ex);
-											}
-										}
-									}
-
-									if(!img.getTimestamp().equals(newestTimestamp) && file.isFile())
-									{
-										print("... moving file to archive");
-
-										filename = img.getDefaultFileName();
-										archiveFile = new File(project.getImageArchiveDir(), filename);
-										img.setFileName(filename);
-
-										if(file.renameTo(archiveFile))
-										{
-											println(" - OK");
-										}
-										else
-										{
-											println(" - failed");
-										}
-									}
-
-									progressPage(1);
-
-									currentTime = System.currentTimeMillis();
-
-									if(isCancelled())
-									{
-										break;
-									}
-								}
-							}
-							
-							page.unload(updated);
-							
-							progressProject(1);
-							
-							if(isCancelled())
-							{
-								break;
-							}
-							else if(currentTime >= projectSaveTime)
-							{
-								System.gc();
-								project.write(ControlPanel.this);
-								projectSaveTime = currentTime + Util.projectSaveInterval;
-							}
-						}
-					}
-
-					project.write(ControlPanel.this);
+					ImageDownloader.downloadImages(project, ControlPanel.this, Util.projectSaveInterval, Util.downloadThreads, Util.connectionsPerHost);
 				}
 				catch(Throwable ex)
 				{
@@ -2250,46 +2018,8 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 
 	protected OutputStream createDumpOutputStream() throws IOException
 	{
-		String filename = tfDumpFile.getText();
-		
-		if(filename == null || filename.isEmpty())
-		{
-			throw new IllegalArgumentException("empty file name");
-		}
-		
-		OutputStream os;
-
-		switch(cbDumpFormat.getSelectedIndex())
-		{
-			case 0:
-				if(!filename.toLowerCase().endsWith(".xml"))
-				{
-					filename += ".xml";
-				}
-				
-				os = new BufferedOutputStream(new FileOutputStream(filename), Util.BUFFER_SIZE);
-				
-				break;
-
-			default:
-				if(filename.toLowerCase().endsWith(".xml"))
-				{
-					filename += ".bz2";
-				}
-				else if(!filename.toLowerCase().endsWith(".xml.bz2"))
-				{
-					filename += ".xml.bz2";
-				}
-				
-				os = new BufferedOutputStream(new FileOutputStream(filename), Util.BUFFER_SIZE);
-				os = new BZip2CompressorOutputStream(os, BZip2CompressorOutputStream.MAX_BLOCKSIZE);
-				
-				break;
-
-			case 2:
-				os = new DummyOutputStream();
-				break;
-		}
+		String filename = DumpExporter.getDumpFileName(tfDumpFile.getText(), cbDumpFormat.getSelectedIndex());
+		OutputStream os = DumpExporter.createOutputStream(filename, cbDumpFormat.getSelectedIndex());
 		
 		tfDumpFile.setText(filename);
 		tfDumpFile.setCaretPosition(filename.length());
@@ -2299,45 +2029,8 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 	
 	protected InputStream createDumpInputStream() throws IOException
 	{
-		String filename = tfDumpFile.getText();
-		
-		if(filename == null || filename.isEmpty())
-		{
-			throw new IllegalArgumentException("empty file name");
-		}
-		
-		InputStream is;
-
-		switch(cbDumpFormat.getSelectedIndex())
-		{
-			case 0:
-				if(!filename.toLowerCase().endsWith(".xml"))
-				{
-					filename += ".xml";
-				}
-				
-				is = new BufferedInputStream(new FileInputStream(filename), Util.BUFFER_SIZE);
-				
-				break;
-
-			default:
-				if(filename.toLowerCase().endsWith(".xml"))
-				{
-					filename += ".bz2";
-				}
-				else if(!filename.toLowerCase().endsWith(".xml.bz2"))
-				{
-					filename += ".xml.bz2";
-				}
-				
-				is = new BufferedInputStream(new FileInputStream(filename), Util.BUFFER_SIZE);
-				is = new BZip2CompressorInputStream(is);
-				
-				break;
-
-			case 2:
-				throw new IllegalArgumentException("nothing to verify in dry run mode");
-		}
+		String filename = DumpExporter.getDumpFileName(tfDumpFile.getText(), cbDumpFormat.getSelectedIndex());
+		InputStream is = DumpExporter.createInputStream(filename, cbDumpFormat.getSelectedIndex());
 		
 		tfDumpFile.setText(filename);
 		tfDumpFile.setCaretPosition(filename.length());
@@ -2383,7 +2076,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 						CounterOutputStream counter = new CounterOutputStream(createDumpOutputStream());
 						OutputStream os = new BufferedOutputStream(counter, Util.BUFFER_SIZE);
 
-						XMLStringBuilder xml = new XMLStringBuilder(os, "UTF-8");
+						XMLStringBuilder xml = new XMLDumpWriter(os, "UTF-8");
 						xml.openTag("mediawiki");
 						
 						page.dump(xml, inflateMode, uploadMode, ControlPanel.this);
@@ -2437,114 +2130,9 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					initProgress(true, true, true);
-					
-					boolean dryrun = cbDumpFormat.getSelectedIndex() == 2;
-					int inflateMode = cxAllRevisions.isSelected() ? WikiPage.INFLATE_NOT_UPLOADED : WikiPage.INFLATE_LATEST;
-					int uploadMode = cbDumpUploads.getSelectedIndex();
+					boolean dryrun = cbDumpFormat.getSelectedIndex() == DumpExporter.FORMAT_DRY_RUN;
 					
-					CounterOutputStream counter = new CounterOutputStream(createDumpOutputStream());
-					OutputStream os = new BufferedOutputStream(counter, Util.BUFFER_SIZE);
-
-					XMLStringBuilder xml = new XMLStringBuilder(os, "UTF-8");
-					xml.openTag("mediawiki");
-
-					int exportedPages = 0;
-					int exportedRevisions = 0;
-					int errorsOccurred = 0;
-
-					int totalPages = project.countPages();
-					int currentPage = 0;
-
-					setProjectProgress(0);
-					setProjectLimit(totalPages);
-					
-					boolean projectUpdated = false;
-					boolean pageUpdated;
-
-					for(WikiNamespace ns : project.listNamespaces())
-					{
-						ArrayList<WikiPage> pages = project.listPages(ns.getID());
-
-						if(isCancelled())
-						{
-							break;
-						}
-						else if(pages == null)
-						{
-							continue;
-						}
-
-						for(WikiPage page : pages)
-						{
-							currentPage++;
-							
-							page.load(ControlPanel.this);
-							pageUpdated = false;
-
-							if(page.hasZipName() && (inflateMode == WikiPage.INFLATE_LATEST || !page.isUploaded()) && page.isContainedIn() < 0)
-							{
-								println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
-								
-								try
-								{
-									exportedRevisions += page.dump(xml, inflateMode, uploadMode, ControlPanel.this);
-									xml.reset();
-
-									if(!isCancelled())
-									{
-										if(inflateMode != WikiPage.INFLATE_LATEST)
-										{
-											page.setUploaded(true);
-											pageUpdated = true;
-										}
-										
-										exportedPages++;
-									}
-								}
-								catch(Throwable ex)
-								{
-									showErrMsg(ex);
-									errorsOccurred++;
-								}
-							}
-							
-							if(pageUpdated)
-							{
-								page.unload(true);
-								projectUpdated = true;
-							}
-							else
-							{
-								page.unload(false);
-							}
-
-							setProjectProgress(currentPage);
-
-							if(isCancelled())
-							{
-								break;
-							}
-						}
-					}
-
-					xml.closeTag();
-					xml.flush();
-
-					xml.close();
-					os.close();
-
-					println();
-					println("Exported " + exportedRevisions + " revisions in " + exportedPages + " pages");
-					println("Total of " + Util.formatNumber(counter.getCount()) + " bytes written, CRC32 is " + Long.toHexString(counter.getChecksum() & 0xFFFFFFFFL).toUpperCase());
-					println("         " + errorsOccurred + " errors occurred in the process");
-					println();
-
-					if(!dryrun && projectUpdated)
-					{
-						System.gc();
-						project.write(ControlPanel.this);
-					}
+					DumpExporter.exportAllPages(project, ControlPanel.this, createDumpOutputStream(), cxAllRevisions.isSelected(), cbDumpUploads.getSelectedIndex(), dryrun, Util.exportThreads, Util.exportWindow);
 				}
 				catch(Throwable ex)
 				{
@@ -2796,7 +2384,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 
     private void cmdCreateUsersActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_cmdCreateUsersActionPerformed
     {//GEN-HEADEREND:event_cmdCreateUsersActionPerformed
-		Runnable classicTask = new Runnable()
+		Runnable task = new Runnable()
 		{
 			public void run()
 			{
@@ -2804,100 +2392,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					initProgress(true, false, true);
-					
-					MultiPartPost mpp = new MultiPartPost();
-
-					int totalUsers = project.countUsers();
-					int currentUser = 0;
-					
-					setProjectLimit(totalUsers);
-					setOperationLimit(3);
-
-					long currentTime = System.currentTimeMillis();
-					long projectSaveTime = currentTime + Util.projectSaveInterval;
-					
-					String token = null;
-
-					for(WikiUser user : project.listUsers())
-					{
-						setOperationProgress(0);
-						currentUser++;
-						
-						if(!user.exists())
-						{
-							print("[" + currentUser + "/" + totalUsers + "] " + user.getName());
-							
-							if(token == null)
-							{
-								mpp.addParam("format", "xml");
-								mpp.addParam("uselang", "en");
-								mpp.addParam("action", "query");
-								mpp.addParam("meta", "tokens");
-								mpp.addParam("type", "createaccount");
-								
-								String response = mpp.post(project.getTargetURL() + "api.php");
-								token = Util.substring(response, "createaccounttoken=\"", "\"");
-							}
-							
-							progressOperation(1);
-
-							mpp.addParam("format", "xml");
-							mpp.addParam("uselang", "en");
-							mpp.addParam("action", "createaccount");
-							mpp.addParam("username", user.getName());
-							mpp.addParam("password", user.getPassword());
-							mpp.addParam("retype", user.getPassword());
-							mpp.addParam("createreturnurl", project.getTargetURL());
-							mpp.addParam("createtoken", token);
-
-							String response = mpp.post(project.getTargetURL() + "api.php");
-							String status = Util.substring(response, "status=\"", "\"");
-							
-							progressOperation(1);
-
-							if(response.contains("already in use") || response.contains("userexists"))
-							{
-								println(" - exists");
-								user.setExists(true);
-							}
-							else if(response.contains("not specified a valid username") || response.contains("invaliduser"))
-							{
-								println(" - invalid");
-							}
-							else if("PASS".equalsIgnoreCase(status))
-							{
-								println(" - OK");
-								user.setExists(true);
-							}
-							else
-							{
-								println(" - failed");
-								throw new IOException(response);
-							}
-							
-							progressOperation(1);
-
-							currentTime = System.currentTimeMillis();
-
-							if(currentTime >= projectSaveTime)
-							{
-								System.gc();
-								project.write(ControlPanel.this);
-								projectSaveTime = currentTime + Util.projectSaveInterval;
-							}
-						}
-						
-						setProjectProgress(currentUser);
-						
-						if(isCancelled())
-						{
-							break;
-						}
-					}
-
-					System.gc();
-					project.write(ControlPanel.this);
+					UserCreator.createUsers(project, ControlPanel.this, Util.projectSaveInterval, Util.downloadThreads);
 				}
 				catch(Throwable ex)
 				{
@@ -2908,150 +2403,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 			}
 		};
 		
-//		Runnable multithreadedTask = () ->
-//		{
-//			prepareTask("Creating users...");
-//
-//			try
-//			{
-//				initProgress(false, false, true);
-//
-//				final ConcurrentLinkedQueue<WikiUser> userQueue = new ConcurrentLinkedQueue<>(project.listUsers());
-//
-//				final int totalUsers = project.countUsers();
-//				final AtomicInteger currentUser = new AtomicInteger(0);
-//
-//				setProjectLimit(totalUsers);
-//
-//				final AtomicLong projectSaveTime = new AtomicLong(System.currentTimeMillis() + Util.projectSaveInterval);
-//				
-//				Runnable projectSaveTask = () ->
-//				{
-//					System.gc();
-//					project.write(this);
-//					projectSaveTime.set(System.currentTimeMillis() + Util.projectSaveInterval);
-//				};
-//				
-//				final int numThreads = 2;//Runtime.getRuntime().availableProcessors();
-//				final CyclicBarrier barrier = new CyclicBarrier(numThreads, projectSaveTask);
-//				
-//				final AtomicBoolean errorOccurred = new AtomicBoolean(false);
-//				
-//				Runnable workerTask = () ->
-//				{
-//					try
-//					{
-//						MultiPartPost mpp = new MultiPartPost();
-//						String token = null;
-//						
-//						Random rnd = new Random();
-//
-//						while(!isCancelled() && !errorOccurred.get())
-//						{
-//							WikiUser user = userQueue.poll();
-//
-//							if(user == null)
-//							{
-//								break;
-//							}
-//
-//							String logEntry = "[" + currentUser.incrementAndGet() + "/" + totalUsers + "] " + user.getName();
-//
-//							if(!user.exists())
-//							{
-//								if(token == null)
-//								{
-//									Thread.sleep(rnd.nextInt(100));
-//									
-//									mpp.addParam("format", "xml");
-//									mpp.addParam("uselang", "en");
-//									mpp.addParam("action", "query");
-//									mpp.addParam("meta", "tokens");
-//									mpp.addParam("type", "createaccount");
-//
-//									String response = mpp.post(project.getTargetURL() + "api.php");
-//									token = Util.substring(response, "createaccounttoken=\"", "\"");
-//								}
-//								
-//								Thread.sleep(rnd.nextInt(100));
-//								
-//								mpp.addParam("format", "xml");
-//								mpp.addParam("uselang", "en");
-//								mpp.addParam("action", "createaccount");
-//								mpp.addParam("username", user.getName());
-//								mpp.addParam("password", user.getPassword());
-//								mpp.addParam("retype", user.getPassword());
-//								mpp.addParam("createreturnurl", project.getTargetURL());
-//								mpp.addParam("createtoken", token);
-//
-//								String response = mpp.post(project.getTargetURL() + "api.php");
-//								String status = Util.substring(response, "status=\"", "\"");
-//
-//								if(response.contains("already in use") || response.contains("userexists"))
-//								{
-//									println(logEntry + " - exists");
-//									user.setExists(true);
-//								}
-//								else if(response.contains("not specified a valid username") || response.contains("invaliduser"))
-//								{
-//									println(logEntry + " - invalid");
-//								}
-//								else if("PASS".equalsIgnoreCase(status))
-//								{
-//									println(logEntry + " - OK");
-//									user.setExists(true);
-//								}
-//								else
-//								{
-//									println(logEntry + " - failed");
-//									throw new IOException(response);
-//								}
-//							}
-//
-//							setProjectProgress(currentUser.get());
-//
-//							if(System.currentTimeMillis() >= projectSaveTime.get())
-//							{
-//								barrier.await();
-//							}
-//						}
-//					}
-//					catch(Throwable ex)
-//					{
-//						showErrMsg(ex);
-//						errorOccurred.set(true);
-//					}
-//				};
-//
-//				ArrayList<Thread> threads = new ArrayList<>(numThreads);
-//				
-//				for(int i = 0; i < numThreads; i++)
-//				{
-//					Thread worker = new Thread(workerTask);
-//					threads.add(worker);
-//					worker.start();
-//				}
-//				
-//				for(Thread worker : threads)
-//				{
-//					worker.join();
-//				}
-//
-//				if(!errorOccurred.get())
-//				{
-//					System.gc();
-//					project.write(ControlPanel.this);
-//				}
-//			}
-//			catch(Throwable ex)
-//			{
-//				showErrMsg(ex);
-//			}
-//
-//			finishTask();
-//		};
-		
-		(new Thread(classicTask)).start();
+		(new Thread(task)).start();
     }//GEN-LAST:event_cmdCreateUsersActionPerformed
 
     private void cmdSetUserExistFlagsActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_cmdSetUserExistFlagsActionPerformed
@@ -3096,178 +2448,10 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					initProgress(true, true, true);
-					
-					boolean dryrun = cbDumpFormat.getSelectedIndex() == 2;
-					int inflateMode = cxAllRevisions.isSelected() ? WikiPage.INFLATE_NOT_UPLOADED : WikiPage.INFLATE_LATEST;
-					int uploadMode = cbDumpUploads.getSelectedIndex();
-					
-					File scriptFile = new File((project.getLocalSiteRoot() + "maintenance/importDump.php").replace('/', File.separatorChar));
+					boolean dryrun = cbDumpFormat.getSelectedIndex() == DumpExporter.FORMAT_DRY_RUN;
 					
-					if(!scriptFile.isFile())
-					{
-						throw new IllegalArgumentException("import script does not exist");
-					}
-					
-					String imageBasePath = project.getImageBaseDir().getAbsolutePath();
-					
-					int exportedPages = 0;
-					int exportedRevisions = 0;
-					long bytesWritten = 0;
-					int errorsOccurred = 0;
-
-					int totalPages = project.countPages();
-					int currentPage = 0;
-
-					setProjectProgress(0);
-					setProjectLimit(totalPages);
-					
-					boolean projectUpdated = false;
-					boolean pageUpdated;
-
-					for(WikiNamespace ns : project.listNamespaces())
-					{
-						ArrayList<WikiPage> pages = project.listPages(ns.getID());
-
-						if(isCancelled())
-						{
-							break;
-						}
-						else if(pages == null)
-						{
-							continue;
-						}
-
-						for(WikiPage page : pages)
-						{
-							currentPage++;
-							
-							page.load(ControlPanel.this);
-							pageUpdated = false;
-
-							if(page.hasZipName() && (inflateMode == WikiPage.INFLATE_LATEST || !page.isUploaded()) && page.isContainedIn() < 0)
-							{
-								println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
-								
-								try
-								{
-									ArrayList<String> command = new ArrayList(10);
-									
-									command.add("php");
-									command.add(scriptFile.getAbsolutePath());
-									// command.add("--quiet");
-									
-									if(dryrun)
-									{
-										command.add("--dry-run");
-									}
-									
-									command.add("--uploads");
-									command.add("--image-base-path");
-									command.add(imageBasePath);
-									
-									System.out.print("Executing command:");
-									
-									for(String arg : command)
-									{
-										if(arg.contains(" "))
-										{
-											System.out.print(" \"" + arg + "\"");
-										}
-										else
-										{
-											System.out.print(" " + arg);
-										}
-									}
-									
-									System.out.println();
-									
-									ProcessBuilder builder = new ProcessBuilder(command);
-									
-									builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-									builder.redirectError(ProcessBuilder.Redirect.INHERIT);
-									
-									script = builder.start();
-									
-									CounterOutputStream counter = new CounterOutputStream(script.getOutputStream());
-									OutputStream os = new BufferedOutputStream(counter, Util.BUFFER_SIZE);
-									
-									XMLStringBuilder xml = new XMLStringBuilder(os, "UTF-8");
-									xml.openTag("mediawiki");
-									
-									exportedRevisions += page.dump(xml, inflateMode, uploadMode, ControlPanel.this);
-									
-									xml.closeTag();
-									xml.flush();
-									
-									bytesWritten += counter.getCount();
-									
-									xml.close();
-									os.close();
-									
-									System.out.println("Waiting for process to exit...");
-
-									int result = script.waitFor();
-									
-									System.out.println();
-									
-									script = null;
-									
-									if(result == 0)
-									{
-										if(!isCancelled())
-										{
-											if(inflateMode != WikiPage.INFLATE_LATEST && !dryrun)
-											{
-												page.setUploaded(true);
-												pageUpdated = true;
-											}
-
-											exportedPages++;
-										}
-									}
-									else
-									{
-										throw new RuntimeException("import script exited with code " + result);
-									}
-								}
-								catch(Throwable ex)
-								{
-									showErrMsg(ex);
-									errorsOccurred++;
-								}
-							}
-							
-							if(pageUpdated)
-							{
-								page.unload(true);
-								projectUpdated = true;
-							}
-							else
-							{
-								page.unload(false);
-							}
-
-							setProjectProgress(currentPage);
-
-							if(isCancelled())
-							{
-								break;
-							}
-						}
-					}
-
-					println();
-					println("Imported " + exportedRevisions + " revisions in " + exportedPages + " pages");
-					println("Total of " + Util.formatNumber(bytesWritten) + " bytes written");
-					println("         " + errorsOccurred + " errors occurred in the process");
-					println();
-
-					if(!dryrun && projectUpdated)
-					{
-						System.gc();
-						project.write(ControlPanel.this);
-					}
+					script = new ScriptImporter(project, ControlPanel.this);
+					script.importAllPages(cxAllRevisions.isSelected(), cbDumpUploads.getSelectedIndex(), dryrun);
 				}
 				catch(Throwable ex)
 				{
@@ -3331,7 +2515,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					ImageUploadVerifier.verifyImages(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval);
+					ImageUploadVerifier.verifyImages(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, Util.downloadThreads);
 					project.write(ControlPanel.this);
 				}
 				catch(Throwable ex)
@@ -3721,7 +2905,7 @@ public class ControlPanel extends javax.swing.JFrame implements ProgressMonitor
 				
 				try
 				{
-					PageContentParser.getPagesContents(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, true);
+					PageContentParser.getPagesContents(project, ControlPanel.this, Util.pagesPerRequest, Util.projectSaveInterval, true, Util.downloadThreads, Util.batchRequests, Util.downloadTimeLimit);
 					project.write(ControlPanel.this);
 				}
 				catch(Throwable ex)
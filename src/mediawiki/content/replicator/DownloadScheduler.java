@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Порядок загрузки страниц для PageContentParser.
+ *
+ * Для каждой страницы оценивается объем работы: число незагруженных ревизий
+ * (известное по уже полученному списку ревизий, иначе хотя бы одна) на размер
+ * страницы (WikiPage.getContentLength(), иначе DEFAULT_LENGTH) плюс REQUEST_COST
+ * за каждый запрос. Страницы, которые можно запрашивать пачкой, собираются
+ * в пачки по pagesPerRequest, начиная с самых легких.
+ *
+ * Обычно задачи идут от самой тяжелой к самой легкой: долгие страницы
+ * начинаются сразу, а под конец потоки добирают мелочь и заканчивают
+ * примерно одновременно. При ограничении по времени, наоборот, сначала идут
+ * задачи с наименьшей оценкой на страницу, чтобы успеть загрузить больше страниц.
+ */
+public class DownloadScheduler
+{
+	/**
+	 * Размер страницы, если он неизвестен.
+	 */
+	public static final int DEFAULT_LENGTH = 4 * 1024;
+
+	/**
+	 * Во сколько байт обходится сам запрос.
+	 */
+	public static final int REQUEST_COST = 2 * 1024;
+
+	public static class Task
+	{
+		public final ArrayList<WikiPage> pages = new ArrayList();
+		public long cost = 0;
+
+		protected Task()
+		{
+		}
+
+		protected Task(WikiPage page, long cost)
+		{
+			pages.add(page);
+			this.cost = cost;
+		}
+	}
+
+	protected final int pagesPerRequest;
+
+	protected final ArrayList<Task> singles = new ArrayList();
+	protected final ArrayList<Task> batchable = new ArrayList();
+
+	public DownloadScheduler(int pagesPerRequest)
+	{
+		this.pagesPerRequest = pagesPerRequest;
+	}
+
+	/**
+	 * Оценить объем загрузки страницы; страница должна быть загружена.
+	 */
+	public static long estimateCost(WikiPage page, int pagesPerRequest)
+	{
+		int pending = Math.max(page.countRevisions() - page.countDownloadedRevisions(), 1);
+		long length = page.getContentLength() >= 0 ? page.getContentLength() : DEFAULT_LENGTH;
+
+		int requests = (pending + pagesPerRequest - 1) / pagesPerRequest;
+
+		return pending * length + (long)requests * REQUEST_COST;
+	}
+
+	/**
+	 * Добавить страницу в план; страница должна быть загружена,
+	 * в плане от нее остается только ссылка и оценка.
+	 *
+	 * @param batch можно ли запрашивать страницу в пачке с другими
+	 */
+	public void add(WikiPage page, boolean batch)
+	{
+		Task task = new Task(page, estimateCost(page, pagesPerRequest));
+
+		if(batch)
+		{
+			batchable.add(task);
+		}
+		else
+		{
+			singles.add(task);
+		}
+	}
+
+	public int countPages()
+	{
+		return singles.size() + batchable.size();
+	}
+
+	/**
+	 * Составить список задач.
+	 *
+	 * @param limited true - загрузка ограничена по времени
+	 */
+	public ArrayList<Task> schedule(boolean limited)
+	{
+		ArrayList<Task> tasks = new ArrayList(singles);
+
+		Collections.sort(batchable, new Comparator<Task>()
+		{
+			public int compare(Task a, Task b)
+			{
+				return Long.compare(a.cost, b.cost);
+			}
+		});
+
+		Task batch = null;
+
+		for(Task task : batchable)
+		{
+			if(batch == null || batch.pages.size() >= pagesPerRequest)
+			{
+				batch = new Task();
+				tasks.add(batch);
+			}
+
+			/*
+			 * Первый запрос у пачки общий.
+			 */
+
+			batch.cost += batch.pages.isEmpty() ? task.cost : task.cost - REQUEST_COST;
+			batch.pages.addAll(task.pages);
+		}
+
+		if(limited)
+		{
+			Collections.sort(tasks, new Comparator<Task>()
+			{
+				public int compare(Task a, Task b)
+				{
+					return Double.compare((double)a.cost / a.pages.size(), (double)b.cost / b.pages.size());
+				}
+			});
+		}
+		else
+		{
+			Collections.sort(tasks, new Comparator<Task>()
+			{
+				public int compare(Task a, Task b)
+				{
+					return Long.compare(b.cost, a.cost);
+				}
+			});
+		}
+
+		singles.clear();
+		batchable.clear();
+
+		return tasks;
+	}
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Экспорт страниц проекта в XML-дамп.
+ *
+ * Общий для ControlPanel и CommandLine.
+ */
+public class DumpExporter
+{
+	public static final int FORMAT_PLAIN = 0;
+	public static final int FORMAT_COMPRESSED = 1;
+	public static final int FORMAT_DRY_RUN = 2;
+
+	/**
+	 * Дописать к имени файла расширение, соответствующее формату.
+	 */
+	public static String getDumpFileName(String filename, int format)
+	{
+		if(filename == null || filename.isEmpty())
+		{
+			throw new IllegalArgumentException("empty file name");
+		}
+
+		switch(format)
+		{
+			case FORMAT_PLAIN:
+				if(!filename.toLowerCase().endsWith(".xml"))
+				{
+					filename += ".xml";
+				}
+
+				break;
+
+			case FORMAT_DRY_RUN:
+				break;
+
+			default:
+				if(filename.toLowerCase().endsWith(".xml"))
+				{
+					filename += ".bz2";
+				}
+				else if(!filename.toLowerCase().endsWith(".xml.bz2"))
+				{
+					filename += ".xml.bz2";
+				}
+
+				break;
+		}
+
+		return filename;
+	}
+
+	/**
+	 * @param filename имя файла, уже прошедшее через getDumpFileName()
+	 */
+	public static OutputStream createOutputStream(String filename, int format) throws IOException
+	{
+		OutputStream os;
+
+		switch(format)
+		{
+			case FORMAT_PLAIN:
+				os = new BufferedOutputStream(new FileOutputStream(filename), Util.BUFFER_SIZE);
+				break;
+
+			default:
+				os = new BufferedOutputStream(new FileOutputStream(filename), Util.BUFFER_SIZE);
+
+				if(Util.compressionThreads > 1)
+				{
+					os = new ParallelBZip2OutputStream(os, Util.compressionThreads);
+				}
+				else
+				{
+					os = new BZip2CompressorOutputStream(os, BZip2CompressorOutputStream.MAX_BLOCKSIZE);
+				}
+
+				break;
+
+			case FORMAT_DRY_RUN:
+				os = new DummyOutputStream();
+				break;
+		}
+
+		return os;
+	}
+
+	/**
+	 * @param filename имя файла, уже прошедшее через getDumpFileName()
+	 */
+	public static InputStream createInputStream(String filename, int format) throws IOException
+	{
+		InputStream is;
+
+		switch(format)
+		{
+			case FORMAT_PLAIN:
+				is = new BufferedInputStream(new FileInputStream(filename), Util.BUFFER_SIZE);
+				break;
+
+			default:
+				is = new BufferedInputStream(new FileInputStream(filename), Util.BUFFER_SIZE);
+
+				if(Util.compressionThreads > 1)
+				{
+					is = new ParallelBZip2InputStream(is, Util.compressionThreads);
+				}
+				else
+				{
+					is = new BZip2CompressorInputStream(is);
+				}
+
+				break;
+
+			case FORMAT_DRY_RUN:
+				throw new IllegalArgumentException("nothing to verify in dry run mode");
+		}
+
+		return is;
+	}
+
+	/**
+	 * Больше этого (по оценке estimateDumpSize()) страница в памяти
+	 * не собирается и выгружается прямо в дамп из вызывающего потока.
+	 */
+	public static final long MAX_BUFFERED_PAGE = 16 * 1024 * 1024;
+
+	/**
+	 * Выгрузить все страницы проекта в один дамп.
+	 *
+	 * При threads > 1 страницы выгружаются параллельно, каждая в свой буфер,
+	 * а в дамп буферы пишутся строго в порядке страниц (см. ExportScope).
+	 * Страницы загружаются, помечаются загруженными и выгружаются
+	 * в файл данных проекта только в вызывающем потоке.
+	 *
+	 * @param allRevisions true - все еще не загруженные ревизии
+	 * (после чего страница помечается загруженной), false - только последние
+	 * @param window сколько страниц может быть в работе
+	 * и ждать записи в дамп одновременно
+	 */
+	public static void exportAllPages(Project project, ProgressMonitor progress, OutputStream dest, boolean allRevisions, int uploadMode, boolean dryrun, int threads, int window) throws IOException
+	{
+		int inflateMode = allRevisions ? WikiPage.INFLATE_NOT_UPLOADED : WikiPage.INFLATE_LATEST;
+
+		CounterOutputStream counter = new CounterOutputStream(dest);
+		OutputStream os = new BufferedOutputStream(counter, Util.BUFFER_SIZE);
+
+		XMLStringBuilder xml = new XMLDumpWriter(os, "UTF-8");
+		xml.openTag("mediawiki");
+		xml.flush();
+
+		ExportScope scope = new ExportScope(progress, threads, window, os, inflateMode, uploadMode);
+
+		progress = scope.getProgress();
+		ProgressMonitor workerProgress = scope.getWorkerProgress();
+
+		int totalPages = project.countPages();
+		int currentPage = 0;
+
+		scope.initProgress(totalPages);
+
+		try
+		{
+			for(WikiNamespace ns : project.listNamespaces())
+			{
+				ArrayList<WikiPage> pages = project.listPages(ns.getID());
+
+				if(progress.isCancelled())
+				{
+					break;
+				}
+				else if(pages == null)
+				{
+					continue;
+				}
+
+				for(WikiPage page : pages)
+				{
+					currentPage++;
+
+					page.load(progress);
+
+					if(page.hasZipName() && (inflateMode == WikiPage.INFLATE_LATEST || !page.isUploaded()) && page.isContainedIn() < 0)
+					{
+						progress.println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
+
+						if(scope.isParallel() && estimateDumpSize(page, inflateMode, uploadMode) <= MAX_BUFFERED_PAGE)
+						{
+							scope.submit(new PageExport(page, inflateMode, uploadMode, workerProgress));
+						}
+						else
+						{
+							/*
+							 * Большие страницы (и все страницы без пула потоков)
+							 * пишем прямо в дамп, дождавшись всех предыдущих.
+							 */
+
+							scope.drain();
+							scope.export(page, xml);
+						}
+					}
+					else
+					{
+						page.unload(false);
+					}
+
+					progress.setProjectProgress(currentPage);
+
+					if(progress.isCancelled())
+					{
+						break;
+					}
+				}
+			}
+
+			scope.drain();
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException("interrupted", ex);
+		}
+		finally
+		{
+			scope.close();
+		}
+
+		xml.closeTag();
+		xml.flush();
+
+		xml.close();
+		os.close();
+
+		progress.println();
+		progress.println("Exported " + scope.exportedRevisions + " revisions in " + scope.exportedPages + " pages");
+		progress.println("Total of " + Util.formatNumber(counter.getCount()) + " bytes written, CRC32 is " + Long.toHexString(counter.getChecksum() & 0xFFFFFFFFL).toUpperCase());
+		progress.println("         " + scope.errorsOccurred + " errors occurred in the process");
+		progress.println();
+
+		if(!dryrun && scope.projectUpdated)
+		{
+			System.gc();
+			project.write(progress);
+		}
+	}
+
+	/**
+	 * Примерный размер страницы в дампе: длина текста
+	 * на число выгружаемых ревизий. Страницы с вложенными
+	 * файлами могут быть сколь угодно большими.
+	 */
+	protected static long estimateDumpSize(WikiPage page, int inflateMode, int uploadMode)
+	{
+		if(uploadMode == WikiPage.UPLOAD_EMBED && !page.listImages().isEmpty())
+		{
+			return Long.MAX_VALUE;
+		}
+
+		long length = page.getContentLength() >= 0 ? page.getContentLength() : DownloadScheduler.DEFAULT_LENGTH;
+
+		if(inflateMode == WikiPage.INFLATE_LATEST)
+		{
+			return length;
+		}
+
+		int count = 0;
+
+		for(WikiRevision rv : page.listRevisions())
+		{
+			if(rv.hasEntryName() && !rv.isUploaded())
+			{
+				count++;
+			}
+		}
+
+		return length * count;
+	}
+
+	/**
+	 * Очередь выгрузки страниц со стороны вызывающего потока.
+	 *
+	 * Готовые страницы приходят в completed() в любом порядке,
+	 * а в дамп пишутся по порядку постановки: страница, которая
+	 * готова раньше предыдущих, ждет их в pending и занимает место
+	 * в окне, так что в памяти не больше window страниц.
+	 */
+	protected static class ExportScope extends TaskScope<PageExport>
+	{
+		protected final OutputStream os;
+		protected final int inflateMode;
+		protected final int uploadMode;
+
+		protected final HashMap<Integer, PageExport> pending = new HashMap();
+		protected int submittedPages = 0;
+		protected int writtenPages = 0;
+
+		protected int exportedPages = 0;
+		protected int exportedRevisions = 0;
+		protected int errorsOccurred = 0;
+		protected boolean projectUpdated = false;
+
+		public ExportScope(ProgressMonitor progress, int threads, int window, OutputStream os, int inflateMode, int uploadMode)
+		{
+			super(progress, threads, window);
+
+			this.os = os;
+			this.inflateMode = inflateMode;
+			this.uploadMode = uploadMode;
+		}
+
+		/**
+		 * В параллельном режиме полоса операции показывает число страниц
+		 * в работе, а в последовательном, как и раньше, ревизии страницы.
+		 */
+		public void initProgress(int totalPages)
+		{
+			progress.initProgress(true, !parallel, true);
+
+			if(parallel)
+			{
+				progress.setOperationLimit(window);
+			}
+
+			progress.setProjectProgress(0);
+			progress.setProjectLimit(totalPages);
+		}
+
+		public void submit(PageExport task) throws InterruptedException, IOException
+		{
+			task.sequence = submittedPages++;
+			submit((Callable<PageExport>)task);
+		}
+
+		protected int getBacklog()
+		{
+			return pending.size();
+		}
+
+		protected void completed(PageExport task) throws IOException
+		{
+			pending.put(task.sequence, task);
+
+			while((task = pending.remove(writtenPages)) != null)
+			{
+				writtenPages++;
+
+				if(task.error == null)
+				{
+					task.buffer.writeTo(os);
+				}
+
+				task.buffer = null;
+				exported(task.page, task.revisions, task.cancelled, task.error);
+			}
+		}
+
+		/**
+		 * Выгрузить страницу прямо в дамп в вызывающем потоке.
+		 * Все поставленные страницы к этому времени должны быть записаны.
+		 *
+		 * Здесь, в отличие от буфера PageExport, начало страницы при ошибке
+		 * уже в дампе, поэтому открытые ею теги закрываются: страница
+		 * остается неполной, но остальной дамп не ломается.
+		 */
+		public void export(WikiPage page, XMLStringBuilder xml) throws IOException
+		{
+			int depth = xml.getDepth();
+			int revisions = 0;
+			Throwable error = null;
+
+			try
+			{
+				revisions = page.dump(xml, inflateMode, uploadMode, progress);
+				xml.reset();
+			}
+			catch(Throwable ex)
+			{
+				error = ex;
+
+				xml.closeTags(depth);
+				xml.flush();
+			}
+
+			exported(page, revisions, progress.isCancelled(), error);
+		}
+
+		/**
+		 * Учесть выгруженную страницу и выгрузить ее из памяти,
+		 * при выгрузке всех ревизий - помеченной загруженной.
+		 */
+		protected void exported(WikiPage page, int revisions, boolean cancelled, Throwable error) throws IOException
+		{
+			boolean pageUpdated = false;
+
+			if(error != null)
+			{
+				progress.showErrMsg(error);
+				errorsOccurred++;
+			}
+			else
+			{
+				exportedRevisions += revisions;
+
+				if(!cancelled)
+				{
+					if(inflateMode != WikiPage.INFLATE_LATEST)
+					{
+						page.setUploaded(true);
+						pageUpdated = true;
+					}
+
+					exportedPages++;
+				}
+			}
+
+			if(pageUpdated)
+			{
+				page.unload(true);
+				projectUpdated = true;
+			}
+			else
+			{
+				page.unload(false);
+			}
+		}
+	}
+
+	/**
+	 * Выгрузка одной страницы в собственный буфер.
+	 *
+	 * Ошибки задача не выбрасывает, а запоминает, чтобы они,
+	 * как и раньше, касались только этой страницы.
+	 */
+	protected static class PageExport implements Callable<PageExport>
+	{
+		protected final WikiPage page;
+		protected final int inflateMode;
+		protected final int uploadMode;
+		protected final ProgressMonitor progress;
+
+		protected int sequence;
+
+		protected ByteArrayOutputStream buffer;
+		protected int revisions = 0;
+		protected boolean cancelled = false;
+		protected Throwable error = null;
+
+		public PageExport(WikiPage page, int inflateMode, int uploadMode, ProgressMonitor progress)
+		{
+			this.page = page;
+			this.inflateMode = inflateMode;
+			this.uploadMode = uploadMode;
+			this.progress = progress;
+		}
+
+		public PageExport call() throws Exception
+		{
+			buffer = new ByteArrayOutputStream();
+
+			try
+			{
+				/*
+				 * Страница лежит внутри <mediawiki>.
+				 */
+
+				XMLStringBuilder xml = new XMLDumpWriter(buffer, "UTF-8");
+				xml.increaseIndentation();
+
+				revisions = page.dump(xml, inflateMode, uploadMode, progress);
+				cancelled = progress.isCancelled();
+
+				xml.flush();
+			}
+			catch(Throwable ex)
+			{
+				error = ex;
+			}
+
+			return this;
+		}
+	}
+}
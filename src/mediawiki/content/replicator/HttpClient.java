@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Общий HTTP-клиент для всех запросов к вики и загрузки файлов.
+ *
+ * Соединения переиспользует сам HttpURLConnection (keep-alive кеш JRE),
+ * но только если ответ дочитан до конца и закрыт. Поэтому поток ответа
+ * при закрытии дочитывает остаток (до MAX_DRAIN байт), а тело ответа
+ * с ошибкой читается и выбрасывается до того, как будет брошено исключение.
+ * Без этого каждый запрос, разобранный не до самого конца или завершившийся
+ * ошибкой, закрывал соединение, и следующий платил за новое TCP / TLS.
+ */
+public class HttpClient
+{
+	/**
+	 * Сколько байт непрочитанного ответа дочитывать при закрытии,
+	 * чтобы вернуть соединение в кеш. Больший остаток дешевле бросить.
+	 */
+	public static final int MAX_DRAIN = 64 * 1024;
+
+	static
+	{
+		/*
+		 * По умолчанию JRE держит не больше 5 свободных соединений на хост,
+		 * а одновременных загрузок у нас бывает больше.
+		 */
+
+		if(System.getProperty("http.maxConnections") == null)
+		{
+			System.setProperty("http.maxConnections", "16");
+		}
+	}
+
+	public static HttpURLConnection open(String url, String method) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)(new URL(url)).openConnection();
+
+		connection.setRequestMethod(method);
+		connection.setInstanceFollowRedirects(true);
+		connection.setUseCaches(false);
+
+		connection.setRequestProperty("User-Agent", Util.USER_AGENT);
+
+		return connection;
+	}
+
+	/**
+	 * GET-запрос к API со сжатием gzip.
+	 */
+	public static InputStream get(String url) throws IOException
+	{
+		HttpURLConnection connection = open(url, "GET");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+
+		return getResponseStream(connection);
+	}
+
+	/**
+	 * Поток ответа, распакованный, если сервер сжал его gzip.
+	 * Закрывать его нужно обязательно, и лучше дочитав до конца.
+	 */
+	public static InputStream getResponseStream(HttpURLConnection connection) throws IOException
+	{
+		checkResponse(connection);
+
+		InputStream raw = connection.getInputStream();
+		InputStream is = raw;
+
+		if("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+		{
+			is = new GZIPInputStream(raw);
+		}
+
+		return new ResponseInputStream(is, raw);
+	}
+
+	/**
+	 * Проверить код ответа. Тело ответа с ошибкой дочитывается,
+	 * после чего бросается то же исключение, что и у getInputStream():
+	 * FileNotFoundException для 404 и 410, для прочих - HttpStatusException.
+	 * Отказ API по maxlag приходит с кодом 200, его видно по заголовку
+	 * MediaWiki-API-Error, и он тоже становится HttpStatusException.
+	 */
+	public static void checkResponse(HttpURLConnection connection) throws IOException
+	{
+		int code = connection.getResponseCode();
+
+		if(code >= 400)
+		{
+			discard(connection);
+
+			if(code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+			{
+				throw new FileNotFoundException(connection.getURL().toString());
+			}
+			else
+			{
+				throw new HttpStatusException("Server returned HTTP response code: " + code + " for URL: " + connection.getURL(), code, getRetryAfter(connection), false);
+			}
+		}
+		else if("maxlag".equals(connection.getHeaderField("MediaWiki-API-Error")))
+		{
+			InputStream is = connection.getInputStream();
+			drain(is, MAX_DRAIN);
+			is.close();
+
+			throw new HttpStatusException("Database lag " + connection.getHeaderField("X-Database-Lag") + " s exceeds maxlag for URL: " + connection.getURL(), code, getRetryAfter(connection), true);
+		}
+	}
+
+	/**
+	 * Значение Retry-After в миллисекундах (секунды или дата), -1 если его нет.
+	 */
+	public static long getRetryAfter(HttpURLConnection connection)
+	{
+		String value = connection.getHeaderField("Retry-After");
+
+		if(value == null)
+		{
+			return -1;
+		}
+
+		try
+		{
+			return Math.max(Long.parseLong(value.trim()) * 1000, 0);
+		}
+		catch(NumberFormatException ex)
+		{
+			long date = connection.getHeaderFieldDate("Retry-After", -1);
+			return date >= 0 ? Math.max(date - System.currentTimeMillis(), 0) : -1;
+		}
+	}
+
+	/**
+	 * Дочитать и закрыть тело ответа с ошибкой, чтобы освободить соединение.
+	 */
+	public static void discard(HttpURLConnection connection)
+	{
+		InputStream es = connection.getErrorStream();
+
+		if(es != null)
+		{
+			try
+			{
+				drain(es, MAX_DRAIN);
+				es.close();
+			}
+			catch(IOException ex)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Прочитать поток до конца, но не больше limit байт.
+	 *
+	 * @return true, если конец потока достигнут
+	 */
+	protected static boolean drain(InputStream is, int limit) throws IOException
+	{
+		byte[] buf = new byte[4096];
+		int read;
+
+		while((read = is.read(buf)) >= 0)
+		{
+			limit -= read;
+
+			if(limit < 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Поток ответа, который при закрытии дочитывает свой остаток.
+	 * Дочитывается сам ответ (raw), а не распакованные данные:
+	 * после конца gzip в нем остается разве что пара байт концевика.
+	 */
+	protected static class ResponseInputStream extends FilterInputStream
+	{
+		protected InputStream raw;
+
+		public ResponseInputStream(InputStream in, InputStream raw)
+		{
+			super(in);
+			this.raw = raw;
+		}
+
+		public void close() throws IOException
+		{
+			if(raw != null)
+			{
+				try
+				{
+					drain(raw, MAX_DRAIN);
+				}
+				catch(IOException ex)
+				{
+				}
+				finally
+				{
+					raw = null;
+					in.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Ответ сервера с ошибкой HTTP или отказ API из-за maxlag.
+ */
+public class HttpStatusException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	protected int code;
+	protected long retryAfter;
+	protected boolean maxlag;
+
+	/**
+	 * @param retryAfter сколько миллисекунд просит подождать сервер, -1 если не просит
+	 */
+	public HttpStatusException(String message, int code, long retryAfter, boolean maxlag)
+	{
+		super(message);
+
+		this.code = code;
+		this.retryAfter = retryAfter;
+		this.maxlag = maxlag;
+	}
+
+	public int getCode()
+	{
+		return code;
+	}
+
+	public long getRetryAfter()
+	{
+		return retryAfter;
+	}
+
+	public boolean hasRetryAfter()
+	{
+		return retryAfter >= 0;
+	}
+
+	public boolean isMaxLag()
+	{
+		return maxlag;
+	}
+
+	/**
+	 * Сервер перегружен или ограничивает частоту запросов,
+	 * то есть ждать нужно всем запросам, а не только этому.
+	 */
+	public boolean isThrottled()
+	{
+		return maxlag || code == HTTP_TOO_MANY_REQUESTS || code == HttpURLConnection.HTTP_UNAVAILABLE;
+	}
+}
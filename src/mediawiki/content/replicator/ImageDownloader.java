@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Загрузка файлов изображений проекта.
+ *
+ * Каждая страница с незагруженными файлами - отдельная задача PageTask.
+ * При threads > 1 задачи выполняются в пуле потоков, но одновременно
+ * к одному хосту идет не больше connectionsPerHost загрузок.
+ * Файл данных проекта (load / unload) и сохранение проекта,
+ * как и в PageContentParser, остаются за вызывающим потоком.
+ */
+public class ImageDownloader
+{
+	public static void downloadImages(Project project, ProgressMonitor progress, long projectSaveInterval, int threads, int connectionsPerHost) throws IOException
+	{
+		TaskQueue queue = new TaskQueue(progress, threads);
+
+		progress = queue.getProgress();
+		ProgressMonitor workerProgress = queue.getWorkerProgress();
+
+		project.getImageDir().mkdirs();
+		project.getImageArchiveDir().mkdirs();
+
+		HostLimiter limiter = new HostLimiter(Math.max(connectionsPerHost, 1));
+
+		long currentTime = System.currentTimeMillis();
+		long projectSaveTime = currentTime + projectSaveInterval;
+
+		int totalPages = project.countPages();
+		int currentPage = 0;
+
+		queue.initProgress(totalPages);
+
+		try
+		{
+			for(WikiNamespace ns : project.listNamespaces())
+			{
+				if(progress.isCancelled())
+				{
+					break;
+				}
+
+				ArrayList<WikiPage> pages = project.listPages(ns.getID());
+
+				if(pages == null)
+				{
+					continue;
+				}
+
+				progress.println("Processing namespace " + ns.getID() + " (" + ns.getName() + ")...");
+
+				for(WikiPage page : pages)
+				{
+					currentPage++;
+
+					page.load(progress);
+
+					if(page.getDownloadStatus() != WikiPage.DOWNLOADED)
+					{
+						progress.println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
+						queue.submit(new PageTask(project, page, limiter, workerProgress));
+					}
+					else
+					{
+						page.unload(false);
+						queue.skip();
+					}
+
+					currentTime = System.currentTimeMillis();
+
+					if(progress.isCancelled())
+					{
+						break;
+					}
+					else if(currentTime >= projectSaveTime)
+					{
+						project.checkpoint(progress);
+						projectSaveTime = System.currentTimeMillis() + projectSaveInterval;
+					}
+				}
+			}
+
+			queue.drain();
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException("interrupted", ex);
+		}
+		finally
+		{
+			queue.close();
+		}
+
+		project.write(progress);
+	}
+
+	/**
+	 * Ограничение числа одновременных загрузок с одного хоста.
+	 */
+	protected static class HostLimiter
+	{
+		protected final int permits;
+		protected final HashMap<String, Semaphore> hosts = new HashMap();
+
+		public HostLimiter(int permits)
+		{
+			this.permits = permits;
+		}
+
+		protected synchronized Semaphore getSemaphore(String url)
+		{
+			String host;
+
+			try
+			{
+				host = new URL(url).getHost().toLowerCase();
+			}
+			catch(MalformedURLException ex)
+			{
+				host = "";
+			}
+
+			Semaphore semaphore = hosts.get(host);
+
+			if(semaphore == null)
+			{
+				semaphore = new Semaphore(permits);
+				hosts.put(host, semaphore);
+			}
+
+			return semaphore;
+		}
+
+		public long downloadFile(String url, File file, ProgressMonitor progress) throws IOException, InterruptedException
+		{
+			Semaphore semaphore = getSemaphore(url);
+			semaphore.acquire();
+
+			try
+			{
+				return Util.downloadFile(url, file, progress);
+			}
+			finally
+			{
+				semaphore.release();
+			}
+		}
+	}
+
+	/**
+	 * Очередь задач со стороны вызывающего потока:
+	 * выгружает готовые страницы в файл данных проекта.
+	 */
+	protected static class TaskQueue extends TaskScope<PageTask>
+	{
+		protected int processedPages = 0;
+
+		public TaskQueue(ProgressMonitor progress, int threads)
+		{
+			super(progress, threads);
+		}
+
+		/**
+		 * В параллельном режиме полоса операции показывает число страниц в работе,
+		 * а в последовательном, как и раньше, ход загрузки текущего файла.
+		 */
+		public void initProgress(int totalPages)
+		{
+			progress.initProgress(true, !parallel, true);
+
+			if(parallel)
+			{
+				progress.setOperationLimit(window);
+			}
+
+			progress.setProjectLimit(totalPages);
+			progress.setProjectProgress(processedPages);
+		}
+
+		public void skip()
+		{
+			progress.setProjectProgress(++processedPages);
+		}
+
+		/**
+		 * Ошибки отдельных файлов задача обрабатывает сама.
+		 */
+		protected void completed(PageTask task) throws IOException
+		{
+			task.page.unload(task.updated);
+			progress.setProjectProgress(++processedPages);
+		}
+	}
+
+	/**
+	 * Загрузка всех файлов одной страницы.
+	 *
+	 * Текущая версия файла кладется в getImageDir(), старые версии -
+	 * в getImageArchiveDir() под именем по умолчанию.
+	 */
+	protected static class PageTask implements Callable<PageTask>
+	{
+		protected final Project project;
+		protected final WikiPage page;
+		protected final HostLimiter limiter;
+		protected final ProgressMonitor progress;
+
+		protected boolean updated = false;
+
+		public PageTask(Project project, WikiPage page, HostLimiter limiter, ProgressMonitor progress)
+		{
+			this.project = project;
+			this.page = page;
+			this.limiter = limiter;
+			this.progress = progress;
+		}
+
+		public PageTask call() throws Exception
+		{
+			String newestTimestamp = page.getNewestImageTimestamp();
+
+			progress.setPageProgress(0);
+			progress.setPageLimit(page.listImages().size());
+
+			for(WikiImage img : page.listImages())
+			{
+				if(progress.isCancelled())
+				{
+					break;
+				}
+
+				if(img.hasURL())
+				{
+					downloadImage(img, newestTimestamp);
+				}
+
+				progress.progressPage(1);
+			}
+
+			return this;
+		}
+
+		protected void downloadImage(WikiImage img, String newestTimestamp) throws InterruptedException
+		{
+			String filename = img.getFileName();
+			File archiveFile = new File(project.getImageArchiveDir(), filename);
+
+			if(archiveFile.isFile() && !filename.equals(img.getDefaultFileName()))
+			{
+				filename = img.getDefaultFileName();
+				archiveFile.renameTo(archiveFile = new File(project.getImageArchiveDir(), filename));
+			}
+
+			File file = new File(project.getImageDir(), filename);
+
+			if(file.isFile() || archiveFile.isFile())
+			{
+				img.setFileName(filename);
+				updated = true;
+			}
+			else
+			{
+				boolean downloaded = false;
+
+				for(int tries = 0, maxtries = 5; tries < maxtries && !progress.isCancelled(); tries++)
+				{
+					String message = "... " + page.getTitle() + ", revision " + img.getTimestamp();
+
+					if(tries > 0)
+					{
+						message += " attempt " + (tries + 1);
+					}
+
+					try
+					{
+						limiter.downloadFile(img.getURL(), file, progress);
+						downloaded = true;
+
+						progress.println(message + " - OK");
+						break;
+					}
+					catch(FileNotFoundException ex)
+					{
+						img.setURL(null);
+
+						progress.println(message + " - Not Found");
+						break;
+					}
+					catch(InterruptedException ex)
+					{
+						throw ex;
+					}
+					catch(Throwable ex)
+					{
+						progress.println(message + " - Error");
+						progress.showErrMsg(ex);
+
+						if(tries < (maxtries - 1))
+						{
+							Thread.sleep(RequestScheduler.getInstance().getDelay(tries, ex));
+						}
+					}
+				}
+
+				if(downloaded)
+				{
+					img.setFileName(filename);
+					updated = true;
+				}
+			}
+
+			if(!img.getTimestamp().equals(newestTimestamp) && file.isFile())
+			{
+				filename = img.getDefaultFileName();
+				archiveFile = new File(project.getImageArchiveDir(), filename);
+				img.setFileName(filename);
+
+				if(file.renameTo(archiveFile))
+				{
+					progress.println("... " + page.getTitle() + ", moving file to archive - OK");
+				}
+				else
+				{
+					progress.println("... " + page.getTitle() + ", moving file to archive - failed");
+				}
+			}
+		}
+	}
+}
@@ -19,6 +19,9 @@ package mediawiki.content.replicator;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -31,132 +34,195 @@ public class ImageUploadVerifier extends DefaultHandler
 {
 	public static void verifyImages(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval) throws ParserConfigurationException, SAXException, IOException, TransformerException
 	{
+		verifyImages(project, progress, pagesPerRequest, projectSaveInterval, 1);
+	}
+	
+	/**
+	 * Проверка загрузки файлов на целевую вики.
+	 * При threads > 1 страницы проверяются параллельно, см. TaskScope.
+	 */
+	public static void verifyImages(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval, int threads) throws ParserConfigurationException, SAXException, IOException, TransformerException
+	{
+		VerifyQueue queue = new VerifyQueue(progress, threads);
+		
+		progress = queue.getProgress();
+		ProgressMonitor workerProgress = queue.getWorkerProgress();
+		
 		progress.initProgress(true, false, true);
-		progress.setOperationLimit(2);
+		progress.setOperationLimit(queue.isParallel() ? queue.getWindow() : 2);
 		
 		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser parser = factory.newSAXParser();
+		ArrayBlockingQueue<SAXParser> parsers = new ArrayBlockingQueue(Math.max(threads, 1));
+		
+		for(int i = 0; i < Math.max(threads, 1); i++)
+		{
+			parsers.add(factory.newSAXParser());
+		}
 		
 		long currentTime = System.currentTimeMillis();
 		long projectSaveTime = currentTime + projectSaveInterval;
 		
-		for(WikiNamespace ns : project.listNamespaces())
+		try
 		{
-			progress.println("Processing namespace " + ns.getID() + " (" + ns.getName() + ")...");
+			for(WikiNamespace ns : project.listNamespaces())
+			{
+				progress.println("Processing namespace " + ns.getID() + " (" + ns.getName() + ")...");
 
-			int totalPages = project.countPages(ns.getID());
-			int currentPage = 0;
+				int totalPages = project.countPages(ns.getID());
 
-			progress.setProjectProgress(0);
-			progress.setProjectLimit(totalPages);
-			
-			ArrayList<WikiPage> pages = project.listPages(ns.getID());
-			
-			if(pages == null)
-			{
-				continue;
-			}
-			
-			for(WikiPage page : pages)
-			{
-				page.load(progress);
+				queue.processedPages = 0;
+				progress.setProjectProgress(0);
+				progress.setProjectLimit(totalPages);
 				
-				currentPage++;
-
-				if(page.hasImages())
+				ArrayList<WikiPage> pages = project.listPages(ns.getID());
+				
+				if(pages == null)
 				{
-					ImageUploadVerifier handler = new ImageUploadVerifier(project, page);
+					continue;
+				}
+				
+				for(WikiPage page : pages)
+				{
+					page.load(progress);
 
-					do
+					if(page.hasImages())
 					{
-						String request = project.getTargetURL() +
-										 "api.php?format=xml&action=query&prop=imageinfo" +
-										 "&iiprop=timestamp" +
-										 "&iilimit=" + pagesPerRequest +
-										 "&titles=" + Util.encodeURL(page.getTitle());
-
-						if(handler.queryContinuePair != null)
-						{
-							request += "&" + handler.queryContinuePair;
-
-							handler.queryContinuePair = null;
-							handler.queryContinueFrom = null;
-						}
-
-						for(int tries = 0; tries < 5 && !progress.isCancelled(); tries++)
-						{
-							try
-							{
-								InputStream is = Util.openConnection(request);
-								progress.setOperationProgress(1);
-
-								parser.parse(is, handler);
-								progress.setOperationProgress(2);
-
-								is.close();
-								progress.setOperationProgress(0);
+						queue.submit(new VerifyTask(project, page, parsers, workerProgress, pagesPerRequest));
+					}
+					else
+					{
+						page.unload(false);
+						queue.skip();
+					}
 
-								if(handler.parsed)
-								{
-									handler.parsed = false;
-									break;
-								}
-								else
-								{
-									throw new IOException("empty result");
-								}
-							}
-							catch(Throwable ex)
-							{
-								progress.showErrMsg(ex);
+					currentTime = System.currentTimeMillis();
 
-								try
-								{
-									Thread.sleep(5000);
-								}
-								catch(InterruptedException ie)
-								{
-								}
-							}
-						}
+					if(progress.isCancelled())
+					{
+						break;
 					}
-					while(handler.queryContinuePair != null && !progress.isCancelled());
-					
-					int imagesUploaded = page.countUploadedImages();
-					int imagesDownloaded = page.countDownloadedImages();
-					
-					page.unload(true);
-					
-					if(imagesUploaded != imagesDownloaded)
+					else if(currentTime >= projectSaveTime)
 					{
-						progress.println("[" + imagesUploaded + "/" + imagesDownloaded + "] " + page.getTitle());
+						project.checkpoint(progress);
+						projectSaveTime = System.currentTimeMillis() + projectSaveInterval;
 					}
 				}
-				else
-				{
-					page.unload(false);
-				}
 				
-				progress.setProjectProgress(currentPage);
-
-				currentTime = System.currentTimeMillis();
-
+				queue.drain();
+				
 				if(progress.isCancelled())
 				{
 					break;
 				}
-				else if(currentTime >= projectSaveTime)
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException("interrupted", ex);
+		}
+		finally
+		{
+			queue.close();
+		}
+	}
+	
+	protected static class VerifyQueue extends TaskScope<VerifyTask>
+	{
+		protected int processedPages = 0;
+		
+		public VerifyQueue(ProgressMonitor progress, int threads)
+		{
+			super(progress, threads);
+		}
+		
+		public void skip()
+		{
+			progress.setProjectProgress(++processedPages);
+		}
+		
+		protected void completed(VerifyTask task) throws IOException
+		{
+			task.page.unload(true);
+			progress.setProjectProgress(++processedPages);
+		}
+	}
+	
+	/**
+	 * Запрос imageinfo одной страницы со всеми продолжениями.
+	 */
+	protected static class VerifyTask implements Callable<VerifyTask>
+	{
+		protected final Project project;
+		protected final WikiPage page;
+		protected final BlockingQueue<SAXParser> parsers;
+		protected final ProgressMonitor progress;
+		protected final int pagesPerRequest;
+		
+		public VerifyTask(Project project, WikiPage page, BlockingQueue<SAXParser> parsers, ProgressMonitor progress, int pagesPerRequest)
+		{
+			this.project = project;
+			this.page = page;
+			this.parsers = parsers;
+			this.progress = progress;
+			this.pagesPerRequest = pagesPerRequest;
+		}
+		
+		public VerifyTask call() throws Exception
+		{
+			final SAXParser parser = parsers.take();
+			final ImageUploadVerifier handler = new ImageUploadVerifier(project, page);
+			
+			try
+			{
+				do
 				{
-					System.gc();
-					project.write(progress);
-					projectSaveTime = currentTime + projectSaveInterval;
+					String request = project.getTargetURL() +
+									 "api.php?format=xml&action=query&prop=imageinfo" +
+									 "&iiprop=timestamp" +
+									 "&iilimit=" + pagesPerRequest +
+									 "&titles=" + Util.encodeURL(page.getTitle());
+
+					if(handler.queryContinuePair != null)
+					{
+						request += "&" + handler.queryContinuePair;
+
+						handler.queryContinuePair = null;
+						handler.queryContinueFrom = null;
+					}
+
+					RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
+					{
+						public void handleResponse(InputStream is) throws Exception
+						{
+							parser.parse(is, handler);
+
+							if(handler.parsed)
+							{
+								handler.parsed = false;
+							}
+							else
+							{
+								throw new IOException("empty result");
+							}
+						}
+					});
 				}
+				while(handler.queryContinuePair != null && !progress.isCancelled());
+			}
+			finally
+			{
+				parsers.put(parser);
 			}
 			
-			if(progress.isCancelled())
+			int imagesUploaded = page.countUploadedImages();
+			int imagesDownloaded = page.countDownloadedImages();
+			
+			if(imagesUploaded != imagesDownloaded)
 			{
-				break;
+				progress.println("[" + imagesUploaded + "/" + imagesDownloaded + "] " + page.getTitle());
 			}
+			
+			return this;
 		}
 	}
 	
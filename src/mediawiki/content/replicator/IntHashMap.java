@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Хеш-таблица с ключами int без упаковки в Integer.
+ *
+ * Открытая адресация с линейным пробированием, значения null не допускаются:
+ * пустая ячейка - это ячейка с null в values.
+ * Порядок обхода не определен.
+ */
+public class IntHashMap<V>
+{
+	protected static final int MIN_CAPACITY = 16;
+
+	protected int[] keys;
+	protected Object[] values;
+
+	protected int size = 0;
+	protected int mask;
+
+	public IntHashMap()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	public IntHashMap(int expectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+
+		while(capacity * 3 < expectedSize * 4)
+		{
+			capacity <<= 1;
+		}
+
+		allocate(capacity);
+	}
+
+	protected void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	protected int slot(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	protected int find(int key)
+	{
+		int i = slot(key);
+
+		while(values[i] != null)
+		{
+			if(keys[i] == key)
+			{
+				return i;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	public V get(int key)
+	{
+		int i = find(key);
+		return i >= 0 ? (V)values[i] : null;
+	}
+
+	public boolean containsKey(int key)
+	{
+		return find(key) >= 0;
+	}
+
+	public V put(int key, V value)
+	{
+		if(value == null)
+		{
+			throw new NullPointerException();
+		}
+
+		int i = slot(key);
+
+		while(values[i] != null)
+		{
+			if(keys[i] == key)
+			{
+				V old = (V)values[i];
+				values[i] = value;
+
+				return old;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+
+		if(++size * 4 > values.length * 3)
+		{
+			rehash(values.length << 1);
+		}
+
+		return null;
+	}
+
+	public V remove(int key)
+	{
+		int i = find(key);
+
+		if(i < 0)
+		{
+			return null;
+		}
+
+		V old = (V)values[i];
+
+		/*
+		 * Сдвигаем назад следующие элементы цепочки,
+		 * чтобы в ней не осталось дыры.
+		 */
+
+		int gap = i;
+		i = (i + 1) & mask;
+
+		while(values[i] != null)
+		{
+			int home = slot(keys[i]);
+
+			if(((i - home) & mask) >= ((i - gap) & mask))
+			{
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+
+				gap = i;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		values[gap] = null;
+		size--;
+
+		return old;
+	}
+
+	protected void rehash(int capacity)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		allocate(capacity);
+
+		for(int j = 0; j < oldValues.length; j++)
+		{
+			if(oldValues[j] != null)
+			{
+				int i = slot(oldKeys[j]);
+
+				while(values[i] != null)
+				{
+					i = (i + 1) & mask;
+				}
+
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		if(values.length > MIN_CAPACITY)
+		{
+			allocate(MIN_CAPACITY);
+		}
+		else
+		{
+			Arrays.fill(values, null);
+		}
+
+		size = 0;
+	}
+
+	/**
+	 * Значения таблицы. Изменять таблицу во время обхода нельзя.
+	 */
+	public Collection<V> values()
+	{
+		return new AbstractCollection<V>()
+		{
+			public Iterator<V> iterator()
+			{
+				return new Iterator<V>()
+				{
+					protected int index = advance(0);
+
+					protected int advance(int i)
+					{
+						while(i < values.length && values[i] == null)
+						{
+							i++;
+						}
+
+						return i;
+					}
+
+					public boolean hasNext()
+					{
+						return index < values.length;
+					}
+
+					public V next()
+					{
+						if(index >= values.length)
+						{
+							throw new NoSuchElementException();
+						}
+
+						V value = (V)values[index];
+						index = advance(index + 1);
+
+						return value;
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Упорядоченное по возрастанию ключа отображение с ключами int.
+ *
+ * Ключи и значения лежат в двух массивах в диапазоне [start, end),
+ * с запасом места и в начале, и в конце: ревизии из файла проекта
+ * приходят по возрастанию id, а из API (rvdir=older) - по убыванию,
+ * и в обоих случаях вставка обходится без сдвига элементов.
+ * Значения null не допускаются.
+ */
+public class IntSortedMap<V>
+{
+	protected static final int[] EMPTY_KEYS = new int[0];
+	protected static final Object[] EMPTY_VALUES = new Object[0];
+
+	protected int[] keys = EMPTY_KEYS;
+	protected Object[] values = EMPTY_VALUES;
+
+	protected int start = 0;
+	protected int end = 0;
+
+	protected int find(int key)
+	{
+		return Arrays.binarySearch(keys, start, end, key);
+	}
+
+	public V get(int key)
+	{
+		int i = find(key);
+		return i >= 0 ? (V)values[i] : null;
+	}
+
+	public boolean containsKey(int key)
+	{
+		return find(key) >= 0;
+	}
+
+	public V put(int key, V value)
+	{
+		if(value == null)
+		{
+			throw new NullPointerException();
+		}
+
+		int i = find(key);
+
+		if(i >= 0)
+		{
+			V old = (V)values[i];
+			values[i] = value;
+
+			return old;
+		}
+
+		i = -i - 1;
+
+		if(start == 0 && end == keys.length)
+		{
+			i = grow(i);
+		}
+
+		/*
+		 * Сдвигаем ту сторону, где меньше элементов и есть место.
+		 */
+
+		if(end == keys.length || (start > 0 && i - start < end - i))
+		{
+			System.arraycopy(keys, start, keys, start - 1, i - start);
+			System.arraycopy(values, start, values, start - 1, i - start);
+
+			start--;
+			i--;
+		}
+		else
+		{
+			System.arraycopy(keys, i, keys, i + 1, end - i);
+			System.arraycopy(values, i, values, i + 1, end - i);
+
+			end++;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+
+		return null;
+	}
+
+	/**
+	 * Увеличить массивы вдвое. Новое место делится между началом и концом
+	 * в зависимости от того, куда шла вставка.
+	 *
+	 * @return новая позиция вставки
+	 */
+	protected int grow(int insert)
+	{
+		int size = end - start;
+		int capacity = Math.max(4, size * 2);
+
+		int offset;
+
+		if(insert == end)
+		{
+			offset = 0;
+		}
+		else if(insert == start)
+		{
+			offset = capacity - size;
+		}
+		else
+		{
+			offset = (capacity - size) / 2;
+		}
+
+		int[] newKeys = new int[capacity];
+		Object[] newValues = new Object[capacity];
+
+		System.arraycopy(keys, start, newKeys, offset, size);
+		System.arraycopy(values, start, newValues, offset, size);
+
+		keys = newKeys;
+		values = newValues;
+
+		insert += offset - start;
+
+		start = offset;
+		end = offset + size;
+
+		return insert;
+	}
+
+	public V remove(int key)
+	{
+		int i = find(key);
+
+		if(i < 0)
+		{
+			return null;
+		}
+
+		V old = (V)values[i];
+
+		if(i - start < end - i - 1)
+		{
+			System.arraycopy(keys, start, keys, start + 1, i - start);
+			System.arraycopy(values, start, values, start + 1, i - start);
+
+			values[start++] = null;
+		}
+		else
+		{
+			System.arraycopy(keys, i + 1, keys, i, end - i - 1);
+			System.arraycopy(values, i + 1, values, i, end - i - 1);
+
+			values[--end] = null;
+		}
+
+		return old;
+	}
+
+	public int size()
+	{
+		return end - start;
+	}
+
+	public boolean isEmpty()
+	{
+		return end == start;
+	}
+
+	public void clear()
+	{
+		keys = EMPTY_KEYS;
+		values = EMPTY_VALUES;
+
+		start = 0;
+		end = 0;
+	}
+
+	public V firstValue()
+	{
+		return end > start ? (V)values[start] : null;
+	}
+
+	public V lastValue()
+	{
+		return end > start ? (V)values[end - 1] : null;
+	}
+
+	/**
+	 * Значения по возрастанию ключа. Изменять отображение во время обхода нельзя.
+	 */
+	public Collection<V> values()
+	{
+		return new AbstractCollection<V>()
+		{
+			public Iterator<V> iterator()
+			{
+				return new Iterator<V>()
+				{
+					protected int index = start;
+
+					public boolean hasNext()
+					{
+						return index < end;
+					}
+
+					public V next()
+					{
+						if(index >= end)
+						{
+							throw new NoSuchElementException();
+						}
+
+						return (V)values[index++];
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			public int size()
+			{
+				return end - start;
+			}
+		};
+	}
+}
@@ -25,7 +25,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -177,11 +176,10 @@ public class MultiPartPost
 	
 	public String post(String url) throws IOException
 	{
-		HttpURLConnection connection = (HttpURLConnection)(new URL(url)).openConnection();
+		HttpURLConnection connection = HttpClient.open(url, "POST");
 		
-		connection.setRequestMethod("POST");
-		connection.setInstanceFollowRedirects(true);
 		
+		connection.setRequestProperty("Accept-Encoding", "gzip");
 		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
 		setCookies(connection);
 		
@@ -243,7 +241,7 @@ public class MultiPartPost
 		
 		grabCookies(connection);
 		
-		BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+		BufferedReader br = new BufferedReader(new InputStreamReader(HttpClient.getResponseStream(connection), "UTF-8"));
 		String line;
 		
 		StringBuilder buf = new StringBuilder();
@@ -16,8 +16,13 @@
 
 package mediawiki.content.replicator;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -36,11 +41,38 @@ public class NamespaceParser extends DefaultHandler
 		
 		String request = project.getBaseURL() + "api.php?format=xml&action=query&meta=siteinfo&siprop=namespaces";
 		
-		InputStream is = Util.openConnection(request);
+		InputStream is = HttpClient.get(request);
 		parser.parse(is, handler);
 		is.close();
 	}
 	
+	/**
+	 * Записать список пространств имен в namespaces.ini в папке проекта,
+	 * вместе с готовыми строками $wgExtraNamespaces для LocalSettings.php.
+	 */
+	public static void writeNamespaceList(Project project) throws IOException
+	{
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(project.getBaseDir() + "namespaces.ini"), Util.BUFFER_SIZE);
+		PrintWriter ps = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+
+		for(WikiNamespace ns : project.listAllNamespaces())
+		{
+			ps.println(ns.getID() + "\t=\t" + ns.getName());
+		}
+
+		ps.println();
+
+		for(WikiNamespace ns : project.listAllNamespaces())
+		{
+			if(ns.getID() >= 100)
+			{
+				ps.println("$wgExtraNamespaces[" + ns.getID() + "] = \"" + ns.getName().replace(' ', '_') + "\";");
+			}
+		}
+
+		ps.close();
+	}
+	
 	public static final int MODE_NULL = 0;
 	public static final int MODE_NAMESPACE = 1;
 	
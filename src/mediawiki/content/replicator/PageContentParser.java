@@ -20,6 +20,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -32,213 +37,683 @@ public class PageContentParser extends DefaultHandler
 {
 	public static void getPagesContents(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval, boolean requestImageInfo) throws ParserConfigurationException, SAXException, IOException, TransformerException
 	{
-		progress.initProgress(true, true, true);
-		progress.setOperationLimit(2);
-		
+		getPagesContents(project, progress, pagesPerRequest, projectSaveInterval, requestImageInfo, 1, false, 0);
+	}
+
+	/**
+	 * Загрузка содержимого страниц.
+	 *
+	 * Запросы к API, разбор ответов и упаковка архивов страниц идут в задачах DownloadTask.
+	 * При threads > 1 задачи выполняются в пуле потоков, у каждого потока свой SAXParser,
+	 * иначе - прямо в вызывающем потоке. Файл данных проекта (load / unload)
+	 * и сохранение проекта в любом случае остаются за вызывающим потоком.
+	 *
+	 * При batchRequests страницы без незагруженных ревизий собираются в пачки
+	 * по pagesPerRequest штук и запрашиваются одним запросом pageids=a|b|c.
+	 * Для нескольких страниц API отдает только последнюю ревизию каждой,
+	 * поэтому страницы, у которых за ней есть еще что-то незагруженное,
+	 * потом догружаются отдельными запросами.
+	 *
+	 * Порядок загрузки определяет DownloadScheduler. При timeLimit > 0 новые задачи
+	 * ставятся, только пока они, судя по скорости уже сделанных, успевают
+	 * уложиться в это время; остальные страницы ждут следующего запуска.
+	 */
+	public static void getPagesContents(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval, boolean requestImageInfo, int threads, boolean batchRequests, long timeLimit) throws ParserConfigurationException, SAXException, IOException, TransformerException
+	{
+		DownloadQueue queue = new DownloadQueue(project, progress, threads);
+
+		progress = queue.getProgress();
+		ProgressMonitor workerProgress = queue.getWorkerProgress();
+		boolean parallel = queue.isParallel();
+
 		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser parser = factory.newSAXParser();
-		
-		File dir = new File((project.getBaseDir() + "wiki/").replace('/', File.separatorChar));
+		ArrayBlockingQueue<SAXParser> parsers = new ArrayBlockingQueue(Math.max(threads, 1));
+
+		for(int i = 0; i < Math.max(threads, 1); i++)
+		{
+			parsers.add(factory.newSAXParser());
+		}
+
+		File dir = project.getWikiDir();
 		dir.mkdirs();
-		
+
 		long currentTime = System.currentTimeMillis();
 		long projectSaveTime = currentTime + projectSaveInterval;
-		
+
 		int totalPages = project.countPages();
 		int currentPage = 0;
-		
-		progress.setProjectLimit(totalPages);
-		
-		for(WikiNamespace ns : project.listNamespaces())
+
+		queue.initProgress(totalPages);
+
+		DownloadScheduler scheduler = new DownloadScheduler(pagesPerRequest);
+
+		try
 		{
-			ArrayList<WikiPage> pages = project.listPages(ns.getID());
-			
-			if(pages == null)
-			{
-				continue;
-			}
-			
-			for(WikiPage page : pages)
+			progress.println("Planning download...");
+
+			for(WikiNamespace ns : project.listNamespaces())
 			{
-				page.load(progress);
-				
-				progress.setPageLimit(page.listRevisions().size());
-				progress.setPageProgress(page.countDownloadedRevisions());
-				
-				currentPage++;
-				// progress.print("[" + currentPage + "/" + totalPages + "]");
+				ArrayList<WikiPage> pages = project.listPages(ns.getID());
 
-				if(page.isActual()) // firstRun && !p.requiresDownload())
+				if(pages == null)
 				{
-					// progress.println("[=] " + page.getTitle());
-					page.unload(false);
-					
-					if(progress.isCancelled())
+					continue;
+				}
+
+				for(WikiPage page : pages)
+				{
+					/*
+					 * Новые страницы еще не сохранены и выгружать их нельзя.
+					 */
+
+					boolean loaded = page.load(progress);
+
+					if(page.isActual())
 					{
-						break;
+						currentPage++;
+						queue.skip();
 					}
 					else
 					{
-						progress.setProjectProgress(currentPage);
-						continue;
+						scheduler.add(page, batchRequests && isBatchable(page, requestImageInfo));
 					}
-				}
 
-				PageContentParser handler = new PageContentParser(project, page);
+					if(loaded)
+					{
+						page.unload(false);
+					}
 
-				String updateLimit = "";
-				
-				progress.print("[" + currentPage + "/" + totalPages + "]");
+					if(progress.isCancelled())
+					{
+						break;
+					}
+				}
 
-				switch(page.getDownloadStatus())
+				if(progress.isCancelled())
 				{
-					case WikiPage.REQUIRES_DOWNLOAD:
-						progress.println("[+] " + page.getTitle());
-						break;
+					break;
+				}
+			}
 
-					default:
-					case WikiPage.PARTIALLY_DOWNLOADED:
-						progress.println("[#] " + page.getTitle());
-						break;
+			progress.println("... " + scheduler.countPages() + " pages to download");
 
-					case WikiPage.DOWNLOADED:
-						progress.println("[*] " + page.getTitle());
-						updateLimit = "&rvendid=" + page.getNewestRevisionID();
-						break;
+			long deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit : 0;
+			int postponedPages = 0;
+
+			queue.startClock();
+
+			for(DownloadScheduler.Task task : scheduler.schedule(deadline > 0))
+			{
+				if(progress.isCancelled())
+				{
+					break;
 				}
+				else if(deadline > 0 && !queue.fits(task.cost, deadline))
+				{
+					postponedPages += task.pages.size();
+					continue;
+				}
+
+				ArrayList<String> updateLimits = new ArrayList();
 
-				do
+				for(WikiPage page : task.pages)
 				{
-					String request = project.getBaseURL() +
-									 "api.php?format=xml&action=query" +
-									 (requestImageInfo ? "&prop=revisions|imageinfo" : "&prop=revisions") +
-									 "&rvprop=ids|timestamp|user|comment|content" +
-									 "&iiprop=timestamp|user|comment|url|archivename" +
-									 "&rvlimit=" + pagesPerRequest +
-									 "&iilimit=" + pagesPerRequest +
-									 "&pageids=" + page.getID() +
-									 "&rvdir=older" + updateLimit;
-
-					if(handler.queryContinuePair != null)
+					page.load(progress);
+					currentPage++;
+
+					if(!parallel)
 					{
-						progress.println("... revision " + handler.queryContinueFrom);
+						progress.setPageLimit(page.listRevisions().size());
+						progress.setPageProgress(page.countDownloadedRevisions());
+					}
 
-						request += "&" + handler.queryContinuePair;
+					updateLimits.add(announcePage(page, currentPage, totalPages, progress));
+				}
 
-						handler.queryContinuePair = null;
-						handler.queryContinueFrom = null;
-					}
+				queue.submit(new DownloadTask(project, task.pages, updateLimits, dir, parsers, workerProgress, pagesPerRequest, requestImageInfo), task.cost);
+
+				currentTime = System.currentTimeMillis();
+
+				if(currentTime >= projectSaveTime && !progress.isCancelled())
+				{
+					project.checkpoint(progress);
+					projectSaveTime = System.currentTimeMillis() + projectSaveInterval;
+				}
+			}
+
+			if(postponedPages > 0)
+			{
+				progress.println("Time limit reached, " + postponedPages + " pages left for the next run");
+			}
+
+			queue.drain();
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException("interrupted", ex);
+		}
+		finally
+		{
+			queue.close();
+		}
+	}
+
+	/**
+	 * Можно ли запрашивать страницу в пачке с другими.
+	 *
+	 * Частично загруженные страницы нужно дочитывать с продолжением,
+	 * а для файлов еще и imageinfo, поэтому их запрашиваем по одной.
+	 */
+	protected static boolean isBatchable(WikiPage page, boolean requestImageInfo)
+	{
+		if(requestImageInfo && page.supposedToHaveImages())
+		{
+			return false;
+		}
+
+		return page.getDownloadStatus() != WikiPage.PARTIALLY_DOWNLOADED;
+	}
+
+	/**
+	 * Очередь задач загрузки со стороны вызывающего потока.
+	 *
+	 * Держит в работе не больше window задач. Готовые страницы
+	 * выгружаются в файл данных проекта здесь же, в вызывающем потоке.
+	 * Без пула потоков задача выполняется сразу при постановке в очередь.
+	 */
+	protected static class DownloadQueue extends TaskScope<DownloadTask>
+	{
+		protected final Project project;
+
+		protected int processedPages = 0;
+
+		/**
+		 * Оценки поставленных и сделанных задач (DownloadScheduler) для fits().
+		 */
+		protected long submittedCost = 0;
+		protected long completedCost = 0;
+		protected long startTime;
+
+		/**
+		 * Задачи, у которых не прошли запросы. Они повторяются
+		 * в drain(), когда остальные задачи уже сделаны.
+		 */
+		protected final ArrayList<DownloadTask> deferred = new ArrayList();
+
+		public DownloadQueue(Project project, ProgressMonitor progress, int threads)
+		{
+			super(progress, threads);
+			this.project = project;
+		}
+
+		/**
+		 * В параллельном режиме полоса операции показывает число задач в работе,
+		 * а в последовательном, как и раньше, этапы текущего запроса.
+		 */
+		public void initProgress(int totalPages)
+		{
+			if(parallel)
+			{
+				progress.initProgress(true, false, true);
+				progress.setOperationLimit(window);
+			}
+			else
+			{
+				progress.initProgress(true, true, true);
+				progress.setOperationLimit(2);
+			}
+
+			progress.setProjectLimit(totalPages);
+			progress.setProjectProgress(processedPages);
+		}
+
+		public void skip()
+		{
+			progress.setProjectProgress(++processedPages);
+		}
+
+		public void startClock()
+		{
+			startTime = System.currentTimeMillis();
+		}
+
+		public void submit(DownloadTask task, long cost) throws InterruptedException, IOException
+		{
+			task.cost = cost;
+			submittedCost += cost;
+
+			submit(task);
+		}
+
+		/**
+		 * Успеем ли сделать еще задачу с такой оценкой до deadline
+		 * вместе с уже поставленными. Пока ни одна задача не сделана,
+		 * скорость неизвестна, и задачи ставятся до самого deadline.
+		 */
+		public boolean fits(long cost, long deadline)
+		{
+			long currentTime = System.currentTimeMillis();
+
+			if(currentTime >= deadline)
+			{
+				return false;
+			}
+			else if(completedCost == 0)
+			{
+				return true;
+			}
 
-					for(int tries = 0; tries < 5 && !progress.isCancelled(); tries++)
+			double rate = (double)completedCost / Math.max(currentTime - startTime, 1);
+
+			return (submittedCost - completedCost + cost) / rate <= deadline - currentTime;
+		}
+
+		public void drain() throws InterruptedException, IOException
+		{
+			while(inFlight > 0 || !deferred.isEmpty())
+			{
+				super.drain();
+
+				if(!deferred.isEmpty())
+				{
+					progress.println("Retrying " + deferred.size() + " failed request(s)...");
+
+					ArrayList<DownloadTask> tasks = new ArrayList(deferred);
+					deferred.clear();
+
+					for(DownloadTask task : tasks)
 					{
-						try
-						{
-							InputStream is = Util.openConnection(request);
-							progress.setOperationProgress(1);
-							
-							handler.parsed = false;
-							handler.error = null;
-
-							parser.parse(is, handler);
-							progress.setOperationProgress(2);
-
-							is.close();
-							progress.setOperationProgress(0);
-
-							if(handler.parsed)
-							{
-								break;
-							}
-							else if(handler.error != null)
-							{
-								throw handler.error;
-							}
-							else
-							{
-								throw new IOException("empty result");
-							}
-						}
-						catch(Throwable ex)
-						{
-							progress.showErrMsg(ex);
-
-							try
-							{
-								Thread.sleep(ex instanceof WikiException ? 500 : 5000);
-							}
-							catch(InterruptedException ie)
-							{
-							}
-						}
+						submit(task);
 					}
 				}
-				while(handler.queryContinuePair != null && !progress.isCancelled());
+			}
+		}
 
-				boolean inflated = false;
+		/**
+		 * Сохранить страницы готовой задачи или отложить ее до повтора.
+		 */
+		protected void completed(DownloadTask task) throws IOException
+		{
+			if(task.deferred)
+			{
+				task.requeues++;
+				deferred.add(task);
+			}
+			else
+			{
+				if(task.indexInvalidated)
+				{
+					project.invalidateIndex();
+				}
 
-				for(WikiRevision rv : page.listRevisions())
+				for(WikiPage page : task.pages)
 				{
-					/*
-					 * Текст обновляется только для новых.
-					 * Существующие мы пропускаем в парсере.
-					 */
+					page.unload(true);
+				}
+
+				processedPages += task.pages.size();
+				progress.setProjectProgress(processedPages);
+
+				completedCost += task.cost;
+			}
+		}
+	}
+
+	/**
+	 * Загрузка одной страницы или пачки страниц.
+	 *
+	 * Если какой-то запрос так и не прошел, задача откладывается (deferred)
+	 * со страницами в памяти и потом выполняется заново; уже полученные
+	 * ревизии при этом пропускаются парсером. После MAX_REQUEUES повторов
+	 * полученное сохраняется, но страница остается неактуальной.
+	 */
+	protected static class DownloadTask implements Callable<DownloadTask>
+	{
+		public static final int MAX_REQUEUES = 2;
+
+		protected final Project project;
+		protected final ArrayList<WikiPage> pages;
+		protected final ArrayList<String> updateLimits;
+		protected final File dir;
 
-					if(rv.isTouched() && rv.hasText()) // мы таки обновили текст
+		protected final BlockingQueue<SAXParser> parsers;
+		protected final ProgressMonitor progress;
+
+		protected final int pagesPerRequest;
+		protected final boolean requestImageInfo;
+
+		protected boolean indexInvalidated;
+
+		protected long cost = 0;
+
+		protected int requeues = 0;
+		protected boolean failed;
+		protected boolean deferred;
+
+		/**
+		 * Последние ревизии страниц пачки до первой попытки.
+		 */
+		protected int[] newest;
+
+		public DownloadTask(Project project, ArrayList<WikiPage> pages, ArrayList<String> updateLimits, File dir, BlockingQueue<SAXParser> parsers, ProgressMonitor progress, int pagesPerRequest, boolean requestImageInfo)
+		{
+			this.project = project;
+			this.pages = pages;
+			this.updateLimits = updateLimits;
+			this.dir = dir;
+			this.parsers = parsers;
+			this.progress = progress;
+			this.pagesPerRequest = pagesPerRequest;
+			this.requestImageInfo = requestImageInfo;
+		}
+
+		public DownloadTask call() throws Exception
+		{
+			SAXParser parser = parsers.take();
+
+			failed = false;
+			deferred = false;
+
+			try
+			{
+				if(pages.size() > 1)
+				{
+					requestBatch(parser);
+				}
+				else
+				{
+					PageContentParser handler = new PageContentParser(project, pages.get(0));
+
+					failed = !requestContents(project, pages.get(0), handler, parser, progress, pagesPerRequest, requestImageInfo, updateLimits.get(0));
+					indexInvalidated |= handler.indexInvalidated;
+				}
+
+				if(failed && requeues < MAX_REQUEUES && !progress.isCancelled())
+				{
+					deferred = true;
+					return this;
+				}
+
+				for(WikiPage page : pages)
+				{
+					storeContents(page, dir);
+
+					if(failed)
 					{
-						if(!inflated)
-						{
-							if(page.hasZipName())
-							{
-								page.inflate(new File(dir, page.getZipName().replace('/', File.separatorChar)), WikiPage.INFLATE_ALL);
-							}
-
-							inflated = true;
-						}
-
-						/*
-						 * Вот этот setText() потребует затем вызова deflate().
-						 * А перед вызовом deflate() обязательно должен идти inflate().
-						 */
-
-						rv.setText(rv.getText().replace("\r\n", "\n").replace("\n", "\r\n"));
+						page.setActual(false);
 					}
+				}
+			}
+			finally
+			{
+				parsers.put(parser);
+			}
 
-					rv.setTouched(false);
+			return this;
+		}
+
+		/**
+		 * Запросить последние ревизии всех страниц пачки одним запросом,
+		 * а страницы, у которых есть более старые незагруженные ревизии,
+		 * догрузить по одной.
+		 */
+		protected void requestBatch(SAXParser parser)
+		{
+			if(newest == null)
+			{
+				newest = new int[pages.size()];
+
+				for(int i = 0; i < newest.length; i++)
+				{
+					newest[i] = pages.get(i).getNewestRevisionID();
 				}
+			}
+
+			StringBuilder ids = new StringBuilder();
 
-				if(inflated)
+			for(int i = 0; i < newest.length; i++)
+			{
+				if(i > 0)
 				{
-					String zipname = page.getZipName();
-					page.deflate(new File(dir, zipname.replace('/', File.separatorChar)));
-					page.setZipName(zipname);
+					ids.append('|');
 				}
 
-				page.setActual(true);
-				page.unload(true);
-				
-				progress.setProjectProgress(currentPage);
+				ids.append(pages.get(i).getID());
+			}
 
-				currentTime = System.currentTimeMillis();
+			PageContentParser handler = new PageContentParser(project, pages);
 
-				if(progress.isCancelled())
+			String request = project.getBaseURL() +
+							 "api.php?format=xml&action=query&prop=revisions" +
+							 "&rvprop=ids|timestamp|user|comment|content" +
+							 "&pageids=" + Util.encodeURL(ids.toString());
+
+			failed = !requestContents(request, handler, parser, progress);
+			indexInvalidated |= handler.indexInvalidated;
+
+			if(failed)
+			{
+				return;
+			}
+
+			for(int i = 0; i < newest.length && !progress.isCancelled(); i++)
+			{
+				WikiPage page = pages.get(i);
+
+				if(!page.isMissing() && !isComplete(page, newest[i]))
 				{
-					break;
+					progress.println("... " + page.getTitle());
+
+					handler = new PageContentParser(project, page);
+					failed |= !requestContents(project, page, handler, parser, progress, pagesPerRequest, requestImageInfo, updateLimits.get(i));
+
+					indexInvalidated |= handler.indexInvalidated;
 				}
-				else if(currentTime >= projectSaveTime)
+			}
+		}
+
+		/**
+		 * Сходится ли последняя полученная ревизия с тем, что уже было.
+		 *
+		 * @param previous последняя ревизия страницы до запроса, -1 если их не было
+		 */
+		protected static boolean isComplete(WikiPage page, int previous)
+		{
+			WikiRevision rv = page.getRevision(page.getNewestRevisionID());
+
+			if(rv == null)
+			{
+				return false;
+			}
+			else if(rv.getID() == previous)
+			{
+				return true;
+			}
+			else if(previous < 0)
+			{
+				return !rv.hasParent();
+			}
+			else
+			{
+				return rv.getParentID() == previous;
+			}
+		}
+	}
+
+	/**
+	 * Вывести строку о странице в лог.
+	 *
+	 * @return ограничение запроса для уже загруженных страниц
+	 */
+	protected static String announcePage(WikiPage page, int currentPage, int totalPages, ProgressMonitor progress)
+	{
+		String prefix = "[" + currentPage + "/" + totalPages + "]";
+
+		switch(page.getDownloadStatus())
+		{
+			case WikiPage.REQUIRES_DOWNLOAD:
+				progress.println(prefix + "[+] " + page.getTitle());
+				return "";
+
+			default:
+			case WikiPage.PARTIALLY_DOWNLOADED:
+				progress.println(prefix + "[#] " + page.getTitle());
+				return "";
+
+			case WikiPage.DOWNLOADED:
+				progress.println(prefix + "[*] " + page.getTitle());
+				return "&rvendid=" + page.getNewestRevisionID();
+		}
+	}
+
+	protected static boolean requestContents(Project project, WikiPage page, PageContentParser handler, SAXParser parser, ProgressMonitor progress, int pagesPerRequest, boolean requestImageInfo, String updateLimit)
+	{
+		String request = project.getBaseURL() +
+						 "api.php?format=xml&action=query" +
+						 (requestImageInfo ? "&prop=revisions|imageinfo" : "&prop=revisions") +
+						 "&rvprop=ids|timestamp|user|comment|content" +
+						 "&iiprop=timestamp|user|comment|url|archivename" +
+						 "&rvlimit=" + pagesPerRequest +
+						 "&iilimit=" + pagesPerRequest +
+						 "&pageids=" + page.getID() +
+						 "&rvdir=older" + updateLimit;
+
+		return requestContents(request, handler, parser, progress);
+	}
+
+	/**
+	 * Выполнить запрос со всеми продолжениями.
+	 *
+	 * @return false, если какой-то из запросов так и не прошел
+	 */
+	protected static boolean requestContents(String baseRequest, final PageContentParser handler, final SAXParser parser, ProgressMonitor progress)
+	{
+		do
+		{
+			String request = baseRequest;
+
+			if(handler.queryContinuePair != null)
+			{
+				progress.println("... revision " + handler.queryContinueFrom);
+
+				request += "&" + handler.queryContinuePair;
+
+				handler.queryContinuePair = null;
+				handler.queryContinueFrom = null;
+			}
+
+			boolean success = RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
+			{
+				public void handleResponse(InputStream is) throws Exception
 				{
-					System.gc();
-					project.write(progress);
-					projectSaveTime = currentTime + projectSaveInterval;
+					handler.parsed = false;
+					handler.error = null;
+
+					parser.parse(is, handler);
+
+					if(handler.parsed)
+					{
+						return;
+					}
+					else if(handler.error != null)
+					{
+						throw handler.error;
+					}
+					else
+					{
+						throw new IOException("empty result");
+					}
 				}
+			});
+
+			if(!success)
+			{
+				return false;
 			}
-			
-			if(progress.isCancelled())
+		}
+		while(handler.queryContinuePair != null && !progress.isCancelled());
+
+		return true;
+	}
+
+	/**
+	 * Сложить загруженный текст ревизий в архив страницы.
+	 */
+	protected static void storeContents(WikiPage page, File dir) throws IOException
+	{
+		boolean updated = false;
+
+		for(WikiRevision rv : page.listRevisions())
+		{
+			/*
+			 * Текст обновляется только для новых.
+			 * Существующие мы пропускаем в парсере.
+			 */
+
+			if(rv.isTouched() && rv.hasText()) // мы таки обновили текст
 			{
-				break;
+				rv.setText(rv.getText().replace("\r\n", "\n").replace("\n", "\r\n"));
+				updated = true;
 			}
+
+			rv.setTouched(false);
+		}
+
+		if(updated && (page.isPacked() || (!page.hasZipName() && page.getProject().hasRevisionStore())))
+		{
+			/*
+			 * В проекте с RevisionStore новые страницы
+			 * сразу сохраняются туда, а не в ZIP.
+			 */
+
+			page.pack();
 		}
+		else if(updated)
+		{
+			String zipname = page.getZipName();
+			File file = new File(dir, zipname.replace('/', File.separatorChar));
+
+			boolean appended = false;
+
+			if(page.hasZipName() && file.isFile())
+			{
+				/*
+				 * Обычно новые ревизии просто дописываются в архив,
+				 * и старые при этом не распаковываются.
+				 */
+
+				try
+				{
+					page.append(file);
+					appended = true;
+				}
+				catch(IOException ex)
+				{
+					appended = false;
+				}
+			}
+
+			if(!appended)
+			{
+				/*
+				 * deflate() пишет архив заново, поэтому
+				 * перед ним обязательно должен идти inflate().
+				 */
+
+				if(page.hasZipName())
+				{
+					page.inflate(file, WikiPage.INFLATE_ALL);
+				}
+
+				page.deflate(file);
+			}
+
+			page.setZipName(zipname);
+		}
+
+		page.setActual(true);
 	}
-	
+
 	protected static final int MODE_NULL = 0;
 	protected static final int MODE_PAGE = 1;
 	protected static final int MODE_REVISION = 2;
@@ -246,6 +721,7 @@ public class PageContentParser extends DefaultHandler
 	
 	protected Project project;
 	protected WikiPage page;
+	protected HashMap<Integer, WikiPage> pages;
 	protected WikiRevision revision;
 	
 	protected StringBuilder buf;
@@ -257,6 +733,8 @@ public class PageContentParser extends DefaultHandler
 	public boolean parsed = false;
 	public WikiException error = null;
 	
+	public boolean indexInvalidated = false;
+	
 	protected boolean hasRevisions;
 	protected boolean hasImages;
 	
@@ -268,13 +746,35 @@ public class PageContentParser extends DefaultHandler
 		buf = new StringBuilder();
 	}
 	
+	/**
+	 * Разбор ответа сразу по нескольким страницам.
+	 * Элементы page раскладываются по страницам согласно pageid.
+	 */
+	public PageContentParser(Project project, Collection<WikiPage> pages)
+	{
+		this.project = project;
+		this.pages = new HashMap();
+		
+		for(WikiPage p : pages)
+		{
+			this.pages.put(p.getID(), p);
+		}
+		
+		buf = new StringBuilder();
+	}
+	
 	public void startElement(String uri, String localName, String qName, Attributes attributes)
 	{
 		if(qName.equals("page"))
 		{
 			int id = Integer.parseInt(attributes.getValue("pageid"));
 			
-			if(id == page.getID())
+			if(pages != null)
+			{
+				page = pages.get(id);
+			}
+			
+			if(page != null && id == page.getID())
 			{
 				page.setMissing(attributes.getValue("missing") != null);
 				
@@ -283,7 +783,7 @@ public class PageContentParser extends DefaultHandler
 					page.setTitle(attributes.getValue("title"));
 					page.setNS(Integer.parseInt(attributes.getValue("ns")));
 					
-					project.invalidateIndex();
+					indexInvalidated = true;
 				}
 				
 				mode = MODE_PAGE;
@@ -397,7 +897,13 @@ public class PageContentParser extends DefaultHandler
 	{
 		if(qName.equals("page") || qName.equals("query-continue"))
 		{
-			if(mode == MODE_PAGE && !(hasRevisions || hasImages))
+			/*
+			 * В пачке страница без ревизий в продолжении ответа
+			 * еще не значит, что ее нет: ревизии могли прийти раньше.
+			 * Такие страницы потом догружаются по одной.
+			 */
+			
+			if(mode == MODE_PAGE && !(hasRevisions || hasImages) && pages == null)
 			{
 				page.setMissing(true);
 			}
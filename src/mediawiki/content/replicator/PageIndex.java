@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Список страниц проекта в виде колонок.
+ *
+ * Строки отсортированы по id страницы. Колонки id, ns, offset и длины записи
+ * имеют фиксированную ширину, заголовки лежат одной кучей в UTF-8
+ * и превращаются в String только при создании WikiPage для строки.
+ *
+ * Формат в индексе проекта:
+ * int count, int[count] id, int[count] ns, long[count] offset,
+ * int[count] длина записи, int[count + 1] начало заголовка в куче, byte[] куча.
+ */
+public class PageIndex
+{
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected int count;
+
+	protected int[] ids;
+	protected int[] namespaces;
+	protected long[] offsets;
+	protected int[] lengths;
+
+	protected int[] titleStart;
+	protected byte[] titles;
+
+	/**
+	 * (хеш заголовка << 32) | номер строки, по возрастанию.
+	 * Строится при первом поиске по заголовку.
+	 */
+	protected long[] titleKeys;
+
+	protected PageIndex()
+	{
+	}
+
+	public PageIndex(Collection<WikiPage> pages)
+	{
+		WikiPage[] sorted = pages.toArray(new WikiPage[pages.size()]);
+
+		Arrays.sort(sorted, new Comparator<WikiPage>()
+		{
+			public int compare(WikiPage a, WikiPage b)
+			{
+				return a.getID() < b.getID() ? -1 : (a.getID() == b.getID() ? 0 : 1);
+			}
+		});
+
+		count = sorted.length;
+
+		ids = new int[count];
+		namespaces = new int[count];
+		offsets = new long[count];
+		lengths = new int[count];
+		titleStart = new int[count + 1];
+
+		byte[][] encoded = new byte[count][];
+		int heap = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			ids[i] = sorted[i].getID();
+			namespaces[i] = sorted[i].getNS();
+			offsets[i] = sorted[i].getOffset();
+			lengths[i] = sorted[i].getRecordLength();
+
+			encoded[i] = sorted[i].getTitle().getBytes(UTF8);
+
+			titleStart[i] = heap;
+			heap += encoded[i].length;
+		}
+
+		titleStart[count] = heap;
+		titles = new byte[heap];
+
+		for(int i = 0; i < count; i++)
+		{
+			System.arraycopy(encoded[i], 0, titles, titleStart[i], encoded[i].length);
+		}
+	}
+
+	public static PageIndex read(DataInput dis) throws IOException
+	{
+		PageIndex index = new PageIndex();
+
+		index.count = dis.readInt();
+
+		index.ids = new int[index.count];
+		index.namespaces = new int[index.count];
+		index.offsets = new long[index.count];
+		index.lengths = new int[index.count];
+		index.titleStart = new int[index.count + 1];
+
+		readColumn(dis, index.count * 4).asIntBuffer().get(index.ids);
+		readColumn(dis, index.count * 4).asIntBuffer().get(index.namespaces);
+		readColumn(dis, index.count * 8).asLongBuffer().get(index.offsets);
+		readColumn(dis, index.count * 4).asIntBuffer().get(index.lengths);
+		readColumn(dis, (index.count + 1) * 4).asIntBuffer().get(index.titleStart);
+
+		index.titles = new byte[index.titleStart[index.count]];
+		dis.readFully(index.titles);
+
+		return index;
+	}
+
+	protected static ByteBuffer readColumn(DataInput dis, int size) throws IOException
+	{
+		byte[] column = new byte[size];
+		dis.readFully(column);
+
+		return ByteBuffer.wrap(column);
+	}
+
+	public void write(DataOutput dos) throws IOException
+	{
+		dos.writeInt(count);
+
+		ByteBuffer column = ByteBuffer.allocate(count * 4);
+		column.asIntBuffer().put(ids);
+		dos.write(column.array());
+
+		column.clear();
+		column.asIntBuffer().put(namespaces);
+		dos.write(column.array());
+
+		column = ByteBuffer.allocate(count * 8);
+		column.asLongBuffer().put(offsets);
+		dos.write(column.array());
+
+		column = ByteBuffer.allocate(count * 4);
+		column.asIntBuffer().put(lengths);
+		dos.write(column.array());
+
+		column = ByteBuffer.allocate((count + 1) * 4);
+		column.asIntBuffer().put(titleStart);
+		dos.write(column.array());
+
+		dos.write(titles);
+	}
+
+	/**
+	 * Перенести в колонки положение записей уже созданных страниц.
+	 * Заголовки и пространства имен у них не менялись:
+	 * иначе Project уже отказался бы от колоночного индекса.
+	 */
+	public void update(IntHashMap<WikiPage> pages)
+	{
+		for(WikiPage page : pages.values())
+		{
+			int row = findID(page.getID());
+
+			if(row >= 0)
+			{
+				offsets[row] = page.getOffset();
+				lengths[row] = page.getRecordLength();
+			}
+		}
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public int getID(int row)
+	{
+		return ids[row];
+	}
+
+	public int getRecordLength(int row)
+	{
+		return lengths[row];
+	}
+
+	public long getOffset(int row)
+	{
+		return offsets[row];
+	}
+
+	public String getTitle(int row)
+	{
+		return new String(titles, titleStart[row], titleStart[row + 1] - titleStart[row], UTF8);
+	}
+
+	public WikiPage createPage(int row)
+	{
+		WikiPage page = new WikiPage(ids[row], namespaces[row]);
+
+		page.setOffset(offsets[row]);
+		page.setRecordLength(lengths[row]);
+		page.setTitle(getTitle(row));
+
+		return page;
+	}
+
+	public int findID(int id)
+	{
+		int row = Arrays.binarySearch(ids, 0, count, id);
+		return row >= 0 ? row : -1;
+	}
+
+	public int findTitle(String title)
+	{
+		if(titleKeys == null)
+		{
+			titleKeys = new long[count];
+
+			for(int i = 0; i < count; i++)
+			{
+				titleKeys[i] = ((long)hash(titles, titleStart[i], titleStart[i + 1]) << 32) | i;
+			}
+
+			Arrays.sort(titleKeys);
+		}
+
+		byte[] key = title.getBytes(UTF8);
+		long hash = (long)hash(key, 0, key.length) << 32;
+
+		/*
+		 * Ищем первую строку с таким хешем и перебираем все совпадения.
+		 */
+
+		int pos = Arrays.binarySearch(titleKeys, hash);
+
+		if(pos < 0)
+		{
+			pos = -pos - 1;
+		}
+
+		for(; pos < count && (titleKeys[pos] & 0xFFFFFFFF00000000L) == hash; pos++)
+		{
+			int row = (int)titleKeys[pos];
+
+			if(equals(key, row))
+			{
+				return row;
+			}
+		}
+
+		return -1;
+	}
+
+	public int countNamespace(int ns)
+	{
+		int result = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			if(namespaces[i] == ns)
+			{
+				result++;
+			}
+		}
+
+		return result;
+	}
+
+	protected boolean equals(byte[] key, int row)
+	{
+		int start = titleStart[row];
+
+		if(titleStart[row + 1] - start != key.length)
+		{
+			return false;
+		}
+
+		for(int i = 0; i < key.length; i++)
+		{
+			if(titles[start + i] != key[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a по байтам заголовка, без знака, чтобы ключи сортировались по хешу.
+	 */
+	protected static int hash(byte[] data, int start, int end)
+	{
+		int hash = 0x811C9DC5;
+
+		for(int i = start; i < end; i++)
+		{
+			hash ^= data[i] & 0xFF;
+			hash *= 0x01000193;
+		}
+
+		return hash >>> 1;
+	}
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Распаковка bzip2 на нескольких потоках.
+ *
+ * Сжатые данные просматриваются побитно в поисках 48-битных меток
+ * начала блока (0x314159265359) и конца потока (0x177245385090)
+ * и режутся по ним на смежные куски. Каждый кусок с блоком
+ * оборачивается в отдельный поток bzip2 из одного блока и распаковывается
+ * в пуле потоков обычным BZip2CompressorInputStream, который заодно
+ * проверяет CRC блока. Результаты отдаются по порядку, а на метке
+ * конца потока сверяется общий CRC. Файлы из нескольких склеенных
+ * потоков читаются до конца, как это делает bzip2.
+ *
+ * Метка блока может случайно встретиться внутри сжатых данных.
+ * Тогда кусок до нее не распакуется, и он склеивается со следующими
+ * кусками, пока не распакуется или не станет больше MAX_PIECE_SIZE.
+ *
+ * В обработке одновременно не больше threads * 2 кусков.
+ */
+public class ParallelBZip2InputStream extends InputStream
+{
+	protected static final long BLOCK_MAGIC = 0x314159265359L;
+	protected static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * С запасом больше самого большого сжатого блока 900k.
+	 */
+	protected static final int MAX_PIECE_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Смежный отрезок сжатых данных, начинающийся с метки.
+	 * data содержит байты отрезка, первый бит - data[0] со сдвигом offset.
+	 */
+	protected static class Piece
+	{
+		public byte[] data;
+		public int offset;
+		public long length;
+		public boolean end;
+
+		public long readBits(long pos, int n)
+		{
+			long result = 0;
+			pos += offset;
+
+			for(int i = 0; i < n; i++, pos++)
+			{
+				result = (result << 1) | ((data[(int)(pos >>> 3)] >>> (7 - (int)(pos & 7))) & 1);
+			}
+
+			return result;
+		}
+
+		/**
+		 * Кусок, за которым непосредственно следует next.
+		 */
+		public Piece append(Piece next)
+		{
+			Piece piece = new Piece();
+
+			/*
+			 * Если граница не на байте, последний байт этого куска
+			 * и первый байт следующего - один и тот же байт файла.
+			 */
+
+			int skip = (offset + length) % 8 != 0 ? 1 : 0;
+
+			piece.data = Arrays.copyOf(data, data.length + next.data.length - skip);
+			System.arraycopy(next.data, skip, piece.data, data.length, next.data.length - skip);
+
+			piece.offset = offset;
+			piece.length = length + next.length;
+			piece.end = end;
+
+			return piece;
+		}
+	}
+
+	/**
+	 * Распакованный блок и его CRC.
+	 */
+	protected static class Block
+	{
+		public byte[] data;
+		public int crc;
+	}
+
+	protected static class Entry
+	{
+		public Piece piece;
+		public Future<Block> block;
+	}
+
+	protected InputStream in;
+
+	protected ExecutorService executor;
+	protected ArrayDeque<Entry> queue;
+	protected int window;
+
+	/**
+	 * Сжатые данные: input[0] - это байт файла с номером inputStart,
+	 * просмотрено все до scanned.
+	 */
+	protected byte[] input;
+	protected int inputLength;
+	protected long inputStart;
+	protected long scanned;
+	protected boolean inputEnded;
+
+	protected long register;
+
+	/** начало текущего куска в битах, -1 пока первая метка не найдена */
+	protected long pieceStart;
+	protected boolean pieceEnd;
+
+	protected int combinedCRC;
+	protected boolean streamEnded;
+
+	protected byte[] block;
+	protected int position;
+
+	public ParallelBZip2InputStream(InputStream in, int threads) throws IOException
+	{
+		if(threads < 1)
+		{
+			throw new IllegalArgumentException("threads(" + threads + ") < 1");
+		}
+
+		this.in = in;
+
+		input = new byte[64 * 1024];
+		inputLength = 0;
+		inputStart = 0;
+		scanned = 0;
+		inputEnded = false;
+
+		register = 0;
+
+		pieceStart = -1;
+		pieceEnd = false;
+
+		while(inputLength < 4 && fill())
+		{
+		}
+
+		if(inputLength < 4 || input[0] != 'B' || input[1] != 'Z' || input[2] != 'h')
+		{
+			throw new IOException("Stream is not in the BZip2 format");
+		}
+
+		executor = Util.createDaemonPool(threads);
+		queue = new ArrayDeque();
+		window = threads * 2;
+
+		combinedCRC = 0;
+		streamEnded = false;
+
+		block = new byte[0];
+		position = 0;
+	}
+
+	public int read() throws IOException
+	{
+		if(position == block.length && !nextBlock())
+		{
+			return -1;
+		}
+
+		return block[position++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+		{
+			return 0;
+		}
+
+		if(position == block.length && !nextBlock())
+		{
+			return -1;
+		}
+
+		len = Math.min(len, block.length - position);
+		System.arraycopy(block, position, b, off, len);
+
+		position += len;
+
+		return len;
+	}
+
+	public void close() throws IOException
+	{
+		if(in != null)
+		{
+			executor.shutdownNow();
+			queue.clear();
+
+			in.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Перейти к следующему распакованному блоку.
+	 *
+	 * @return false, если данные кончились
+	 */
+	protected boolean nextBlock() throws IOException
+	{
+		if(in == null)
+		{
+			throw new IOException("stream closed");
+		}
+
+		while(true)
+		{
+			Entry entry = poll();
+
+			if(entry == null)
+			{
+				if(!streamEnded)
+				{
+					throw new IOException("unexpected end of BZip2 stream");
+				}
+
+				return false;
+			}
+
+			Piece piece = entry.piece;
+
+			if(piece.end)
+			{
+				if(piece.length < 80 || (int)piece.readBits(48, 32) != combinedCRC)
+				{
+					throw new IOException("BZip2 CRC error");
+				}
+
+				combinedCRC = 0;
+				streamEnded = true;
+
+				continue;
+			}
+
+			Block result;
+
+			try
+			{
+				result = entry.block.get();
+			}
+			catch(InterruptedException ex)
+			{
+				throw new IOException(ex);
+			}
+			catch(ExecutionException ex)
+			{
+				result = recover(piece, ex.getCause());
+			}
+
+			combinedCRC = (combinedCRC << 1) | (combinedCRC >>> 31);
+			combinedCRC ^= result.crc;
+
+			block = result.data;
+			streamEnded = false;
+			position = 0;
+
+			if(block.length > 0)
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Кусок не распаковался: вероятно, он обрезан ложной меткой.
+	 * Склеиваем его со следующими и пробуем снова.
+	 * Склеенный кусок заменяет собой все вошедшие в него.
+	 */
+	protected Block recover(Piece piece, Throwable error) throws IOException
+	{
+		while(true)
+		{
+			Entry next = poll();
+
+			if(next == null || piece.data.length > MAX_PIECE_SIZE)
+			{
+				if(error instanceof IOException)
+				{
+					throw (IOException)error;
+				}
+
+				throw new IOException(error);
+			}
+
+			if(next.block != null)
+			{
+				next.block.cancel(true);
+			}
+
+			piece = piece.append(next.piece);
+
+			try
+			{
+				return decode(piece);
+			}
+			catch(IOException ex)
+			{
+				error = ex;
+			}
+		}
+	}
+
+	/**
+	 * Следующий кусок по порядку; очередь при этом пополняется до window.
+	 */
+	protected Entry poll() throws IOException
+	{
+		while(queue.size() <= window && scan())
+		{
+		}
+
+		return queue.poll();
+	}
+
+	/**
+	 * Просмотреть данные до конца очередного куска.
+	 *
+	 * @return false, если данные кончились
+	 */
+	protected boolean scan() throws IOException
+	{
+		while(true)
+		{
+			if(scanned == inputStart + inputLength && !fill())
+			{
+				if(pieceStart >= 0)
+				{
+					closePiece(scanned * 8);
+					pieceStart = -1;
+
+					return true;
+				}
+
+				return false;
+			}
+
+			register = (register << 8) | (input[(int)(scanned - inputStart)] & 0xFF);
+			scanned++;
+
+			boolean closed = false;
+
+			for(int shift = 7; shift >= 0; shift--)
+			{
+				long magic = (register >>> shift) & 0xFFFFFFFFFFFFL;
+
+				if(magic != BLOCK_MAGIC && magic != END_MAGIC)
+				{
+					continue;
+				}
+
+				long pos = scanned * 8 - shift - 48;
+
+				if(pos < 0 || (pieceStart >= 0 && pos < pieceStart + 48))
+				{
+					continue;
+				}
+
+				if(pieceStart >= 0)
+				{
+					closePiece(pos);
+					closed = true;
+				}
+
+				pieceStart = pos;
+				pieceEnd = magic == END_MAGIC;
+			}
+
+			if(closed)
+			{
+				return true;
+			}
+		}
+	}
+
+	protected void closePiece(long end)
+	{
+		final Piece piece = new Piece();
+
+		piece.data = Arrays.copyOfRange(input, (int)((pieceStart >>> 3) - inputStart), (int)(((end + 7) >>> 3) - inputStart));
+		piece.offset = (int)(pieceStart & 7);
+		piece.length = end - pieceStart;
+		piece.end = pieceEnd;
+
+		Entry entry = new Entry();
+		entry.piece = piece;
+
+		if(!piece.end)
+		{
+			entry.block = executor.submit(new Callable<Block>()
+			{
+				public Block call() throws Exception
+				{
+					return decode(piece);
+				}
+			});
+		}
+
+		queue.add(entry);
+	}
+
+	/**
+	 * Дочитать сжатые данные в буфер, выбросив то, что уже не понадобится.
+	 *
+	 * @return false, если данные кончились
+	 */
+	protected boolean fill() throws IOException
+	{
+		if(inputEnded)
+		{
+			return false;
+		}
+
+		long keep = pieceStart >= 0 ? pieceStart >>> 3 : scanned;
+
+		if(scanned - keep > MAX_PIECE_SIZE)
+		{
+			throw new IOException("BZip2 block is too large");
+		}
+
+		int discard = (int)(keep - inputStart);
+
+		if(discard > 0)
+		{
+			System.arraycopy(input, discard, input, 0, inputLength - discard);
+
+			inputLength -= discard;
+			inputStart = keep;
+		}
+
+		if(inputLength == input.length)
+		{
+			input = Arrays.copyOf(input, input.length * 2);
+		}
+
+		int len = in.read(input, inputLength, input.length - inputLength);
+
+		if(len < 0)
+		{
+			inputEnded = true;
+			return false;
+		}
+
+		inputLength += len;
+
+		return true;
+	}
+
+	/**
+	 * Распаковать кусок как поток bzip2 из одного блока:
+	 * "BZh9", биты куска, END_MAGIC и CRC блока в роли общего CRC.
+	 */
+	protected static Block decode(Piece piece) throws IOException
+	{
+		int bytes = (int)((piece.length + 7) >>> 3);
+		byte[] stream = new byte[4 + bytes + 11];
+
+		stream[0] = 'B';
+		stream[1] = 'Z';
+		stream[2] = 'h';
+		stream[3] = '9';
+
+		/*
+		 * Сдвигаем биты куска к границе байта.
+		 */
+
+		int shift = piece.offset;
+
+		for(int i = 0; i < bytes; i++)
+		{
+			int hi = piece.data[i] << shift;
+			int lo = shift > 0 && i + 1 < piece.data.length ? (piece.data[i + 1] & 0xFF) >>> (8 - shift) : 0;
+
+			stream[4 + i] = (byte)(hi | lo);
+		}
+
+		int tail = (int)(piece.length & 7);
+
+		if(tail > 0)
+		{
+			stream[3 + bytes] &= (byte)(0xFF << (8 - tail));
+		}
+
+		Block block = new Block();
+		block.crc = (int)piece.readBits(48, 32);
+
+		long pos = 32 + piece.length;
+
+		pos = putBits(stream, pos, END_MAGIC, 48);
+		putBits(stream, pos, block.crc, 32);
+
+		BZip2CompressorInputStream bzip = new BZip2CompressorInputStream(new ByteArrayInputStream(stream));
+
+		byte[] result = new byte[Math.max(1024, bytes * 4)];
+		int length = 0;
+
+		while(true)
+		{
+			if(length == result.length)
+			{
+				result = Arrays.copyOf(result, result.length * 2);
+			}
+
+			int len = bzip.read(result, length, result.length - length);
+
+			if(len < 0)
+			{
+				break;
+			}
+
+			length += len;
+		}
+
+		bzip.close();
+
+		block.data = Arrays.copyOf(result, length);
+
+		return block;
+	}
+
+	protected static long putBits(byte[] data, long pos, long value, int n)
+	{
+		for(int i = n - 1; i >= 0; i--, pos++)
+		{
+			if(((value >>> i) & 1) != 0)
+			{
+				data[(int)(pos >>> 3)] |= 0x80 >>> (int)(pos & 7);
+			}
+		}
+
+		return pos;
+	}
+}
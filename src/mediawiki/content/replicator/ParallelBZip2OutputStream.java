@@ -0,0 +1,411 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Сжатие bzip2 на нескольких потоках с выводом в один обычный поток .bz2.
+ *
+ * Входные данные режутся на куски так, чтобы после RLE каждый кусок
+ * гарантированно помещался в один блок 900k. Каждый кусок сжимается
+ * в пуле потоков обычным BZip2CompressorOutputStream, из результата
+ * вырезается единственный блок (без заголовка потока и концевика),
+ * и блоки дописываются в вывод по порядку, побитово, с пересчетом
+ * общего CRC потока. Получается один поток с одним заголовком "BZh9",
+ * такой же, как у однопоточного сжатия, и его читает любой bzip2.
+ *
+ * В обработке одновременно не больше threads * 2 кусков.
+ */
+public class ParallelBZip2OutputStream extends OutputStream
+{
+	protected static final int BLOCK_SIZE_100K = BZip2CompressorOutputStream.MAX_BLOCKSIZE;
+
+	/**
+	 * Столько же, сколько допускает BZip2CompressorOutputStream
+	 * (blockSize100k * 100000 - 20).
+	 */
+	protected static final int ALLOWABLE_BLOCK_SIZE = BLOCK_SIZE_100K * 100000 - 20;
+
+	protected static final long BLOCK_MAGIC = 0x314159265359L;
+	protected static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * Сжатый блок: данные потока из одного блока, конец блока в битах и CRC блока.
+	 */
+	protected static class CompressedBlock
+	{
+		public byte[] data;
+		public long end;
+		public int crc;
+	}
+
+	protected OutputStream out;
+
+	protected ExecutorService executor;
+	protected ArrayDeque<Future<CompressedBlock>> pending;
+	protected int window;
+
+	protected byte[] block;
+	protected int count;
+
+	/**
+	 * Учет RLE текущего куска, так же как в BZip2CompressorOutputStream.write0():
+	 * размер уже закрытых серий, байт и длина открытой серии.
+	 */
+	protected int encodedSize;
+	protected int runChar;
+	protected int runLength;
+
+	protected int combinedCRC;
+
+	protected byte[] buffer;
+	protected int position;
+	protected int bitBuffer;
+	protected int bitCount;
+
+	public ParallelBZip2OutputStream(OutputStream out, int threads) throws IOException
+	{
+		if(threads < 1)
+		{
+			throw new IllegalArgumentException("threads(" + threads + ") < 1");
+		}
+
+		this.out = out;
+
+		executor = Util.createDaemonPool(threads);
+		pending = new ArrayDeque();
+		window = threads * 2;
+
+		block = new byte[ALLOWABLE_BLOCK_SIZE];
+		count = 0;
+
+		encodedSize = 0;
+		runChar = -1;
+		runLength = 0;
+
+		combinedCRC = 0;
+
+		buffer = new byte[64 * 1024];
+		position = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+
+		putBits(8, 'B');
+		putBits(8, 'Z');
+		putBits(8, 'h');
+		putBits(8, '0' + BLOCK_SIZE_100K);
+	}
+
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	public void write(byte[] buf, int off, int len) throws IOException
+	{
+		if(out == null)
+		{
+			throw new IOException("stream closed");
+		}
+
+		for(int end = off + len; off < end; off++)
+		{
+			int b = buf[off] & 0xFF;
+
+			if(b == runChar && runLength < 255)
+			{
+				runLength++;
+			}
+			else
+			{
+				/*
+				 * Начинается новая серия. Она займет в блоке не больше 5 байт,
+				 * и если они уже не помещаются - кусок закрывается.
+				 */
+
+				int size = encodedSize + (runLength < 4 ? runLength : 5);
+
+				if(size + 5 > ALLOWABLE_BLOCK_SIZE)
+				{
+					submitBlock();
+					size = 0;
+				}
+
+				encodedSize = size;
+				runChar = b;
+				runLength = 1;
+			}
+
+			if(count == block.length)
+			{
+				block = Arrays.copyOf(block, block.length * 2);
+			}
+
+			block[count++] = (byte)b;
+		}
+	}
+
+	/**
+	 * Выводятся только целые байты уже сжатых блоков (по порядку,
+	 * до первого еще не сжатого); текущий кусок не закрывается,
+	 * чтобы не ухудшать сжатие.
+	 */
+	public void flush() throws IOException
+	{
+		if(out != null)
+		{
+			while(!pending.isEmpty() && pending.peek().isDone())
+			{
+				writeBlock(pending.poll());
+			}
+
+			out.write(buffer, 0, position);
+			position = 0;
+
+			out.flush();
+		}
+	}
+
+	/**
+	 * Дописать все блоки и концевик потока, не закрывая вывод.
+	 */
+	public void finish() throws IOException
+	{
+		if(out == null)
+		{
+			return;
+		}
+
+		try
+		{
+			submitBlock();
+
+			while(!pending.isEmpty())
+			{
+				writeBlock(pending.poll());
+			}
+
+			putBits(24, (int)(END_MAGIC >>> 24));
+			putBits(24, (int)(END_MAGIC & 0xFFFFFF));
+			putBits(16, combinedCRC >>> 16);
+			putBits(16, combinedCRC & 0xFFFF);
+
+			if(bitCount > 0)
+			{
+				putBits(8 - bitCount, 0);
+			}
+
+			out.write(buffer, 0, position);
+			position = 0;
+
+			out.flush();
+		}
+		finally
+		{
+			executor.shutdownNow();
+
+			pending.clear();
+			block = null;
+
+			out = null;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if(out != null)
+		{
+			OutputStream os = out;
+
+			try
+			{
+				finish();
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+	}
+
+	protected void submitBlock() throws IOException
+	{
+		if(count > 0)
+		{
+			final byte[] data = block;
+			final int length = count;
+
+			pending.add(executor.submit(new Callable<CompressedBlock>()
+			{
+				public CompressedBlock call() throws Exception
+				{
+					return compressBlock(data, length);
+				}
+			}));
+
+			block = new byte[ALLOWABLE_BLOCK_SIZE];
+			count = 0;
+		}
+
+		encodedSize = 0;
+		runChar = -1;
+		runLength = 0;
+
+		while(pending.size() > window)
+		{
+			writeBlock(pending.poll());
+		}
+	}
+
+	protected void writeBlock(Future<CompressedBlock> future) throws IOException
+	{
+		CompressedBlock cb;
+
+		try
+		{
+			cb = future.get();
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException(ex);
+		}
+		catch(ExecutionException ex)
+		{
+			if(ex.getCause() instanceof IOException)
+			{
+				throw (IOException)ex.getCause();
+			}
+
+			throw new IOException(ex.getCause());
+		}
+
+		combinedCRC = (combinedCRC << 1) | (combinedCRC >>> 31);
+		combinedCRC ^= cb.crc;
+
+		/*
+		 * Блок в данных начинается с 5-го байта, то есть выровнен,
+		 * а заканчивается в произвольном бите.
+		 */
+
+		long bits = cb.end - 32;
+		int index = 4;
+
+		for(; bits >= 8; bits -= 8)
+		{
+			putBits(8, cb.data[index++] & 0xFF);
+		}
+
+		if(bits > 0)
+		{
+			putBits((int)bits, (cb.data[index] & 0xFF) >>> (8 - bits));
+		}
+	}
+
+	/**
+	 * Дописать в вывод младшие n бит v (n <= 24).
+	 */
+	protected void putBits(int n, int v) throws IOException
+	{
+		bitBuffer = (bitBuffer << n) | v;
+		bitCount += n;
+
+		while(bitCount >= 8)
+		{
+			bitCount -= 8;
+
+			if(position == buffer.length)
+			{
+				out.write(buffer, 0, position);
+				position = 0;
+			}
+
+			buffer[position++] = (byte)(bitBuffer >>> bitCount);
+		}
+
+		bitBuffer &= (1 << bitCount) - 1;
+	}
+
+	/**
+	 * Сжать кусок в отдельный поток bzip2 и найти в нем границы блока.
+	 *
+	 * Поток из одного блока устроен так: "BZh9", 48 бит BLOCK_MAGIC,
+	 * 32 бита CRC блока, тело блока, 48 бит END_MAGIC, 32 бита общего CRC
+	 * (для одного блока он равен CRC блока) и до 7 нулевых бит выравнивания.
+	 * Если кусок вдруг занял больше одного блока, общий CRC не совпадет
+	 * с CRC первого блока, и это будет ошибкой.
+	 */
+	protected static CompressedBlock compressBlock(byte[] data, int length) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 3 + 1024);
+
+		BZip2CompressorOutputStream bzip = new BZip2CompressorOutputStream(baos, BLOCK_SIZE_100K);
+		bzip.write(data, 0, length);
+		bzip.finish();
+
+		CompressedBlock cb = new CompressedBlock();
+		cb.data = baos.toByteArray();
+
+		if(cb.data.length < 4 + 10 + 10 || readBits(cb.data, 32, 48) != BLOCK_MAGIC)
+		{
+			throw new IOException("unexpected bzip2 block layout");
+		}
+
+		cb.crc = (int)readBits(cb.data, 80, 32);
+
+		long total = (long)cb.data.length * 8;
+
+		for(int padding = 0; padding < 8; padding++)
+		{
+			long end = total - padding - 80;
+
+			if(readBits(cb.data, end, 48) == END_MAGIC
+					&& (int)readBits(cb.data, end + 48, 32) == cb.crc
+					&& readBits(cb.data, end + 80, padding) == 0)
+			{
+				cb.end = end;
+				return cb;
+			}
+		}
+
+		throw new IOException("unexpected bzip2 block layout");
+	}
+
+	/**
+	 * Прочитать n бит (n <= 48) начиная с бита pos, старшим битом вперед.
+	 */
+	protected static long readBits(byte[] data, long pos, int n)
+	{
+		long result = 0;
+
+		for(int i = 0; i < n; i++, pos++)
+		{
+			result = (result << 1) | ((data[(int)(pos >>> 3)] >>> (7 - (int)(pos & 7))) & 1);
+		}
+
+		return result;
+	}
+}
@@ -26,6 +26,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,11 +36,20 @@ import java.util.TreeMap;
 
 public class Project
 {
-	public static final int VERSION = 16;
+	public static final int VERSION = 21;
+	
+	/**
+	 * Доля мусора в файле данных, после которой при сохранении
+	 * проект переписывается целиком.
+	 */
+	public static final double COMPACTION_RATIO = 0.5;
 	
 	public static final String INDEX_FILE_NAME = "project.idx";
 	public static final String DATA_FILE_NAME = "project.dat";
+	public static final String JOURNAL_FILE_NAME = "project.jnl";
 	
+	public static final String PACKS_DIR = "packs/";
+
 	public static final String IMAGES_ACTUAL_DIR = "actual/";
 	public static final String IMAGES_ARCHIVE_DIR = "archive/";
 	
@@ -48,12 +59,24 @@ public class Project
 	private String targetURL = "";
 	private String localSiteRoot = "";
 	
+	/**
+	 * До какого момента (время правки в вики) изменения страниц
+	 * уже учтены в их флагах actual. Пустая строка - неизвестно.
+	 */
+	private String updateTimestamp = "";
+	
 	private int version = VERSION;
 	
 	private final TreeMap<String, WikiUser> users = new TreeMap();
 	private final TreeMap<Integer, WikiNamespace> namespaces = new TreeMap();
-	private final HashMap<Integer, WikiPage> pages = new HashMap();
-	private final TreeMap<Integer, WikiRename> renames = new TreeMap();
+	private final IntHashMap<WikiPage> pages = new IntHashMap();
+	
+	/**
+	 * Страницы, для которых еще не созданы WikiPage.
+	 * Пока он есть, pages содержит только часть страниц проекта.
+	 */
+	private PageIndex pageIndex;
+	private final IntSortedMap<WikiRename> renames = new IntSortedMap();
 	
 	private final HashMap<String, WikiPage> pagesByTitle = new HashMap();
 	private final HashMap<Integer, ArrayList<WikiPage>> pagesByNamespace = new HashMap();
@@ -64,24 +87,135 @@ public class Project
 	private File wikiDir;
 	private File imageDir;
 	private File imageArchiveDir;
+	private File packDir;
 	
 	private RandomAccessFile dataFile;
+	private ChannelDataInput dataInput;
+	private ProjectJournal journal;
+	private RevisionStore revisionStore;
 	
 	public Project(String path)
 	{
 		setBaseDir(path);
 	}
 	
+	/**
+	 * Сохранить проект.
+	 *
+	 * Файл данных пишется только дописыванием в конец (см. WikiPage.unload()),
+	 * поэтому обычно достаточно дописать еще не сохраненные страницы
+	 * и заменить индекс. Полная перезапись с выбросом мусора
+	 * делается, когда мусор превысит COMPACTION_RATIO от размера файла,
+	 * или если файл данных еще старого формата.
+	 */
 	public void write(ProgressMonitor progress)
+	{
+		File dataFile = new File(getProjectDir(), DATA_FILE_NAME);
+		
+		if(version == VERSION && dataFile.exists() && getGarbageSize() <= dataFile.length() * COMPACTION_RATIO)
+		{
+			writeIncremental(progress);
+		}
+		else
+		{
+			compact(progress);
+		}
+	}
+	
+	/**
+	 * Зафиксировать уже выгруженные страницы, не трогая индекс:
+	 * сбросить на диск RevisionStore и файл данных, а за ними
+	 * журнал (см. ProjectJournal).
+	 *
+	 * В отличие от write() ничего не выгружает и не переписывает,
+	 * поэтому годится для периодического сохранения прямо посреди
+	 * загрузки, пока задачи еще в работе. Несохраненные новые страницы
+	 * (которых еще нет в файле данных) и прочие изменения индекса
+	 * остаются до write().
+	 */
+	public void checkpoint(ProgressMonitor progress)
+	{
+		try
+		{
+			syncRevisionStore();
+			getDataFile().getChannel().force(false);
+			getJournal().sync();
+		}
+		catch(Throwable ex)
+		{
+			progress.showErrMsg(ex);
+		}
+	}
+	
+	/**
+	 * Дописать в файл данных новые страницы и атомарно заменить индекс.
+	 * Старый индекс до самой замены остается согласованным с файлом данных.
+	 * После замены журнал уже не нужен и очищается.
+	 */
+	public void writeIncremental(ProgressMonitor progress)
+	{
+		ProgressData progressPrevState = new ProgressData(progress);
+		
+		progress.print("Saving project...");
+		progress.initProgress(true, true, true);
+		progress.setProjectLimit(3);
+		
+		try
+		{
+			progress.setPageProgress(0);
+			progress.setPageLimit(pages.size());
+			
+			for(WikiPage page : pages.values())
+			{
+				if(page.isLoaded())
+				{
+					page.unload(page.getOffset() < 0);
+				}
+				
+				progress.progressPage(1);
+			}
+			
+			progress.progressProject(1);
+			
+			syncRevisionStore();
+			getDataFile().getChannel().force(false);
+			progress.progressProject(1);
+			
+			File indexFile = new File(getProjectDir(), INDEX_FILE_NAME);
+			File tempFile = new File(getProjectDir(), INDEX_FILE_NAME + ".tmp");
+			
+			writeIndex(tempFile, progress);
+			Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			getJournal().reset();
+			
+			progress.progressProject(1);
+			progress.println(" OK");
+		}
+		catch(Throwable ex)
+		{
+			progress.println(" ERROR");
+			progress.showErrMsg(ex);
+		}
+		
+		progressPrevState.restore(progress);
+	}
+	
+	/**
+	 * Полностью переписать проект, оставив в файле данных только живые записи.
+	 * Предыдущая версия проекта остается в каталоге резервной копии.
+	 */
+	public void compact(ProgressMonitor progress)
 	{
 		ProgressData progressPrevState = new ProgressData(progress);
 		
 		progress.print("Saving project...");
 		progress.initProgress(true, true, true);
-		progress.setProjectLimit(8);
+		progress.setProjectLimit(5);
 		
 		try
 		{
+			syncRevisionStore();
 			closeDataFile();
 
 			progress.progressProject(1);
@@ -105,51 +239,17 @@ public class Project
 			progress.progressProject(1);
 
 			File oldDataFile = new File(getProjectBackupDir(), DATA_FILE_NAME);
-			RandomAccessFile dataIn = oldDataFile.exists() ? new RandomAccessFile(oldDataFile, "r") : null;
+			
+			FileInputStream dataStream = oldDataFile.exists() ? new FileInputStream(oldDataFile) : null;
+			ChannelDataInput dataIn = dataStream != null ? new ChannelDataInput(dataStream.getChannel()) : null;
 
 			CounterOutputStream counter = new CounterOutputStream(new BufferedOutputStream(new FileOutputStream(new File(getProjectDir(), DATA_FILE_NAME))));
 			DataOutputStream dataOut = new DataOutputStream(counter);
 
-			DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(getProjectDir(), INDEX_FILE_NAME))));
-
-			indexOut.writeInt(VERSION);
-
-			indexOut.writeUTF(baseURL);
-			indexOut.writeUTF(targetURL);
-			indexOut.writeUTF(localSiteRoot);
-
-			progress.setPageProgress(0);
-			progress.setPageLimit(users.size());
-
-			indexOut.writeInt(users.size());
-
-			for(WikiUser user : users.values())
-			{
-				user.write(indexOut);
-				progress.progressPage(1);
-			}
-
-			progress.progressProject(1);
-
-			progress.setPageProgress(0);
-			progress.setPageLimit(namespaces.size());
-
-			indexOut.writeInt(namespaces.size());
-
-			for(WikiNamespace ns : namespaces.values())
-			{
-				ns.write(indexOut);
-				progress.progressPage(1);
-			}
-
-			progress.progressProject(1);
-
 			progress.setPageProgress(0);
-			progress.setPageLimit(pages.size());
-
-			indexOut.writeInt(pages.size());
+			progress.setPageLimit(countAllPages());
 
-			for(WikiPage page : pages.values())
+			for(WikiPage page : listPages())
 			{
 				if(dataIn != null && page.getOffset() >= 0)
 				{
@@ -159,41 +259,26 @@ public class Project
 				
 				long offset = counter.getCount();
 
-				indexOut.writeInt(page.getID());
-				indexOut.writeInt(page.getNS());
-				indexOut.writeLong(offset);
-				indexOut.writeUTF(page.getTitle());
-
 				page.write(dataOut);
 
 				page.unload(false);
 				page.setOffset(offset);
+				page.setRecordLength((int)(counter.getCount() - offset));
 
 				progress.progressPage(1);
 			}
 			
-			progress.progressProject(1);
-
-			progress.setPageProgress(0);
-			progress.setPageLimit(renames.size());
+			dataOut.close();
 
-			indexOut.writeInt(renames.size());
-			
-			for(WikiRename rename : renames.values())
+			if(dataStream != null)
 			{
-				rename.write(indexOut);
-				progress.progressPage(1);
+				dataStream.close();
 			}
-
+			
+			version = VERSION;
 			progress.progressProject(1);
 
-			indexOut.close();
-			dataOut.close();
-
-			if(dataIn != null)
-			{
-				dataIn.close();
-			}
+			writeIndex(new File(getProjectDir(), INDEX_FILE_NAME), progress);
 
 			progress.progressProject(1);
 			progress.println(" OK");
@@ -207,6 +292,106 @@ public class Project
 		progressPrevState.restore(progress);
 	}
 	
+	private void writeIndex(File file, ProgressMonitor progress) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(file);
+		DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(fos));
+
+		indexOut.writeInt(VERSION);
+
+		indexOut.writeUTF(baseURL);
+		indexOut.writeUTF(targetURL);
+		indexOut.writeUTF(localSiteRoot);
+		indexOut.writeUTF(updateTimestamp);
+
+		progress.setPageProgress(0);
+		progress.setPageLimit(users.size());
+
+		indexOut.writeInt(users.size());
+
+		for(WikiUser user : users.values())
+		{
+			user.write(indexOut);
+			progress.progressPage(1);
+		}
+
+		progress.setPageProgress(0);
+		progress.setPageLimit(namespaces.size());
+
+		indexOut.writeInt(namespaces.size());
+
+		for(WikiNamespace ns : namespaces.values())
+		{
+			ns.write(indexOut);
+			progress.progressPage(1);
+		}
+
+		if(pageIndex != null)
+		{
+			pageIndex.update(pages);
+			pageIndex.write(indexOut);
+		}
+		else
+		{
+			new PageIndex(pages.values()).write(indexOut);
+		}
+
+		progress.setPageProgress(0);
+		progress.setPageLimit(renames.size());
+
+		indexOut.writeInt(renames.size());
+
+		for(WikiRename rename : renames.values())
+		{
+			rename.write(indexOut);
+			progress.progressPage(1);
+		}
+
+		indexOut.flush();
+		fos.getFD().sync();
+		indexOut.close();
+	}
+	
+	/**
+	 * Сколько байт в файле данных занято устаревшими копиями страниц.
+	 */
+	public long getGarbageSize()
+	{
+		File file = new File(getProjectDir(), DATA_FILE_NAME);
+		
+		if(!file.exists())
+		{
+			return 0;
+		}
+		
+		long used = 0;
+		
+		if(pageIndex != null)
+		{
+			pageIndex.update(pages);
+			
+			for(int row = 0; row < pageIndex.size(); row++)
+			{
+				if(pageIndex.getOffset(row) >= 0)
+				{
+					used += pageIndex.getRecordLength(row);
+				}
+			}
+		}
+		else
+		{
+			for(WikiPage page : pages.values())
+			{
+				if(page.getOffset() >= 0)
+				{
+					used += page.getRecordLength();
+				}
+			}
+		}
+		
+		return file.length() - used;
+	}
+	
 	public boolean read(ProgressMonitor progress) throws IOException
 	{
 		if(readBinary(getProjectDir(), progress))
@@ -245,6 +430,11 @@ public class Project
 		{
 			localSiteRoot = dis.readUTF();
 		}
+		
+		if(version >= 19)
+		{
+			updateTimestamp = dis.readUTF();
+		}
 
 		int count = dis.readInt();
 		
@@ -288,25 +478,38 @@ public class Project
 
 		progress.progressProject(1);
 
-		count = dis.readInt();
+		if(version >= 18)
+		{
+			pageIndex = PageIndex.read(dis);
+		}
+		else
+		{
+			count = dis.readInt();
 		
-		progress.setPageProgress(0);
-		progress.setPageLimit(count);
+			progress.setPageProgress(0);
+			progress.setPageLimit(count);
 
-		for(int i = 0; i < count; i++)
-		{
-			WikiPage page = new WikiPage(dis.readInt(), dis.readInt());
+			for(int i = 0; i < count; i++)
+			{
+				WikiPage page = new WikiPage(dis.readInt(), dis.readInt());
 			
-			page.setOffset(dis.readLong());
-			page.setTitle(dis.readUTF());
+				page.setOffset(dis.readLong());
+			
+				if(version >= 17)
+				{
+					page.setRecordLength(dis.readInt());
+				}
+			
+				page.setTitle(dis.readUTF());
 
-			addPage(page);
-			progress.progressPage(1);
+				addPage(page);
+				progress.progressPage(1);
 
-			if(progress.isCancelled())
-			{
-				dis.close();
-				return false;
+				if(progress.isCancelled())
+				{
+					dis.close();
+					return false;
+				}
 			}
 		}
 
@@ -337,6 +540,13 @@ public class Project
 		progress.progressProject(1);
 
 		dis.close();
+		
+		int replayed = getJournal().replay(this, getDataFile());
+		
+		if(replayed > 0)
+		{
+			progress.println("Restored " + replayed + " page(s) saved after the last index update");
+		}
 
 		return true;
 	}
@@ -550,6 +760,21 @@ public class Project
 		return targetURL;
 	}
 	
+	public void setUpdateTimestamp(String timestamp)
+	{
+		updateTimestamp = Util.noEmpty(timestamp, "");
+	}
+	
+	public String getUpdateTimestamp()
+	{
+		return updateTimestamp;
+	}
+	
+	public boolean hasUpdateTimestamp()
+	{
+		return !updateTimestamp.isEmpty();
+	}
+	
 	public void setBaseURL(String url)
 	{
 		if(url == null || url.isEmpty())
@@ -597,6 +822,7 @@ public class Project
 		wikiDir = null;
 		imageDir = null;
 		imageArchiveDir = null;
+		packDir = null;
 	}
 	
 	public String getBaseDir()
@@ -658,6 +884,49 @@ public class Project
 	{
 		return getImageDir().getParentFile();
 	}
+
+	public File getPackDir()
+	{
+		if(packDir == null)
+		{
+			packDir = new File((getBaseDir() + PACKS_DIR).replace('/', File.separatorChar));
+		}
+
+		return packDir;
+	}
+
+	/**
+	 * Есть ли у проекта RevisionStore. Если есть, новые страницы
+	 * сохраняются туда, а не в отдельные ZIP архивы.
+	 */
+	public boolean hasRevisionStore()
+	{
+		return revisionStore != null || RevisionStore.exists(getPackDir());
+	}
+
+	/**
+	 * Хранилище текстов ревизий; открывается (или создается) при первом обращении.
+	 */
+	public synchronized RevisionStore getRevisionStore() throws IOException
+	{
+		if(revisionStore == null)
+		{
+			revisionStore = new RevisionStore(getPackDir());
+		}
+
+		return revisionStore;
+	}
+
+	/**
+	 * Текст ревизий должен попасть на диск раньше страниц, которые на него ссылаются.
+	 */
+	private synchronized void syncRevisionStore() throws IOException
+	{
+		if(revisionStore != null)
+		{
+			revisionStore.sync();
+		}
+	}
 	
 	public RandomAccessFile getDataFile() throws FileNotFoundException
 	{
@@ -669,6 +938,33 @@ public class Project
 		return dataFile;
 	}
 	
+	/**
+	 * Журнал страниц, дописанных в файл данных после сохранения индекса.
+	 */
+	public ProjectJournal getJournal()
+	{
+		if(journal == null)
+		{
+			journal = new ProjectJournal(new File(getProjectDir(), JOURNAL_FILE_NAME));
+		}
+		
+		return journal;
+	}
+	
+	/**
+	 * Буферизованное чтение файла данных.
+	 * Пишется он по-прежнему через getDataFile().
+	 */
+	public ChannelDataInput getDataInput() throws FileNotFoundException
+	{
+		if(dataInput == null)
+		{
+			dataInput = new ChannelDataInput(getDataFile().getChannel());
+		}
+		
+		return dataInput;
+	}
+	
 	public void closeDataFile() throws IOException
 	{
 		if(dataFile != null)
@@ -676,7 +972,14 @@ public class Project
 			dataFile.close();
 		}
 		
+		if(journal != null)
+		{
+			journal.close();
+		}
+		
 		dataFile = null;
+		dataInput = null;
+		journal = null;
 	}
 	
 	public ArrayList<WikiNamespace> listNamespaces()
@@ -766,6 +1069,8 @@ public class Project
 	
 	public void addPage(WikiPage page)
 	{
+		materializePages();
+		
 		WikiPage current = pages.get(page.getID());
 		
 		if(current == null || current.getNewestRevisionID() < page.getNewestRevisionID())
@@ -779,6 +1084,8 @@ public class Project
 	
 	public void removePage(int id)
 	{
+		materializePages();
+		
 		if(pages.remove(id) != null)
 		{
 			invalidateIndex();
@@ -787,20 +1094,67 @@ public class Project
 	
 	public WikiPage getPage(int id)
 	{
-		return pages.get(id);
+		WikiPage page = pages.get(id);
+		
+		if(page == null && pageIndex != null)
+		{
+			int row = pageIndex.findID(id);
+			
+			if(row >= 0)
+			{
+				page = pageIndex.createPage(row);
+				page.setProject(this);
+				
+				pages.put(id, page);
+			}
+		}
+		
+		return page;
 	}
 	
 	public WikiPage getPage(String title)
 	{
+		if(pageIndex != null)
+		{
+			int row = pageIndex.findTitle(title);
+			return row >= 0 ? getPage(pageIndex.getID(row)) : null;
+		}
+		
 		indexPages();
 		return pagesByTitle.get(title);
 	}
 	
 	public Collection<WikiPage> listPages()
 	{
+		materializePages();
 		return pages.values();
 	}
 	
+	/**
+	 * Создать WikiPage для всех оставшихся строк колоночного индекса
+	 * и дальше работать только с pages.
+	 */
+	private void materializePages()
+	{
+		if(pageIndex == null)
+		{
+			return;
+		}
+		
+		for(int row = 0; row < pageIndex.size(); row++)
+		{
+			if(!pages.containsKey(pageIndex.getID(row)))
+			{
+				WikiPage page = pageIndex.createPage(row);
+				page.setProject(this);
+				
+				pages.put(page.getID(), page);
+			}
+		}
+		
+		pageIndex = null;
+	}
+	
 	public ArrayList<WikiPage> listPages(int ns)
 	{
 		indexPages();
@@ -814,6 +1168,8 @@ public class Project
 			return;
 		}
 		
+		materializePages();
+		
 		for(WikiPage page : pages.values())
 		{
 			pagesByTitle.put(page.getTitle(), page);
@@ -839,6 +1195,8 @@ public class Project
 	
 	public void invalidateIndex()
 	{
+		materializePages();
+		
 		if(indexed)
 		{
 			pagesByTitle.clear();
@@ -850,7 +1208,7 @@ public class Project
 	
 	public int countAllPages()
 	{
-		return pages.size();
+		return pageIndex != null ? pageIndex.size() : pages.size();
 	}
 	
 	public int countPages()
@@ -868,7 +1226,7 @@ public class Project
 		
 		if(allns)
 		{
-			return pages.size();
+			return countAllPages();
 		}
 		else
 		{
@@ -888,6 +1246,11 @@ public class Project
 	
 	public int countPages(int ns)
 	{
+		if(pageIndex != null)
+		{
+			return pageIndex.countNamespace(ns);
+		}
+		
 		indexPages();
 		
 		ArrayList<WikiPage> list = pagesByNamespace.get(ns);
@@ -896,7 +1259,7 @@ public class Project
 	
 	public boolean requiresDownload()
 	{
-		for(WikiPage p : pages.values())
+		for(WikiPage p : listPages())
 		{
 			if(p.requiresDownload())
 			{
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал записей страниц, дописанных в файл данных после последнего
+ * сохранения индекса (project.jnl рядом с project.idx).
+ *
+ * Каждая запись журнала - это ID, пространство имен, название, смещение
+ * и длина новой копии страницы в файле данных плюс CRC32 этой копии.
+ * Флаги страницы (actual, uploaded, missing) хранятся в самой копии,
+ * так что журнал возвращает и их. Project.read() проигрывает журнал
+ * поверх индекса, и страницы, сохраненные после него, не теряются.
+ *
+ * Формат записи: int длина, тело, int CRC32 тела. Запись, оборванная
+ * на середине или с неверной CRC, и все после нее при чтении отбрасываются,
+ * как и записи, копия страницы которых так и не дошла до файла данных.
+ */
+public class ProjectJournal
+{
+	protected final File file;
+
+	protected FileOutputStream fos;
+	protected DataOutputStream out;
+
+	public ProjectJournal(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Записать новое положение страницы.
+	 *
+	 * @param record копия страницы, только что дописанная в файл данных
+	 */
+	public void append(WikiPage page, byte[] record) throws IOException
+	{
+		if(out == null)
+		{
+			fos = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fos, Util.BUFFER_SIZE));
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(body);
+
+		dos.writeInt(page.getID());
+		dos.writeInt(page.getNS());
+		Util.writeUTF(dos, page.getTitle());
+		dos.writeLong(page.getOffset());
+		dos.writeInt(page.getRecordLength());
+		dos.writeInt((int)crc.getValue());
+
+		dos.close();
+
+		crc.reset();
+		crc.update(body.toByteArray());
+
+		out.writeInt(body.size());
+		body.writeTo(out);
+		out.writeInt((int)crc.getValue());
+	}
+
+	/**
+	 * Сбросить журнал на диск. Файл данных должен быть сброшен до этого,
+	 * иначе после сбоя журнал может ссылаться на несохраненные копии
+	 * (такие записи, правда, все равно отбросит CRC).
+	 */
+	public void sync() throws IOException
+	{
+		if(out != null)
+		{
+			out.flush();
+			fos.getFD().sync();
+		}
+	}
+
+	/**
+	 * Очистить журнал, когда все его записи уже попали в индекс.
+	 */
+	public void reset() throws IOException
+	{
+		close();
+
+		if(file.exists() && !file.delete())
+		{
+			throw new IOException("unable to delete " + file.getAbsolutePath());
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if(out != null)
+		{
+			out.close();
+		}
+
+		out = null;
+		fos = null;
+	}
+
+	/**
+	 * Проиграть журнал поверх прочитанного индекса.
+	 *
+	 * @return сколько записей применено
+	 */
+	public int replay(Project project, RandomAccessFile dataFile) throws IOException
+	{
+		if(!file.exists())
+		{
+			return 0;
+		}
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Util.BUFFER_SIZE));
+		CRC32 crc = new CRC32();
+
+		long fileLength = file.length();
+		long position = 0;
+
+		int count = 0;
+
+		try
+		{
+			while(position + 8 <= fileLength)
+			{
+				int size = dis.readInt();
+
+				if(size < 0 || position + 8 + size > fileLength)
+				{
+					break;
+				}
+
+				byte[] body = new byte[size];
+				dis.readFully(body);
+
+				crc.reset();
+				crc.update(body);
+
+				if(dis.readInt() != (int)crc.getValue())
+				{
+					break;
+				}
+
+				DataInputStream entry = new DataInputStream(new ByteArrayInputStream(body));
+
+				int id = entry.readInt();
+				int ns = entry.readInt();
+				String title = Util.readUTF(entry);
+				long offset = entry.readLong();
+				int length = entry.readInt();
+				int recordCRC = entry.readInt();
+
+				if(offset < 0 || offset + length > dataFile.length())
+				{
+					break;
+				}
+
+				byte[] record = new byte[length];
+
+				dataFile.seek(offset);
+				dataFile.readFully(record);
+
+				crc.reset();
+				crc.update(record);
+
+				if(recordCRC != (int)crc.getValue())
+				{
+					break;
+				}
+
+				WikiPage page = project.getPage(id);
+
+				if(page == null)
+				{
+					page = new WikiPage(id, ns);
+					project.addPage(page);
+				}
+
+				page.setNS(ns);
+				page.setTitle(title);
+				page.setOffset(offset);
+				page.setRecordLength(length);
+
+				position += 8 + size;
+				count++;
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+
+		if(position < fileLength)
+		{
+			/*
+			 * Отрезать испорченный хвост, иначе новые записи
+			 * окажутся за ним и тоже не будут прочитаны.
+			 */
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(position);
+			raf.close();
+		}
+
+		if(count > 0)
+		{
+			project.invalidateIndex();
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Инкрементальная подготовка обновления.
+ *
+ * Вместо опроса всех страниц проекта (UpdateListParser) запрашиваются
+ * только правки из list=recentchanges и записи журналов переименований,
+ * удалений и загрузок файлов с момента Project.getUpdateTimestamp().
+ * Затронутые страницы помечаются как требующие загрузки, новые страницы
+ * во включенных пространствах имен добавляются в проект, а метка
+ * сдвигается на время самой новой правки в recentchanges, взятое
+ * до начала запросов. Все запросы ограничены этим же временем
+ * (rcend, leend): события, случившиеся, пока идут запросы, достанутся
+ * следующему проходу, а не потеряются между запросами.
+ *
+ * recentchanges хранит правки ограниченное время ($wgRCMaxAge), поэтому
+ * если самая старая из них новее метки, то часть правок уже не узнать,
+ * и нужен полный проход.
+ */
+public class RecentChangesParser extends DefaultHandler
+{
+	protected static final String[] LOG_TYPES = {"move", "delete", "upload"};
+
+	/**
+	 * @return false, если инкрементальное обновление невозможно
+	 * и нужен полный проход UpdateListParser
+	 */
+	public static boolean markForUpdates(Project project, ProgressMonitor progress, long projectSaveInterval) throws ParserConfigurationException, SAXException, IOException
+	{
+		if(!project.hasUpdateTimestamp())
+		{
+			progress.println("No previous update recorded");
+			return false;
+		}
+
+		progress.initProgress(true, false, true);
+		progress.setOperationLimit(2);
+		progress.setProjectLimit(3 + LOG_TYPES.length);
+
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		SAXParser parser = factory.newSAXParser();
+
+		RecentChangesParser handler = new RecentChangesParser(project, progress);
+
+		String since = project.getUpdateTimestamp();
+
+		String oldest = getChangeTimestamp(project, progress, true);
+		progress.progressProject(1);
+
+		if(progress.isCancelled())
+		{
+			return true;
+		}
+		else if(oldest == null || oldest.compareTo(since) > 0)
+		{
+			progress.println("Recent changes do not go back to " + since);
+			return false;
+		}
+
+		String until = getChangeTimestamp(project, progress, false);
+		progress.progressProject(1);
+
+		if(progress.isCancelled())
+		{
+			return true;
+		}
+		else if(until == null)
+		{
+			progress.println("Recent changes are empty");
+			return false;
+		}
+
+		long currentTime = System.currentTimeMillis();
+		long projectSaveTime = currentTime + projectSaveInterval;
+
+		progress.println("Requesting changes from " + since + " to " + until + "...");
+
+		query(project.getBaseURL() + "api.php?format=xml&action=query&list=recentchanges" +
+			  "&rcdir=newer" +
+			  "&rcstart=" + since +
+			  "&rcend=" + until +
+			  "&rctype=edit|new" +
+			  "&rcprop=title|ids|timestamp" +
+			  "&rclimit=max", parser, handler, progress);
+
+		progress.progressProject(1);
+
+		for(String type : LOG_TYPES)
+		{
+			if(progress.isCancelled())
+			{
+				break;
+			}
+
+			currentTime = System.currentTimeMillis();
+
+			if(currentTime >= projectSaveTime)
+			{
+				System.gc();
+				project.write(progress);
+				projectSaveTime = currentTime + projectSaveInterval;
+			}
+
+			progress.println("Requesting " + type + " log from " + since + " to " + until + "...");
+
+			query(project.getBaseURL() + "api.php?format=xml&action=query&list=logevents" +
+				  "&ledir=newer" +
+				  "&lestart=" + since +
+				  "&leend=" + until +
+				  "&letype=" + type +
+				  "&leprop=title|ids|type|user|comment|timestamp|details" +
+				  "&lelimit=max", parser, handler, progress);
+
+			progress.progressProject(1);
+		}
+
+		progress.println("... " + handler.parsedEvents + " events, " + handler.updatedPages + " pages need update, " + handler.newPages + " new pages");
+
+		if(!progress.isCancelled())
+		{
+			project.setUpdateTimestamp(until);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Время самой старой (oldest) или самой новой правки в recentchanges.
+	 *
+	 * @return null, если recentchanges пуст или запрос не удался
+	 */
+	public static String getChangeTimestamp(Project project, ProgressMonitor progress, boolean oldest) throws ParserConfigurationException, SAXException
+	{
+		final SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+		final String[] timestamp = new String[1];
+
+		String request = project.getBaseURL() + "api.php?format=xml&action=query&list=recentchanges&rcdir=" + (oldest ? "newer" : "older") + "&rcprop=timestamp&rclimit=1";
+
+		RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
+		{
+			public void handleResponse(InputStream is) throws Exception
+			{
+				parser.parse(is, new DefaultHandler()
+				{
+					public void startElement(String uri, String localName, String qName, Attributes attributes)
+					{
+						if(qName.equals("rc"))
+						{
+							timestamp[0] = attributes.getValue("timestamp");
+						}
+					}
+				});
+			}
+		});
+
+		return timestamp[0];
+	}
+
+	/**
+	 * Получить все результаты запроса, следуя за query-continue.
+	 */
+	protected static void query(String baseRequest, final SAXParser parser, final RecentChangesParser handler, ProgressMonitor progress) throws IOException
+	{
+		do
+		{
+			String request = baseRequest;
+
+			if(handler.queryContinuePair != null)
+			{
+				progress.println("... " + handler.queryContinueFrom);
+
+				request += "&" + handler.queryContinuePair;
+				handler.queryContinuePair = null;
+			}
+
+			boolean success = RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
+			{
+				public void handleResponse(InputStream is) throws Exception
+				{
+					parser.parse(is, handler);
+
+					if(handler.parsed)
+					{
+						handler.parsed = false;
+					}
+					else
+					{
+						throw new IOException("empty result");
+					}
+				}
+			});
+
+			if(!success && !progress.isCancelled())
+			{
+				/*
+				 * Пропущенные события потом уже не найти,
+				 * так что метку сдвигать нельзя.
+				 */
+
+				throw new IOException("request failed: " + request);
+			}
+		}
+		while(handler.queryContinuePair != null && !progress.isCancelled());
+	}
+
+	protected static final int MODE_NULL = 0;
+	protected static final int MODE_ITEM = 1;
+	protected static final int MODE_QUERY_CONTINUE = 2;
+
+	protected Project project;
+	protected ProgressMonitor progress;
+	protected int mode = MODE_NULL;
+
+	/**
+	 * Уже помеченные страницы, чтобы не перезаписывать их на каждое событие.
+	 */
+	protected HashSet<Integer> marked = new HashSet();
+
+	protected String logType;
+	protected int logPageID;
+	protected String logTitle;
+	protected WikiRename rename;
+
+	public int parsedEvents = 0;
+	public int updatedPages = 0;
+	public int newPages = 0;
+
+	public String queryContinueFrom = null;
+	public String queryContinuePair = null;
+
+	public boolean parsed = false;
+
+	public RecentChangesParser(Project project, ProgressMonitor progress)
+	{
+		this.project = project;
+		this.progress = progress;
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes)
+	{
+		if(qName.equals("query"))
+		{
+			parsed = true;
+		}
+		else if(qName.equals("rc"))
+		{
+			parsedEvents++;
+
+			int id = Integer.parseInt(attributes.getValue("pageid"));
+			WikiPage page = project.getPage(id);
+
+			if(page == null && id > 0)
+			{
+				int ns = Integer.parseInt(attributes.getValue("ns"));
+				WikiNamespace namespace = project.getNamespace(ns);
+
+				if(namespace != null && namespace.isIncluded())
+				{
+					page = new WikiPage(id, ns);
+					page.setTitle(attributes.getValue("title"));
+
+					project.addPage(page);
+					project.invalidateIndex();
+
+					marked.add(id);
+					newPages++;
+				}
+			}
+			else
+			{
+				markPage(page, Integer.parseInt(Util.noEmpty(attributes.getValue("revid"), "0")));
+			}
+		}
+		else if(qName.equals("item"))
+		{
+			parsedEvents++;
+
+			logType = attributes.getValue("type");
+			logPageID = Integer.parseInt(Util.noEmpty(attributes.getValue("pageid"), "0"));
+			logTitle = attributes.getValue("title");
+
+			if("move".equals(logType))
+			{
+				int id = Integer.parseInt(attributes.getValue("logid"));
+
+				rename = project.getRename(id);
+
+				if(rename == null)
+				{
+					rename = new WikiRename(id, attributes.getValue("timestamp"));
+					project.addRename(rename);
+				}
+
+				rename.setSource(Integer.parseInt(attributes.getValue("ns")), logTitle);
+
+				rename.setUser(attributes.getValue("user"));
+				rename.setComment(attributes.getValue("comment"));
+			}
+
+			mode = MODE_ITEM;
+		}
+		else if(mode == MODE_ITEM && rename != null && qName.equals("move"))
+		{
+			rename.setDestination(Integer.parseInt(attributes.getValue("new_ns")), attributes.getValue("new_title"));
+			markPage(getPage(attributes.getValue("new_title")), 0);
+		}
+		else if(mode == MODE_ITEM && rename != null && qName.equals("params") && attributes.getValue("target_title") != null)
+		{
+			rename.setDestination(Integer.parseInt(attributes.getValue("target_ns")), attributes.getValue("target_title"));
+			markPage(getPage(attributes.getValue("target_title")), 0);
+		}
+		else if(qName.equals("query-continue"))
+		{
+			mode = MODE_QUERY_CONTINUE;
+		}
+		else if(mode == MODE_QUERY_CONTINUE && (qName.equals("recentchanges") || qName.equals("logevents")))
+		{
+			try
+			{
+				queryContinueFrom = attributes.getValue(0);
+				queryContinuePair = attributes.getQName(0) + "=" + URLEncoder.encode(queryContinueFrom, "UTF-8");
+			}
+			catch(UnsupportedEncodingException ex)
+			{
+				queryContinuePair = null;
+			}
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName)
+	{
+		if(mode == MODE_ITEM && qName.equals("item"))
+		{
+			/*
+			 * Переименованная страница сохраняет свой ID, удаленная - нет,
+			 * а восстановленная может получить новый; поэтому ищем и так, и так.
+			 */
+
+			markPage(project.getPage(logPageID), 0);
+			markPage(getPage(logTitle), 0);
+
+			rename = null;
+			mode = MODE_NULL;
+		}
+		else if(qName.equals("query-continue"))
+		{
+			mode = MODE_NULL;
+		}
+	}
+
+	/**
+	 * Название может быть скрыто (revdelete), тогда его нет.
+	 */
+	protected WikiPage getPage(String title)
+	{
+		return title != null ? project.getPage(title) : null;
+	}
+
+	/**
+	 * Пометить страницу как требующую загрузки.
+	 *
+	 * @param revid ревизия из recentchanges; если она у нас уже есть
+	 * (правки на самой метке запрашиваются повторно), то страница не трогается.
+	 * 0 - пометить в любом случае.
+	 */
+	protected void markPage(WikiPage page, int revid)
+	{
+		if(page == null || marked.contains(page.getID()))
+		{
+			return;
+		}
+
+		try
+		{
+			page.load(progress);
+
+			if(revid > 0 && !page.requiresDownload() && revid <= page.getNewestRevisionID())
+			{
+				page.unload(false);
+				return;
+			}
+
+			marked.add(page.getID());
+
+			if(page.isActual() && !page.requiresDownload())
+			{
+				updatedPages++;
+			}
+
+			page.setActual(false);
+			page.unload(true);
+		}
+		catch(Throwable ex)
+		{
+			progress.showErrMsg(ex);
+		}
+	}
+}
@@ -35,9 +35,9 @@ public class RenameListParser extends DefaultHandler
 		progress.setOperationLimit(2);
 		
 		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser parser = factory.newSAXParser();
+		final SAXParser parser = factory.newSAXParser();
 		
-		RenameListParser handler = new RenameListParser(project);
+		final RenameListParser handler = new RenameListParser(project);
 
 		do
 		{
@@ -51,42 +51,22 @@ public class RenameListParser extends DefaultHandler
 				handler.queryContinuePair = null;
 			}
 
-			for(int tries = 0; tries < 5 && !progress.isCancelled(); tries++)
+			RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
 			{
-				try
+				public void handleResponse(InputStream is) throws Exception
 				{
-					InputStream is = Util.openConnection(request);
-					progress.setOperationProgress(1);
-					
 					parser.parse(is, handler);
-					progress.setOperationProgress(2);
-					
-					is.close();
-					progress.setOperationProgress(0);
 
 					if(handler.parsed)
 					{
 						handler.parsed = false;
-						break;
 					}
 					else
 					{
 						throw new IOException("empty result");
 					}
 				}
-				catch(Throwable ex)
-				{
-					progress.showErrMsg(ex);
-
-					try
-					{
-						Thread.sleep(5000);
-					}
-					catch(InterruptedException ie)
-					{
-					}
-				}
-			}
+			});
 		}
 		while(handler.queryContinuePair != null && !progress.isCancelled());
 	}
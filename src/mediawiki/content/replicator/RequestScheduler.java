@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Общий для всех потоков планировщик запросов к API.
+ *
+ * Перед каждым запросом берется маркер из общего ведра (не больше
+ * Util.requestsPerSecond запросов в секунду, 0 - без ограничения).
+ * Неудачный запрос повторяется с экспоненциально растущей паузой
+ * со случайным разбросом, а если сервер сказал Retry-After, то
+ * через указанное время. Ответы 429 / 503 и отказы по maxlag
+ * приостанавливают все запросы, а не только тот, что его получил.
+ */
+public class RequestScheduler
+{
+	/**
+	 * Обработчик ответа. Если он бросает исключение, запрос повторяется.
+	 */
+	public interface ResponseHandler
+	{
+		public void handleResponse(InputStream is) throws Exception;
+	}
+
+	public static final int MAX_TRIES = 5;
+
+	public static final long BASE_DELAY = 1000;
+	public static final long MAX_DELAY = 2 * 60 * 1000;
+
+	/**
+	 * Ошибки API (WikiException) обычно проходят сразу.
+	 */
+	public static final long WIKI_ERROR_DELAY = 500;
+
+	/**
+	 * Пауза ожидания режется на такие куски, чтобы вовремя заметить отмену.
+	 */
+	protected static final long SLEEP_STEP = 250;
+
+	protected static final RequestScheduler instance = new RequestScheduler();
+
+	public static RequestScheduler getInstance()
+	{
+		return instance;
+	}
+
+	protected final Random random = new Random();
+
+	protected double tokens = 0;
+	protected long lastRefill = 0;
+	protected long pausedUntil = 0;
+
+	/**
+	 * Выполнить запрос к url, повторяя его при ошибках до MAX_TRIES раз.
+	 * К запросам api.php дописывается maxlag, если он задан в Util.maxLag.
+	 *
+	 * @return false, если все попытки неудачны или операция отменена
+	 */
+	public boolean execute(String url, ProgressMonitor progress, ResponseHandler handler)
+	{
+		if(Util.maxLag > 0 && url.contains("api.php?"))
+		{
+			url += "&maxlag=" + Util.maxLag;
+		}
+
+		for(int tries = 0; tries < MAX_TRIES && !progress.isCancelled(); tries++)
+		{
+			try
+			{
+				if(!acquire(progress))
+				{
+					break;
+				}
+
+				InputStream is = HttpClient.get(url);
+				progress.setOperationProgress(1);
+
+				try
+				{
+					handler.handleResponse(is);
+					progress.setOperationProgress(2);
+				}
+				finally
+				{
+					is.close();
+				}
+
+				progress.setOperationProgress(0);
+				return true;
+			}
+			catch(Throwable ex)
+			{
+				progress.showErrMsg(ex);
+
+				if(tries < (MAX_TRIES - 1))
+				{
+					long delay = getDelay(tries, ex);
+
+					if(delay >= 5000)
+					{
+						progress.println("... retrying in " + (delay / 1000) + " s");
+					}
+
+					if(!sleep(delay, progress))
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Дождаться своей очереди на запрос.
+	 *
+	 * @return false, если операция отменена
+	 */
+	public boolean acquire(ProgressMonitor progress)
+	{
+		long wait;
+
+		while((wait = reserve()) > 0)
+		{
+			if(!sleep(wait, progress))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Взять маркер из ведра.
+	 *
+	 * @return 0, если маркер взят, иначе сколько еще ждать
+	 */
+	protected synchronized long reserve()
+	{
+		long now = System.currentTimeMillis();
+
+		if(now < pausedUntil)
+		{
+			return pausedUntil - now;
+		}
+
+		double rate = Util.requestsPerSecond;
+
+		if(rate <= 0)
+		{
+			return 0;
+		}
+
+		/*
+		 * Ведро вмещает секунду запросов, но не меньше одного.
+		 */
+
+		double capacity = Math.max(rate, 1);
+
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000);
+		lastRefill = now;
+
+		if(tokens >= 1)
+		{
+			tokens -= 1;
+			return 0;
+		}
+		else
+		{
+			return (long)Math.ceil((1 - tokens) * 1000 / rate);
+		}
+	}
+
+	/**
+	 * Приостановить все запросы на delay миллисекунд.
+	 */
+	public synchronized void pause(long delay)
+	{
+		pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + delay);
+	}
+
+	/**
+	 * Пауза перед следующей попыткой номер tries + 1.
+	 *
+	 * Retry-After выполняется как есть; иначе пауза растет вдвое
+	 * с каждой попыткой, а фактическое значение выбирается случайно
+	 * между половиной и полным значением, чтобы потоки не повторяли
+	 * запросы одновременно.
+	 */
+	public long getDelay(int tries, Throwable ex)
+	{
+		long delay;
+
+		if(ex instanceof HttpStatusException && ((HttpStatusException)ex).hasRetryAfter())
+		{
+			delay = Math.min(((HttpStatusException)ex).getRetryAfter(), MAX_DELAY);
+		}
+		else
+		{
+			long base = (ex instanceof WikiException && !isThrottled(ex)) ? WIKI_ERROR_DELAY : BASE_DELAY;
+			long limit = Math.min(base << Math.min(tries, 16), MAX_DELAY);
+
+			synchronized(random)
+			{
+				delay = limit / 2 + (long)(random.nextDouble() * (limit / 2));
+			}
+		}
+
+		if(isThrottled(ex))
+		{
+			pause(delay);
+		}
+
+		return delay;
+	}
+
+	protected static boolean isThrottled(Throwable ex)
+	{
+		if(ex instanceof HttpStatusException)
+		{
+			return ((HttpStatusException)ex).isThrottled();
+		}
+		else if(ex instanceof WikiException)
+		{
+			String code = ((WikiException)ex).getCode();
+			return "maxlag".equals(code) || "ratelimited".equals(code);
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return false, если операция отменена
+	 */
+	protected static boolean sleep(long delay, ProgressMonitor progress)
+	{
+		long end = System.currentTimeMillis() + delay;
+		long now;
+
+		while((now = System.currentTimeMillis()) < end)
+		{
+			if(progress.isCancelled())
+			{
+				return false;
+			}
+
+			try
+			{
+				Thread.sleep(Math.min(end - now, SLEEP_STEP));
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return !progress.isCancelled();
+	}
+}
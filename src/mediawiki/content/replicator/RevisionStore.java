@@ -0,0 +1,889 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Хранилище текстов ревизий в больших файлах-сегментах (packs/00000.pack, ...)
+ * вместо отдельного ZIP архива на каждую страницу.
+ *
+ * Текст каждой ревизии сжимается отдельно и дописывается в конец последнего
+ * сегмента; новый сегмент начинается, когда текущий дорастает до SEGMENT_SIZE.
+ * Индекс (revisions.idx) - это журнал записей фиксированной длины ENTRY_SIZE:
+ * ID ревизии, сегмент и смещение, длина данных и 64-битный хеш текста.
+ * Данные пишутся раньше записи индекса, так что оборванный хвост индекса
+ * при открытии просто отрезается. В памяти индекс хранится колонками,
+ * отсортированными по ID, плюс таблицы для записей, добавленных
+ * после последней сортировки.
+ *
+ * Одинаковые тексты (откаты правок и т.п.) хранятся один раз: если совпали
+ * хеш и сам текст, новая запись индекса указывает на уже записанные данные.
+ * Данные перезаписанных ревизий и удаленных страниц остаются в сегментах.
+ *
+ * Соседние ревизии страницы обычно почти совпадают, поэтому ревизия,
+ * родитель которой уже сохранен, пишется как разница с ним (дельта):
+ * длина общего начала, длина общего конца и сжатая середина, причем
+ * словарем для Deflater служит измененный участок родителя. Чтобы
+ * чтение ревизии не раскручивало всю историю, не реже чем через
+ * KEYFRAME_INTERVAL ревизий в цепочке текст пишется целиком.
+ *
+ * Формат данных ревизии: целиком - обычный поток zlib (первый байт 0x78);
+ * дельта - байт DELTA, байт глубины цепочки, int ID родителя, int длина
+ * общего начала, int длина общего конца и поток zlib со словарем.
+ *
+ * Методы синхронизированы; сжатие и распаковка идут вне блокировки.
+ */
+public class RevisionStore
+{
+	public static final String INDEX_FILE_NAME = "revisions.idx";
+	public static final long SEGMENT_SIZE = 256L << 20;
+
+	protected static final int VERSION = 2;
+	protected static final int ENTRY_SIZE = 24;
+
+	protected static final int OFFSET_BITS = 40;
+	protected static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	/**
+	 * Самое большее столько дельт подряд, потом текст пишется целиком.
+	 */
+	public static final int KEYFRAME_INTERVAL = 16;
+
+	/**
+	 * Дельта не пишется, если общие начало и конец меньше этой доли текста:
+	 * значит, текст переписан целиком.
+	 */
+	protected static final double MIN_DELTA_SHARE = 0.25;
+
+	/**
+	 * Сколько байт родителя вокруг изменения брать в словарь
+	 * (сверх самого измененного участка).
+	 */
+	protected static final int DICTIONARY_CONTEXT = 4 * 1024;
+
+	/**
+	 * Deflater все равно использует только последние 32 КБ словаря.
+	 */
+	protected static final int MAX_DICTIONARY = 32 * 1024;
+
+	protected static final int DELTA = 0x01;
+	protected static final int DELTA_HEADER_SIZE = 14;
+
+	/**
+	 * Сколько новых записей держать вне отсортированных колонок
+	 * (но не меньше 1/8 отсортированных, чтобы пересортировка
+	 * в среднем стоила O(log n) на запись).
+	 */
+	protected static final int MERGE_THRESHOLD = 0x10000;
+
+	protected final File dir;
+	protected final ArrayList<RandomAccessFile> segments = new ArrayList();
+
+	protected FileOutputStream indexStream;
+	protected DataOutputStream indexOut;
+
+	protected int size = 0;
+	protected int sortedSize = 0;
+
+	protected int[] ids = new int[1024];
+	protected long[] locations = new long[1024];
+	protected int[] lengths = new int[1024];
+	protected long[] hashes = new long[1024];
+
+	/**
+	 * Строки после sortedSize: по ID и по хешу.
+	 */
+	protected final IntHashMap<Integer> recentIDs = new IntHashMap();
+	protected final HashMap<Long, Integer> recentHashes = new HashMap();
+
+	/**
+	 * Старшие 32 бита хеша и номер строки для строк до sortedSize,
+	 * по возрастанию; строится при первом поиске по хешу.
+	 */
+	protected long[] byHash;
+
+	/**
+	 * Последний прочитанный или записанный текст: ревизии страницы
+	 * обычно читаются и пишутся по порядку, и тогда родитель
+	 * очередной дельты уже под рукой.
+	 */
+	protected int lastID = -1;
+	protected byte[] lastText;
+
+	public RevisionStore(File dir) throws IOException
+	{
+		this.dir = dir;
+		dir.mkdirs();
+
+		for(int i = 0; getSegmentFile(i).isFile(); i++)
+		{
+			segments.add(new RandomAccessFile(getSegmentFile(i), "rw"));
+		}
+
+		readIndex();
+	}
+
+	/**
+	 * Есть ли в папке хранилище.
+	 */
+	public static boolean exists(File dir)
+	{
+		return new File(dir, INDEX_FILE_NAME).isFile();
+	}
+
+	protected File getSegmentFile(int index)
+	{
+		return new File(dir, String.format("%05d.pack", index));
+	}
+
+	protected void readIndex() throws IOException
+	{
+		File file = new File(dir, INDEX_FILE_NAME);
+		long valid = 0;
+
+		if(file.length() >= 4)
+		{
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Util.BUFFER_SIZE));
+
+			try
+			{
+				int version = dis.readInt();
+
+				if(version > VERSION)
+				{
+					throw new IOException("incompatible version (" + version + " > " + VERSION + ")");
+				}
+
+				valid = 4;
+
+				for(long count = (file.length() - 4) / ENTRY_SIZE; count > 0; count--)
+				{
+					int id = dis.readInt();
+					long location = dis.readLong();
+					int length = dis.readInt();
+					long hash = dis.readLong();
+
+					if(!isValid(location, length))
+					{
+						break;
+					}
+
+					addRow(id, location, length, hash);
+					valid += ENTRY_SIZE;
+				}
+			}
+			finally
+			{
+				dis.close();
+			}
+		}
+
+		merge();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		if(valid == 0)
+		{
+			raf.setLength(0);
+			raf.writeInt(VERSION);
+		}
+		else
+		{
+			raf.setLength(valid);
+
+			/*
+			 * Старые данные читаются и так, но в файл могут
+			 * попасть дельты, которых не поймет старая версия.
+			 */
+
+			raf.writeInt(VERSION);
+		}
+
+		raf.close();
+
+		indexStream = new FileOutputStream(file, true);
+		indexOut = new DataOutputStream(new BufferedOutputStream(indexStream, Util.BUFFER_SIZE));
+	}
+
+	protected boolean isValid(long location, int length) throws IOException
+	{
+		int segment = (int)(location >>> OFFSET_BITS);
+		long offset = location & OFFSET_MASK;
+
+		return segment < segments.size() && length >= 0 && offset + length <= segments.get(segment).length();
+	}
+
+	protected void addRow(int id, long location, int length, long hash)
+	{
+		if(size == ids.length)
+		{
+			int capacity = size * 2;
+
+			ids = Arrays.copyOf(ids, capacity);
+			locations = Arrays.copyOf(locations, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+		}
+
+		ids[size] = id;
+		locations[size] = location;
+		lengths[size] = length;
+		hashes[size] = hash;
+
+		size++;
+	}
+
+	/**
+	 * Отсортировать все строки по ID; из нескольких строк
+	 * с одним ID остается последняя.
+	 */
+	protected void merge()
+	{
+		long[] order = new long[size];
+
+		for(int row = 0; row < size; row++)
+		{
+			order[row] = ((long)ids[row] << 32) | row;
+		}
+
+		Arrays.sort(order);
+
+		int[] newIDs = new int[Math.max(size, 1024)];
+		long[] newLocations = new long[newIDs.length];
+		int[] newLengths = new int[newIDs.length];
+		long[] newHashes = new long[newIDs.length];
+
+		int count = 0;
+
+		for(int i = 0; i < size; i++)
+		{
+			int row = (int)order[i];
+
+			if(i + 1 < size && (int)(order[i + 1] >> 32) == ids[row])
+			{
+				continue;
+			}
+
+			newIDs[count] = ids[row];
+			newLocations[count] = locations[row];
+			newLengths[count] = lengths[row];
+			newHashes[count] = hashes[row];
+
+			count++;
+		}
+
+		ids = newIDs;
+		locations = newLocations;
+		lengths = newLengths;
+		hashes = newHashes;
+
+		size = count;
+		sortedSize = count;
+
+		recentIDs.clear();
+		recentHashes.clear();
+		byHash = null;
+	}
+
+	protected int find(int id)
+	{
+		Integer row = recentIDs.get(id);
+
+		if(row != null)
+		{
+			return row;
+		}
+
+		int low = 0;
+		int high = sortedSize - 1;
+
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+
+			if(ids[mid] < id)
+			{
+				low = mid + 1;
+			}
+			else if(ids[mid] > id)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Найти строку с таким же текстом.
+	 */
+	protected int findText(long hash, byte[] data) throws IOException
+	{
+		Integer recent = recentHashes.get(hash);
+
+		if(recent != null && hashes[recent] == hash && Arrays.equals(decode(readData(recent)), data))
+		{
+			return recent;
+		}
+
+		if(byHash == null)
+		{
+			byHash = new long[sortedSize];
+
+			for(int row = 0; row < sortedSize; row++)
+			{
+				byHash[row] = (hashes[row] & 0xFFFFFFFF00000000L) | row;
+			}
+
+			Arrays.sort(byHash);
+		}
+
+		long key = hash & 0xFFFFFFFF00000000L;
+		int i = Arrays.binarySearch(byHash, key);
+
+		if(i < 0)
+		{
+			i = -i - 1;
+		}
+
+		for(; i < byHash.length && (byHash[i] & 0xFFFFFFFF00000000L) == key; i++)
+		{
+			int row = (int)byHash[i];
+
+			if(hashes[row] == hash && Arrays.equals(decode(readData(row)), data))
+			{
+				return row;
+			}
+		}
+
+		return -1;
+	}
+
+	public synchronized boolean contains(int id)
+	{
+		return find(id) >= 0;
+	}
+
+	/**
+	 * @return текст ревизии в UTF-8 или null, если ее здесь нет
+	 */
+	public byte[] read(int id) throws IOException
+	{
+		byte[] data;
+
+		synchronized(this)
+		{
+			if(id == lastID)
+			{
+				return lastText;
+			}
+
+			int row = find(id);
+
+			if(row < 0)
+			{
+				return null;
+			}
+
+			data = readData(row);
+		}
+
+		byte[] text = decode(data);
+
+		synchronized(this)
+		{
+			lastID = id;
+			lastText = text;
+		}
+
+		return text;
+	}
+
+	/**
+	 * Сохранить текст ревизии (в UTF-8) целиком.
+	 */
+	public void put(int id, byte[] text) throws IOException
+	{
+		put(id, 0, text);
+	}
+
+	/**
+	 * Сохранить текст ревизии (в UTF-8), по возможности как дельту от родителя.
+	 *
+	 * @param parentID ID родительской ревизии, 0 - нет
+	 */
+	public void put(int id, int parentID, byte[] text) throws IOException
+	{
+		long hash = hash(text);
+
+		synchronized(this)
+		{
+			int row = findText(hash, text);
+
+			if(row >= 0)
+			{
+				addEntry(id, locations[row], lengths[row], hash);
+				return;
+			}
+		}
+
+		byte[] data = parentID > 0 ? encodeDelta(parentID, text) : null;
+
+		if(data == null)
+		{
+			data = compress(text, 0, text.length, null);
+		}
+
+		synchronized(this)
+		{
+			RandomAccessFile segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+			if(segment == null || (segment.length() > 0 && segment.length() + data.length > SEGMENT_SIZE))
+			{
+				segment = new RandomAccessFile(getSegmentFile(segments.size()), "rw");
+				segments.add(segment);
+			}
+
+			long offset = segment.length();
+
+			segment.seek(offset);
+			segment.write(data);
+
+			addEntry(id, ((long)(segments.size() - 1) << OFFSET_BITS) | offset, data.length, hash);
+
+			lastID = id;
+			lastText = text;
+		}
+	}
+
+	/**
+	 * Записать текст как дельту от родителя.
+	 *
+	 * @return null, если родителя нет, цепочка уже слишком длинная
+	 * или тексты слишком разные
+	 */
+	protected byte[] encodeDelta(int parentID, byte[] text) throws IOException
+	{
+		int depth;
+
+		synchronized(this)
+		{
+			int row = find(parentID);
+
+			if(row < 0)
+			{
+				return null;
+			}
+
+			RandomAccessFile segment = segments.get((int)(locations[row] >>> OFFSET_BITS));
+			byte[] header = new byte[2];
+
+			segment.seek(locations[row] & OFFSET_MASK);
+			segment.readFully(header, 0, Math.min(header.length, lengths[row]));
+
+			depth = (header[0] == DELTA ? header[1] & 0xFF : 0) + 1;
+		}
+
+		if(depth >= KEYFRAME_INTERVAL)
+		{
+			return null;
+		}
+
+		byte[] base = read(parentID);
+
+		int limit = Math.min(base.length, text.length);
+		int prefix = 0;
+
+		while(prefix < limit && base[prefix] == text[prefix])
+		{
+			prefix++;
+		}
+
+		int suffix = 0;
+
+		while(suffix < limit - prefix && base[base.length - 1 - suffix] == text[text.length - 1 - suffix])
+		{
+			suffix++;
+		}
+
+		if(prefix + suffix < text.length * MIN_DELTA_SHARE)
+		{
+			return null;
+		}
+
+		byte[] middle = compress(text, prefix, text.length - suffix, getDictionary(base, prefix, suffix));
+
+		ByteBuffer delta = ByteBuffer.allocate(DELTA_HEADER_SIZE + middle.length);
+
+		delta.put((byte)DELTA);
+		delta.put((byte)depth);
+		delta.putInt(parentID);
+		delta.putInt(prefix);
+		delta.putInt(suffix);
+		delta.put(middle);
+
+		return delta.array();
+	}
+
+	/**
+	 * Измененный участок родителя с окрестностями.
+	 */
+	protected static byte[] getDictionary(byte[] base, int prefix, int suffix)
+	{
+		int to = Math.min(base.length, base.length - suffix + DICTIONARY_CONTEXT);
+		int from = Math.max(Math.max(0, prefix - DICTIONARY_CONTEXT), to - MAX_DICTIONARY);
+
+		return Arrays.copyOfRange(base, from, to);
+	}
+
+	/**
+	 * Восстановить текст по данным ревизии.
+	 */
+	protected byte[] decode(byte[] data) throws IOException
+	{
+		if(data.length == 0 || data[0] != DELTA)
+		{
+			return decompress(data, 0, null);
+		}
+
+		if(data.length < DELTA_HEADER_SIZE)
+		{
+			throw new IOException("truncated revision data");
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(data);
+		header.position(2);
+
+		int parentID = header.getInt();
+		int prefix = header.getInt();
+		int suffix = header.getInt();
+
+		byte[] base = read(parentID);
+
+		if(base == null)
+		{
+			throw new IOException("parent revision " + parentID + " not found in revision store");
+		}
+
+		if(prefix < 0 || suffix < 0 || prefix + suffix > base.length)
+		{
+			throw new IOException("corrupt revision data");
+		}
+
+		byte[] middle = decompress(data, DELTA_HEADER_SIZE, getDictionary(base, prefix, suffix));
+		byte[] text = new byte[prefix + middle.length + suffix];
+
+		System.arraycopy(base, 0, text, 0, prefix);
+		System.arraycopy(middle, 0, text, prefix, middle.length);
+		System.arraycopy(base, base.length - suffix, text, prefix + middle.length, suffix);
+
+		return text;
+	}
+
+	protected void addEntry(int id, long location, int length, long hash) throws IOException
+	{
+		indexOut.writeInt(id);
+		indexOut.writeLong(location);
+		indexOut.writeInt(length);
+		indexOut.writeLong(hash);
+
+		addRow(id, location, length, hash);
+
+		recentIDs.put(id, size - 1);
+		recentHashes.put(hash, size - 1);
+
+		if(recentIDs.size() >= Math.max(MERGE_THRESHOLD, sortedSize / 8))
+		{
+			merge();
+		}
+	}
+
+	protected byte[] readData(int row) throws IOException
+	{
+		RandomAccessFile segment = segments.get((int)(locations[row] >>> OFFSET_BITS));
+		byte[] data = new byte[lengths[row]];
+
+		segment.seek(locations[row] & OFFSET_MASK);
+		segment.readFully(data);
+
+		return data;
+	}
+
+	/**
+	 * Сбросить на диск сначала сегменты, потом индекс.
+	 */
+	public synchronized void sync() throws IOException
+	{
+		for(RandomAccessFile segment : segments)
+		{
+			segment.getChannel().force(false);
+		}
+
+		indexOut.flush();
+		indexStream.getFD().sync();
+	}
+
+	public synchronized void close() throws IOException
+	{
+		sync();
+
+		indexOut.close();
+
+		for(RandomAccessFile segment : segments)
+		{
+			segment.close();
+		}
+
+		segments.clear();
+	}
+
+	/**
+	 * Сколько ревизий в хранилище.
+	 */
+	public synchronized int countRevisions()
+	{
+		return size;
+	}
+
+	/**
+	 * Суммарный размер сегментов.
+	 */
+	public synchronized long getDataSize() throws IOException
+	{
+		long total = 0;
+
+		for(RandomAccessFile segment : segments)
+		{
+			total += segment.length();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Перенести в хранилище проекта все страницы, которые еще лежат в ZIP архивах.
+	 *
+	 * Архив удаляется только после того, как страница с флагом packed
+	 * сохранена в проекте (Project.checkpoint() или write()), так что
+	 * прерванный перенос можно просто запустить еще раз.
+	 */
+	public static void packArchives(Project project, ProgressMonitor progress, long projectSaveInterval) throws IOException
+	{
+		progress.initProgress(true, true, true);
+		progress.setProjectLimit(project.countAllPages());
+
+		long currentTime = System.currentTimeMillis();
+		long projectSaveTime = currentTime + projectSaveInterval;
+
+		/*
+		 * Архивы выгруженных страниц удаляются после ближайшего checkpoint(),
+		 * а новых (еще не записанных в файл данных) - только после write().
+		 */
+
+		ArrayList<File> unloaded = new ArrayList();
+		ArrayList<File> pending = new ArrayList();
+
+		int packedPages = 0;
+		int failedPages = 0;
+		long archiveSize = 0;
+
+		for(WikiPage page : project.listPages())
+		{
+			boolean loaded = page.load(progress);
+			boolean moved = false;
+
+			if(!page.isPacked() && page.hasZipName())
+			{
+				File file = new File(project.getWikiDir(), page.getZipName().replace('/', File.separatorChar));
+
+				if(file.isFile())
+				{
+					try
+					{
+						page.moveToStore(file);
+						moved = true;
+
+						archiveSize += file.length();
+						packedPages++;
+
+						(loaded ? unloaded : pending).add(file);
+					}
+					catch(IOException ex)
+					{
+						progress.println(page.getTitle() + ": " + ex.getMessage());
+						failedPages++;
+
+						if(loaded)
+						{
+							page.unload(false);
+						}
+
+						loaded = false;
+					}
+				}
+			}
+
+			/*
+			 * Страницы, перенесенные в прошлые запуски,
+			 * заново в файл данных не пишутся.
+			 */
+
+			if(loaded)
+			{
+				page.unload(moved);
+			}
+
+			progress.progressProject(1);
+
+			currentTime = System.currentTimeMillis();
+
+			if(progress.isCancelled())
+			{
+				break;
+			}
+			else if(currentTime >= projectSaveTime)
+			{
+				project.checkpoint(progress);
+				deleteFiles(unloaded);
+
+				progress.println("... " + packedPages + " pages packed");
+				projectSaveTime = currentTime + projectSaveInterval;
+			}
+		}
+
+		project.write(progress);
+
+		deleteFiles(unloaded);
+		deleteFiles(pending);
+
+		RevisionStore store = project.getRevisionStore();
+
+		progress.println("Packed " + packedPages + " page(s), " + failedPages + " failed");
+		progress.println("Archives: " + Util.formatNumber(archiveSize) + " bytes, store: " + Util.formatNumber(store.getDataSize()) + " bytes, " + store.countRevisions() + " revisions");
+	}
+
+	protected static void deleteFiles(ArrayList<File> files)
+	{
+		for(File file : files)
+		{
+			file.delete();
+		}
+
+		files.clear();
+	}
+
+	/**
+	 * 64-битный FNV-1a.
+	 */
+	protected static long hash(byte[] data)
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for(byte b : data)
+		{
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	protected static byte[] compress(byte[] data, int from, int to, byte[] dictionary)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream((to - from) / 2 + 64);
+		byte[] buf = new byte[Math.min(0x10000, (to - from) + 64)];
+
+		if(dictionary != null && dictionary.length > 0)
+		{
+			deflater.setDictionary(dictionary);
+		}
+
+		deflater.setInput(data, from, to - from);
+		deflater.finish();
+
+		while(!deflater.finished())
+		{
+			int len = deflater.deflate(buf);
+			baos.write(buf, 0, len);
+		}
+
+		deflater.end();
+
+		return baos.toByteArray();
+	}
+
+	protected static byte[] decompress(byte[] data, int offset, byte[] dictionary) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 4);
+		byte[] buf = new byte[Math.min(0x10000, data.length * 8 + 64)];
+
+		inflater.setInput(data, offset, data.length - offset);
+
+		try
+		{
+			while(!inflater.finished())
+			{
+				int len = inflater.inflate(buf);
+
+				if(len == 0 && inflater.needsDictionary() && dictionary != null)
+				{
+					inflater.setDictionary(dictionary);
+					dictionary = null;
+				}
+				else if(len == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					throw new IOException("truncated revision data");
+				}
+
+				baos.write(buf, 0, len);
+			}
+		}
+		catch(DataFormatException ex)
+		{
+			throw new IOException(ex);
+		}
+		finally
+		{
+			inflater.end();
+		}
+
+		return baos.toByteArray();
+	}
+}
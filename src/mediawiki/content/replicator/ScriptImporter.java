@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Импорт страниц в локальную вики через maintenance/importDump.php,
+ * по одному процессу на страницу.
+ *
+ * Запущенный процесс можно прибить через destroy(),
+ * если штатная отмена не помогает.
+ */
+public class ScriptImporter
+{
+	protected Project project;
+	protected ProgressMonitor progress;
+
+	protected volatile Process script;
+
+	public ScriptImporter(Project project, ProgressMonitor progress)
+	{
+		this.project = project;
+		this.progress = progress;
+	}
+
+	/**
+	 * @param allRevisions true - все еще не загруженные ревизии
+	 * (после чего страница помечается загруженной), false - только последние
+	 */
+	public void importAllPages(boolean allRevisions, int uploadMode, boolean dryrun) throws IOException
+	{
+		progress.initProgress(true, true, true);
+
+		int inflateMode = allRevisions ? WikiPage.INFLATE_NOT_UPLOADED : WikiPage.INFLATE_LATEST;
+
+		File scriptFile = new File((project.getLocalSiteRoot() + "maintenance/importDump.php").replace('/', File.separatorChar));
+
+		if(!scriptFile.isFile())
+		{
+			throw new IllegalArgumentException("import script does not exist");
+		}
+
+		String imageBasePath = project.getImageBaseDir().getAbsolutePath();
+
+		int exportedPages = 0;
+		int exportedRevisions = 0;
+		long bytesWritten = 0;
+		int errorsOccurred = 0;
+
+		int totalPages = project.countPages();
+		int currentPage = 0;
+
+		progress.setProjectProgress(0);
+		progress.setProjectLimit(totalPages);
+
+		boolean projectUpdated = false;
+		boolean pageUpdated;
+
+		for(WikiNamespace ns : project.listNamespaces())
+		{
+			ArrayList<WikiPage> pages = project.listPages(ns.getID());
+
+			if(progress.isCancelled())
+			{
+				break;
+			}
+			else if(pages == null)
+			{
+				continue;
+			}
+
+			for(WikiPage page : pages)
+			{
+				currentPage++;
+
+				page.load(progress);
+				pageUpdated = false;
+
+				if(page.hasZipName() && (inflateMode == WikiPage.INFLATE_LATEST || !page.isUploaded()) && page.isContainedIn() < 0)
+				{
+					progress.println("[" + currentPage + "/" + totalPages + "] " + page.getTitle());
+
+					try
+					{
+						ArrayList<String> command = new ArrayList(10);
+
+						command.add("php");
+						command.add(scriptFile.getAbsolutePath());
+						// command.add("--quiet");
+
+						if(dryrun)
+						{
+							command.add("--dry-run");
+						}
+
+						command.add("--uploads");
+						command.add("--image-base-path");
+						command.add(imageBasePath);
+
+						System.out.print("Executing command:");
+
+						for(String arg : command)
+						{
+							if(arg.contains(" "))
+							{
+								System.out.print(" \"" + arg + "\"");
+							}
+							else
+							{
+								System.out.print(" " + arg);
+							}
+						}
+
+						System.out.println();
+
+						ProcessBuilder builder = new ProcessBuilder(command);
+
+						builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+						builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+						script = builder.start();
+
+						CounterOutputStream counter = new CounterOutputStream(script.getOutputStream());
+						OutputStream os = new BufferedOutputStream(counter, Util.BUFFER_SIZE);
+
+						XMLStringBuilder xml = new XMLDumpWriter(os, "UTF-8");
+						xml.openTag("mediawiki");
+
+						exportedRevisions += page.dump(xml, inflateMode, uploadMode, progress);
+
+						xml.closeTag();
+						xml.flush();
+
+						bytesWritten += counter.getCount();
+
+						xml.close();
+						os.close();
+
+						System.out.println("Waiting for process to exit...");
+
+						int result = script.waitFor();
+
+						System.out.println();
+
+						script = null;
+
+						if(result == 0)
+						{
+							if(!progress.isCancelled())
+							{
+								if(inflateMode != WikiPage.INFLATE_LATEST && !dryrun)
+								{
+									page.setUploaded(true);
+									pageUpdated = true;
+								}
+
+								exportedPages++;
+							}
+						}
+						else
+						{
+							throw new RuntimeException("import script exited with code " + result);
+						}
+					}
+					catch(Throwable ex)
+					{
+						progress.showErrMsg(ex);
+						errorsOccurred++;
+					}
+				}
+
+				if(pageUpdated)
+				{
+					page.unload(true);
+					projectUpdated = true;
+				}
+				else
+				{
+					page.unload(false);
+				}
+
+				progress.setProjectProgress(currentPage);
+
+				if(progress.isCancelled())
+				{
+					break;
+				}
+			}
+		}
+
+		progress.println();
+		progress.println("Imported " + exportedRevisions + " revisions in " + exportedPages + " pages");
+		progress.println("Total of " + Util.formatNumber(bytesWritten) + " bytes written");
+		progress.println("         " + errorsOccurred + " errors occurred in the process");
+		progress.println();
+
+		if(!dryrun && projectUpdated)
+		{
+			System.gc();
+			project.write(progress);
+		}
+	}
+
+	/**
+	 * Прибить процесс импорта, если он сейчас запущен.
+	 *
+	 * @return false, если процесса нет
+	 */
+	public boolean destroy()
+	{
+		Process process = script;
+
+		if(process != null)
+		{
+			process.destroy();
+			return true;
+		}
+		else
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+/**
+ * Обертка над ProgressMonitor для работы из нескольких потоков.
+ *
+ * Все вызовы к целевому монитору идут под одной блокировкой.
+ * Если счетчики не разделяются, то операции со счетчиками
+ * остаются локальными для обертки, а к целевому монитору
+ * уходят только лог, ошибки и отмена.
+ */
+public class SynchronizedProgressMonitor implements ProgressMonitor
+{
+	protected final ProgressMonitor target;
+	protected final Object lock;
+	protected final boolean shareCounters;
+
+	protected ProgressData counters;
+
+	public SynchronizedProgressMonitor(ProgressMonitor target)
+	{
+		this(target, true);
+	}
+
+	public SynchronizedProgressMonitor(ProgressMonitor target, boolean shareCounters)
+	{
+		if(target instanceof SynchronizedProgressMonitor)
+		{
+			this.target = ((SynchronizedProgressMonitor)target).target;
+			this.lock = ((SynchronizedProgressMonitor)target).lock;
+		}
+		else
+		{
+			this.target = target;
+			this.lock = target;
+		}
+
+		this.shareCounters = shareCounters;
+
+		counters = new ProgressData();
+	}
+
+	public ProgressMonitor getTarget()
+	{
+		return target;
+	}
+
+	public void resetLog()
+	{
+		synchronized(lock)
+		{
+			target.resetLog();
+		}
+	}
+
+	public void print(String text)
+	{
+		synchronized(lock)
+		{
+			target.print(text);
+		}
+	}
+
+	public void println(String text)
+	{
+		synchronized(lock)
+		{
+			target.println(text);
+		}
+	}
+
+	public void println()
+	{
+		synchronized(lock)
+		{
+			target.println();
+		}
+	}
+
+	public void showErrMsg(Throwable ex)
+	{
+		synchronized(lock)
+		{
+			target.showErrMsg(ex);
+		}
+	}
+
+	public void initProgress(boolean operation, boolean page, boolean project)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.initProgress(operation, page, project);
+			}
+		}
+		else
+		{
+			counters = new ProgressData();
+
+			counters.operationMonitored = operation;
+			counters.pageMonitored = page;
+			counters.projectMonitored = project;
+		}
+	}
+
+	public boolean isOperationMonitored()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.isOperationMonitored();
+			}
+		}
+
+		return counters.operationMonitored;
+	}
+
+	public boolean isPageMonitored()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.isPageMonitored();
+			}
+		}
+
+		return counters.pageMonitored;
+	}
+
+	public boolean isProjectMonitored()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.isProjectMonitored();
+			}
+		}
+
+		return counters.projectMonitored;
+	}
+
+	public int getOperationLimit()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getOperationLimit();
+			}
+		}
+
+		return counters.operationLimit;
+	}
+
+	public int getOperationProgress()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getOperationProgress();
+			}
+		}
+
+		return counters.operationProgress;
+	}
+
+	public void setOperationLimit(int limit)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setOperationLimit(limit);
+			}
+		}
+		else
+		{
+			counters.operationLimit = limit;
+		}
+	}
+
+	public void setOperationProgress(int value)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setOperationProgress(value);
+			}
+		}
+		else
+		{
+			counters.operationProgress = value;
+		}
+	}
+
+	public void progressOperation(int amount)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.progressOperation(amount);
+			}
+		}
+		else
+		{
+			counters.operationProgress += amount;
+		}
+	}
+
+	public int getPageLimit()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getPageLimit();
+			}
+		}
+
+		return counters.pageLimit;
+	}
+
+	public int getPageProgress()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getPageProgress();
+			}
+		}
+
+		return counters.pageProgress;
+	}
+
+	public void setPageLimit(int limit)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setPageLimit(limit);
+			}
+		}
+		else
+		{
+			counters.pageLimit = limit;
+		}
+	}
+
+	public void setPageProgress(int value)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setPageProgress(value);
+			}
+		}
+		else
+		{
+			counters.pageProgress = value;
+		}
+	}
+
+	public void progressPage(int amount)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.progressPage(amount);
+			}
+		}
+		else
+		{
+			counters.pageProgress += amount;
+		}
+	}
+
+	public int getProjectLimit()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getProjectLimit();
+			}
+		}
+
+		return counters.projectLimit;
+	}
+
+	public int getProjectProgress()
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				return target.getProjectProgress();
+			}
+		}
+
+		return counters.projectProgress;
+	}
+
+	public void setProjectLimit(int limit)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setProjectLimit(limit);
+			}
+		}
+		else
+		{
+			counters.projectLimit = limit;
+		}
+	}
+
+	public void setProjectProgress(int value)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.setProjectProgress(value);
+			}
+		}
+		else
+		{
+			counters.projectProgress = value;
+		}
+	}
+
+	public void progressProject(int amount)
+	{
+		if(shareCounters)
+		{
+			synchronized(lock)
+			{
+				target.progressProject(amount);
+			}
+		}
+		else
+		{
+			counters.projectProgress += amount;
+		}
+	}
+
+	public boolean isCancelled()
+	{
+		return target.isCancelled();
+	}
+
+	public void setCancelled(boolean cancelled)
+	{
+		target.setCancelled(cancelled);
+	}
+}
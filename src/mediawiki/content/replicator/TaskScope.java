@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Область выполнения задач одной операции (загрузка страниц, файлов и т.п.).
+ *
+ * При threads > 1 задачи выполняются в собственном пуле области,
+ * иначе сразу при постановке в очередь, в вызывающем потоке.
+ * В работе одновременно не больше window задач (по умолчанию threads * 2),
+ * считая и готовые, которые еще ждут обработки у вызывающего (getBacklog()).
+ * Готовые задачи забираются в вызывающем потоке и передаются в completed(),
+ * так что файл данных проекта и сохранение проекта остаются за ним.
+ *
+ * Задачи получают getWorkerProgress(): в параллельном режиме это
+ * SynchronizedProgressMonitor со своими счетчиками, и его isCancelled()
+ * срабатывает как при отмене операции, так и при ошибке в любой из задач.
+ * После ошибки область дожидается задач в работе и выбрасывает первую ошибку.
+ * close() останавливает пул; после него ни один поток области не работает.
+ */
+public abstract class TaskScope<T>
+{
+	protected final ProgressMonitor progress;
+	protected final ProgressMonitor workerProgress;
+
+	protected final ExecutorService executor;
+	protected final ExecutorCompletionService<T> completion;
+
+	protected final boolean parallel;
+	protected final int window;
+
+	protected int inFlight = 0;
+	protected volatile boolean failed = false;
+
+	public TaskScope(ProgressMonitor progress, int threads)
+	{
+		this(progress, threads, threads * 2);
+	}
+
+	public TaskScope(ProgressMonitor progress, int threads, int window)
+	{
+		parallel = threads > 1;
+
+		if(parallel)
+		{
+			this.progress = new SynchronizedProgressMonitor(progress);
+
+			workerProgress = new SynchronizedProgressMonitor(progress, false)
+			{
+				public boolean isCancelled()
+				{
+					return failed || super.isCancelled();
+				}
+			};
+
+			executor = Util.createDaemonPool(threads);
+			completion = new ExecutorCompletionService(executor);
+
+			this.window = Math.max(window, threads);
+		}
+		else
+		{
+			this.progress = progress;
+			workerProgress = progress;
+
+			executor = null;
+			completion = new ExecutorCompletionService(new Executor()
+			{
+				public void execute(Runnable command)
+				{
+					command.run();
+				}
+			});
+
+			this.window = 1;
+		}
+	}
+
+	/**
+	 * Монитор для вызывающего потока.
+	 */
+	public ProgressMonitor getProgress()
+	{
+		return progress;
+	}
+
+	/**
+	 * Монитор для задач.
+	 */
+	public ProgressMonitor getWorkerProgress()
+	{
+		return workerProgress;
+	}
+
+	public boolean isParallel()
+	{
+		return parallel;
+	}
+
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Поставить задачу, предварительно дождавшись места в окне.
+	 */
+	public void submit(Callable<T> task) throws InterruptedException, IOException
+	{
+		while(inFlight > 0 && inFlight + getBacklog() >= window)
+		{
+			finish();
+		}
+
+		completion.submit(task);
+		inFlight++;
+
+		if(parallel)
+		{
+			progress.setOperationProgress(inFlight);
+		}
+	}
+
+	/**
+	 * Дождаться всех задач в работе.
+	 */
+	public void drain() throws InterruptedException, IOException
+	{
+		while(inFlight > 0)
+		{
+			finish();
+		}
+	}
+
+	/**
+	 * Забрать одну готовую задачу.
+	 *
+	 * Если в задаче случилась ошибка, то остальные задачи видят отмену,
+	 * мы дожидаемся их и только потом выбрасываем ошибку дальше.
+	 */
+	protected void finish() throws InterruptedException, IOException
+	{
+		Throwable error = null;
+
+		do
+		{
+			Future<T> future = completion.take();
+			inFlight--;
+
+			if(parallel)
+			{
+				progress.setOperationProgress(inFlight);
+			}
+
+			try
+			{
+				completed(future.get());
+			}
+			catch(ExecutionException ex)
+			{
+				failed = true;
+
+				if(error == null)
+				{
+					error = ex.getCause();
+				}
+			}
+		}
+		while(error != null && inFlight > 0);
+
+		if(error instanceof IOException)
+		{
+			throw (IOException)error;
+		}
+		else if(error instanceof RuntimeException)
+		{
+			throw (RuntimeException)error;
+		}
+		else if(error instanceof InterruptedException)
+		{
+			throw (InterruptedException)error;
+		}
+		else if(error != null)
+		{
+			throw new IOException(error);
+		}
+	}
+
+	/**
+	 * Сколько готовых задач completed() отложил на потом
+	 * (например, до готовности предыдущих); они тоже занимают окно.
+	 */
+	protected int getBacklog()
+	{
+		return 0;
+	}
+
+	/**
+	 * Обработать готовую задачу в вызывающем потоке.
+	 */
+	protected abstract void completed(T result) throws IOException;
+
+	/**
+	 * Остановить пул области. Задачи, которые так и не были забраны,
+	 * прерываются; вызывать в finally после drain().
+	 */
+	public void close()
+	{
+		if(executor != null)
+		{
+			executor.shutdownNow();
+
+			try
+			{
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
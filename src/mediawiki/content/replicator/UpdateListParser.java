@@ -29,13 +29,35 @@ import org.xml.sax.helpers.DefaultHandler;
 
 public class UpdateListParser extends DefaultHandler
 {
+	/**
+	 * Подготовить обновление: если можно, то по recentchanges
+	 * с прошлого обновления (RecentChangesParser), иначе полным проходом.
+	 */
+	public static void prepareUpdate(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval, boolean incremental) throws ParserConfigurationException, SAXException, IOException, TransformerException
+	{
+		if(incremental && RecentChangesParser.markForUpdates(project, progress, projectSaveInterval))
+		{
+			return;
+		}
+		
+		markForUpdates(project, progress, pagesPerRequest, projectSaveInterval);
+	}
+	
+	/**
+	 * Опросить последние ревизии всех страниц проекта.
+	 *
+	 * Время последней правки в вики запоминается до начала прохода,
+	 * и если проход завершен, то становится меткой для RecentChangesParser.
+	 */
 	public static void markForUpdates(Project project, ProgressMonitor progress, int pagesPerRequest, long projectSaveInterval) throws ParserConfigurationException, SAXException, IOException, TransformerException
 	{
 		progress.initProgress(true, true, true);
 		progress.setOperationLimit(2);
 		
 		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser parser = factory.newSAXParser();
+		final SAXParser parser = factory.newSAXParser();
+		
+		String updateTimestamp = RecentChangesParser.getChangeTimestamp(project, progress, false);
 		
 		long currentTime = System.currentTimeMillis();
 		long projectSaveTime = currentTime + projectSaveInterval;
@@ -46,7 +68,7 @@ public class UpdateListParser extends DefaultHandler
 		
 		progress.setProjectLimit(totalPages);
 		
-		UpdateListParser handler = new UpdateListParser(project, progress);
+		final UpdateListParser handler = new UpdateListParser(project, progress);
 		
 		for(WikiNamespace ns : project.listNamespaces())
 		{
@@ -91,42 +113,22 @@ public class UpdateListParser extends DefaultHandler
 
 					// progress.println(request);
 
-					for(int tries = 0; tries < 5 && !progress.isCancelled(); tries++)
+					RequestScheduler.getInstance().execute(request, progress, new RequestScheduler.ResponseHandler()
 					{
-						try
+						public void handleResponse(InputStream is) throws Exception
 						{
-							InputStream is = Util.openConnection(request);
-							progress.setOperationProgress(1);
-
 							parser.parse(is, handler);
-							progress.setOperationProgress(2);
-
-							is.close();
-							progress.setOperationProgress(0);
 
 							if(handler.parsed)
 							{
 								handler.parsed = false;
-								break;
 							}
 							else
 							{
 								throw new IOException("empty result");
 							}
 						}
-						catch(Throwable ex)
-						{
-							progress.showErrMsg(ex);
-
-							try
-							{
-								Thread.sleep(5000);
-							}
-							catch(InterruptedException ie)
-							{
-							}
-						}
-					}
+					});
 
 					if(handler.parsedPages < batch && !progress.isCancelled())
 					{
@@ -151,8 +153,7 @@ public class UpdateListParser extends DefaultHandler
 
 					if(currentTime >= projectSaveTime)
 					{
-						System.gc();
-						project.write(progress);
+						project.checkpoint(progress);
 						projectSaveTime = currentTime + projectSaveInterval;
 					}
 				}
@@ -163,6 +164,11 @@ public class UpdateListParser extends DefaultHandler
 				break;
 			}
 		}
+		
+		if(!progress.isCancelled())
+		{
+			project.setUpdateTimestamp(updateTimestamp);
+		}
 	}
 	
 	protected static final int MODE_NULL = 0;
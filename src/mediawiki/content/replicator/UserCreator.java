@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+
+/**
+ * Создание учетных записей пользователей проекта на целевой вики.
+ *
+ * Каждый пользователь - отдельная задача в TaskScope. Токен createaccount
+ * привязан к сессии (cookies), поэтому у каждого потока своя сессия:
+ * MultiPartPost и полученный в нем токен берутся из общего пула.
+ */
+public class UserCreator
+{
+	public static void createUsers(Project project, ProgressMonitor progress, long projectSaveInterval, int threads) throws IOException
+	{
+		UserQueue queue = new UserQueue(progress, threads);
+
+		progress = queue.getProgress();
+		ProgressMonitor workerProgress = queue.getWorkerProgress();
+
+		progress.initProgress(true, false, true);
+		progress.setOperationLimit(queue.isParallel() ? queue.getWindow() : 3);
+
+		ArrayBlockingQueue<Session> sessions = new ArrayBlockingQueue(Math.max(threads, 1));
+
+		for(int i = 0; i < Math.max(threads, 1); i++)
+		{
+			sessions.add(new Session());
+		}
+
+		int totalUsers = project.countUsers();
+		int currentUser = 0;
+
+		progress.setProjectLimit(totalUsers);
+
+		long currentTime = System.currentTimeMillis();
+		long projectSaveTime = currentTime + projectSaveInterval;
+
+		try
+		{
+			for(WikiUser user : project.listUsers())
+			{
+				currentUser++;
+
+				if(!user.exists())
+				{
+					queue.submit(new UserTask(project, user, "[" + currentUser + "/" + totalUsers + "] " + user.getName(), sessions, workerProgress));
+				}
+				else
+				{
+					queue.skip();
+				}
+
+				currentTime = System.currentTimeMillis();
+
+				if(progress.isCancelled())
+				{
+					break;
+				}
+				else if(currentTime >= projectSaveTime)
+				{
+					queue.drain();
+
+					System.gc();
+					project.write(progress);
+					projectSaveTime = System.currentTimeMillis() + projectSaveInterval;
+				}
+			}
+
+			queue.drain();
+		}
+		catch(InterruptedException ex)
+		{
+			throw new IOException("interrupted", ex);
+		}
+		finally
+		{
+			queue.close();
+		}
+
+		System.gc();
+		project.write(progress);
+	}
+
+	protected static class Session
+	{
+		public final MultiPartPost mpp;
+		public String token;
+
+		public Session() throws IOException
+		{
+			mpp = new MultiPartPost();
+		}
+	}
+
+	protected static class UserQueue extends TaskScope<UserTask>
+	{
+		protected int processedUsers = 0;
+
+		public UserQueue(ProgressMonitor progress, int threads)
+		{
+			super(progress, threads);
+		}
+
+		public void skip()
+		{
+			progress.setProjectProgress(++processedUsers);
+		}
+
+		protected void completed(UserTask task)
+		{
+			progress.setProjectProgress(++processedUsers);
+		}
+	}
+
+	protected static class UserTask implements Callable<UserTask>
+	{
+		protected final Project project;
+		protected final WikiUser user;
+		protected final String logEntry;
+		protected final BlockingQueue<Session> sessions;
+		protected final ProgressMonitor progress;
+
+		public UserTask(Project project, WikiUser user, String logEntry, BlockingQueue<Session> sessions, ProgressMonitor progress)
+		{
+			this.project = project;
+			this.user = user;
+			this.logEntry = logEntry;
+			this.sessions = sessions;
+			this.progress = progress;
+		}
+
+		public UserTask call() throws Exception
+		{
+			Session session = sessions.take();
+
+			try
+			{
+				createUser(session);
+			}
+			finally
+			{
+				sessions.put(session);
+			}
+
+			return this;
+		}
+
+		protected void createUser(Session session) throws IOException
+		{
+			MultiPartPost mpp = session.mpp;
+
+			progress.setOperationProgress(0);
+
+			if(session.token == null)
+			{
+				mpp.addParam("format", "xml");
+				mpp.addParam("uselang", "en");
+				mpp.addParam("action", "query");
+				mpp.addParam("meta", "tokens");
+				mpp.addParam("type", "createaccount");
+
+				String response = mpp.post(project.getTargetURL() + "api.php");
+				session.token = Util.substring(response, "createaccounttoken=\"", "\"");
+			}
+
+			progress.progressOperation(1);
+
+			mpp.addParam("format", "xml");
+			mpp.addParam("uselang", "en");
+			mpp.addParam("action", "createaccount");
+			mpp.addParam("username", user.getName());
+			mpp.addParam("password", user.getPassword());
+			mpp.addParam("retype", user.getPassword());
+			mpp.addParam("createreturnurl", project.getTargetURL());
+			mpp.addParam("createtoken", session.token);
+
+			String response = mpp.post(project.getTargetURL() + "api.php");
+			String status = Util.substring(response, "status=\"", "\"");
+
+			progress.progressOperation(1);
+
+			if(response.contains("already in use") || response.contains("userexists"))
+			{
+				progress.println(logEntry + " - exists");
+				user.setExists(true);
+			}
+			else if(response.contains("not specified a valid username") || response.contains("invaliduser"))
+			{
+				progress.println(logEntry + " - invalid");
+			}
+			else if("PASS".equalsIgnoreCase(status))
+			{
+				progress.println(logEntry + " - OK");
+				user.setExists(true);
+			}
+			else
+			{
+				progress.println(logEntry + " - failed");
+				throw new IOException(response);
+			}
+
+			progress.progressOperation(1);
+		}
+	}
+}
@@ -16,19 +16,26 @@
 
 package mediawiki.content.replicator;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class Util
 {
@@ -39,6 +46,49 @@ public class Util
 	public static int pagesPerRequest = 50;
 	public static long projectSaveInterval = 5 * 60 * 1000;
 	
+	public static int downloadThreads = 4;
+	public static int connectionsPerHost = 2;
+	public static boolean batchRequests = true;
+	
+	/**
+	 * Сколько времени можно потратить на загрузку страниц, 0 - без ограничения.
+	 */
+	public static long downloadTimeLimit = 0;
+	
+	/**
+	 * Искать изменения по recentchanges и журналам с прошлого обновления,
+	 * а не опрашивать все страницы проекта (см. RecentChangesParser).
+	 */
+	public static boolean incrementalUpdates = true;
+	
+	/**
+	 * Получать список страниц вместе с prop=info, сразу помечая
+	 * устаревшие страницы (см. AllPagesListParser).
+	 */
+	public static boolean listPageInfo = true;
+	
+	/**
+	 * Не больше стольких запросов к API в секунду на все потоки, 0 - без ограничения.
+	 */
+	public static double requestsPerSecond = 0;
+	
+	/**
+	 * Параметр maxlag запросов к API в секундах, 0 - не передавать.
+	 */
+	public static int maxLag = 5;
+	
+	public static int compressionThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Сколько страниц выгружается в дамп параллельно и сколько
+	 * готовых страниц может ждать своей очереди в памяти (см. DumpExporter).
+	 * По умолчанию, как и раньше, страницы выгружаются по одной прямо в дамп;
+	 * при exportThreads > 1 в памяти бывает до exportWindow страниц
+	 * размером до DumpExporter.MAX_BUFFERED_PAGE.
+	 */
+	public static int exportThreads = 1;
+	public static int exportWindow = 16;
+	
 	public static final char[] RESTRICTED_CHARS = {'\\', '/', ':', '*', '?', '\"', '<', '>', '|'}; // "\\/:*?\"<>|";
 	public static final char[] VALIDATED_CHARS =  {' ',  ' ', ' ', '^', '~', '\'', '(', ')', '-'}; // "   ^~'()-";
 	
@@ -89,6 +139,24 @@ public class Util
 		source.delete();
 	}
 	
+	/**
+	 * Пул из threads потоков-демонов: если поток данных, который им пользуется,
+	 * так и не закрыли (например, после ошибки), программа все равно завершится.
+	 */
+	public static ExecutorService createDaemonPool(int threads)
+	{
+		return Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		});
+	}
+	
 	public static String noEmpty(String text, String placeholder)
 	{
 		if(text == null || text.isEmpty())
@@ -200,73 +268,188 @@ public class Util
 		}
 	}
 	
-	public static InputStream openConnection(String url) throws IOException
+	/**
+	 * Загрузить файл по url сразу на диск.
+	 *
+	 * Данные пишутся в file.part рядом с file, и только полностью загруженный
+	 * файл переименовывается в file. Если file.part остался от прошлой попытки,
+	 * загрузка продолжается с его конца запросом Range. Длина результата
+	 * сверяется с Content-Length; недокачанный file.part остается на месте
+	 * для следующей попытки.
+	 *
+	 * Чтобы не склеить начало старой версии файла с концом новой (файл
+	 * могли загрузить заново между попытками), ETag или Last-Modified
+	 * первого ответа сохраняется в file.part.tag и передается в If-Range:
+	 * если файл изменился, сервер отдает его целиком. Без сохраненного
+	 * ETag или Last-Modified file.part не продолжается, а загружается заново.
+	 *
+	 * @return размер файла
+	 */
+	public static long downloadFile(String url, File file, ProgressMonitor progress) throws IOException
 	{
-		HttpURLConnection connection = (HttpURLConnection)(new URL(url)).openConnection();
-
-		connection.setRequestMethod("GET");
-		connection.setInstanceFollowRedirects(true);
-
-		connection.setRequestProperty("User-Agent", USER_AGENT);
-		connection.setRequestProperty("Accept-Encoding", "gzip");
-
-		InputStream is = connection.getInputStream();
-
-		if("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+		File dir = file.getParentFile();
+		
+		if(dir != null && !dir.isDirectory())
 		{
-			is = new GZIPInputStream(is);
+			dir.mkdirs();
 		}
 		
-		return is;
-	}
-	
-	public static byte[] downloadFile(String url, ProgressMonitor progress) throws IOException
-	{
-		HttpURLConnection connection = (HttpURLConnection)(new URL(url)).openConnection();
+		File part = new File(file.getPath() + ".part");
+		File tag = new File(file.getPath() + ".part.tag");
+		
+		long offset = part.isFile() ? part.length() : 0;
+		String validator = offset > 0 ? readValidator(tag) : null;
+		
+		if(offset > 0 && validator == null)
+		{
+			part.delete();
+			offset = 0;
+		}
 		
-		connection.setRequestMethod("GET");
-		connection.setInstanceFollowRedirects(true);
+		HttpURLConnection connection = HttpClient.open(url, "GET");
 		
-		int total = connection.getContentLength();
+		if(offset > 0)
+		{
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			connection.setRequestProperty("If-Range", validator);
+		}
+		
+		int code = connection.getResponseCode();
+		long total = connection.getContentLengthLong();
 		
-		if(total >= 0)
+		if(code == 416 && offset > 0)
 		{
-			progress.setOperationProgress(0);
-			progress.setOperationLimit(total);
+			/*
+			 * Файл на сервере стал короче того, что уже загружено.
+			 */
+			
+			HttpClient.discard(connection);
+			part.delete();
+			tag.delete();
+			
+			return downloadFile(url, file, progress);
+		}
+		else if(code == HttpURLConnection.HTTP_PARTIAL && offset > 0)
+		{
+			String range = connection.getHeaderField("Content-Range");
+			
+			if(range == null || !range.startsWith("bytes " + offset + "-"))
+			{
+				connection.disconnect();
+				part.delete();
+				tag.delete();
+				
+				throw new IOException("unexpected Content-Range: " + range);
+			}
+			
+			if(total >= 0)
+			{
+				total += offset;
+			}
 		}
 		else
 		{
-			progress.setOperationProgress(0);
-			progress.setOperationLimit(1);
+			/*
+			 * Сюда же попадает ответ 200 на If-Range, когда файл изменился.
+			 */
+			
+			HttpClient.checkResponse(connection);
+			offset = 0;
+			
+			writeValidator(tag, getValidator(connection));
 		}
 		
-		InputStream in = connection.getInputStream();
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		progress.setOperationProgress(0);
+		progress.setOperationLimit(total >= 0 ? (int)Math.min(total, Integer.MAX_VALUE) : 1);
+		progress.progressOperation((int)Math.min(offset, Integer.MAX_VALUE));
 		
-		byte[] buf = new byte[0x10000];
-		int len;
+		ReadableByteChannel in = Channels.newChannel(connection.getInputStream());
+		FileChannel out = new FileOutputStream(part, offset > 0).getChannel();
 		
-		while(true)
+		try
 		{
-			len = in.read(buf);
+			ByteBuffer buffer = ByteBuffer.allocate(0x10000);
 			
-			if(len > 0)
+			while(in.read(buffer) >= 0)
 			{
-				out.write(buf, 0, len);
-				progress.progressOperation(len);
+				buffer.flip();
+				progress.progressOperation(buffer.remaining());
+				
+				while(buffer.hasRemaining())
+				{
+					out.write(buffer);
+				}
+				
+				buffer.clear();
 			}
-			else if(len < 0)
+			
+			out.force(true);
+		}
+		finally
+		{
+			out.close();
+			in.close();
+		}
+		
+		long size = part.length();
+		
+		if(total >= 0 && size != total)
+		{
+			if(size > total)
 			{
-				break;
+				part.delete();
+				tag.delete();
 			}
+			
+			throw new IOException("incomplete download: " + size + " of " + total + " bytes");
 		}
 		
-		in.close();
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		tag.delete();
 		
-		buf = out.toByteArray();
-		out.close();
+		return size;
+	}
+	
+	/**
+	 * Значение для If-Range: строгий ETag, иначе Last-Modified.
+	 * Слабый ETag (W/...) для If-Range не годится.
+	 */
+	protected static String getValidator(HttpURLConnection connection)
+	{
+		String etag = connection.getHeaderField("ETag");
+		
+		if(etag != null && !etag.isEmpty() && !etag.startsWith("W/"))
+		{
+			return etag;
+		}
 		
-		return buf;
+		String modified = connection.getHeaderField("Last-Modified");
+		
+		return modified != null && !modified.isEmpty() ? modified : null;
+	}
+	
+	protected static String readValidator(File tag) throws IOException
+	{
+		if(!tag.isFile())
+		{
+			return null;
+		}
+		
+		String validator = new String(Files.readAllBytes(tag.toPath()), StandardCharsets.UTF_8).trim();
+		
+		return validator.isEmpty() ? null : validator;
+	}
+	
+	protected static void writeValidator(File tag, String validator) throws IOException
+	{
+		if(validator != null)
+		{
+			Files.write(tag.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+		}
+		else
+		{
+			tag.delete();
+		}
 	}
 	
 	private static MessageDigest MD5;
@@ -18,9 +18,11 @@ package mediawiki.content.replicator;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -57,21 +59,32 @@ public class WikiPage implements Comparable<WikiPage>
 	private String title;
 	
 	private long offset = -1;
+	private int recordLength = 0;
 	private boolean loaded = true;
 	
-	private final TreeMap<Integer, WikiRevision> revisions = new TreeMap();
+	private final IntSortedMap<WikiRevision> revisions = new IntSortedMap();
 	private final TreeMap<String, WikiImage> images = new TreeMap();
 	
 	private String zipname;
 	private final HashMap<String, WikiRevision> entrymap = new HashMap();
 	private ZipFile zip;
 	private boolean useDefaultZipName; // по назначению не используется, пишется zipname
+
+	/**
+	 * Текст ревизий лежит не в ZIP архиве, а в RevisionStore проекта.
+	 */
+	private boolean packed;
 	
 	private boolean missing;
 	private boolean actual;
 	
 	private int containedIn;
 	
+	/**
+	 * Размер текста последней ревизии в вики (по prop=info), -1 - неизвестен.
+	 */
+	private int contentLength;
+	
 	public WikiPage(int id, int ns)
 	{
 		this.id = id;
@@ -81,6 +94,7 @@ public class WikiPage implements Comparable<WikiPage>
 		actual = false;
 		
 		containedIn = -1;
+		contentLength = -1;
 	}
 	
 	public WikiPage(DataInput dis, int version, ProgressMonitor progress) throws IOException
@@ -99,10 +113,12 @@ public class WikiPage implements Comparable<WikiPage>
 		dos.writeBoolean(actual);
 		
 		dos.writeInt(containedIn);
+		dos.writeInt(contentLength);
 		
 		Util.writeUTF(dos, title);
-		Util.writeUTF(dos, hasZipName() ? getZipName() : null);
+		Util.writeUTF(dos, !packed && hasZipName() ? getZipName() : null);
 		dos.writeBoolean(useDefaultZipName);
+		dos.writeBoolean(packed);
 		
 		dos.writeInt(revisions.size());
 
@@ -143,11 +159,13 @@ public class WikiPage implements Comparable<WikiPage>
 			actual = (version >= 6) ? dis.readBoolean() : true;
 			
 			containedIn = (version >= 16) ? dis.readInt() : -1;
+			contentLength = (version >= 20) ? dis.readInt() : -1;
 			
 			title = Util.readUTF(dis);
 			
 			zipname = Util.readUTF(dis);
 			useDefaultZipName = version >= 11 ? dis.readBoolean() : false;
+			packed = version >= 21 ? dis.readBoolean() : false;
 			
 //			if(useDefaultZipName)
 //			{
@@ -181,6 +199,7 @@ public class WikiPage implements Comparable<WikiPage>
 			actual = true;
 			
 			containedIn = -1;
+			contentLength = -1;
 
 			if(!missing)
 			{
@@ -205,6 +224,16 @@ public class WikiPage implements Comparable<WikiPage>
 		loaded = true;
 	}
 
+	public int getRecordLength()
+	{
+		return recordLength;
+	}
+	
+	public void setRecordLength(int length)
+	{
+		recordLength = length;
+	}
+	
 	public long getOffset()
 	{
 		return offset;
@@ -228,10 +257,12 @@ public class WikiPage implements Comparable<WikiPage>
 			return false; // throw new IllegalStateException("nothing to load");
 		}
 		
-		RandomAccessFile dataFile = project.getDataFile();
+		ChannelDataInput dataInput = project.getDataInput();
 
-		dataFile.seek(offset);
-		read(dataFile, project.getVersion(), progress);
+		dataInput.seek(offset);
+		read(dataInput, project.getVersion(), progress);
+		
+		recordLength = (int)(dataInput.getFilePointer() - offset);
 		
 		return true;
 	}
@@ -240,12 +271,25 @@ public class WikiPage implements Comparable<WikiPage>
 	{
 		if(update && loaded)
 		{
+			/*
+			 * Старая копия страницы остается в файле мусором,
+			 * его потом выбросит Project.compact().
+			 */
+			
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			write(new DataOutputStream(record));
+			
 			RandomAccessFile dataFile = project.getDataFile();
 
 			offset = dataFile.length();
+			recordLength = record.size();
 
+			byte[] data = record.toByteArray();
+			
 			dataFile.seek(offset);
-			write(dataFile);
+			dataFile.write(data);
+			
+			project.getJournal().append(this, data);
 		}
 		
 		loaded = false;
@@ -253,6 +297,7 @@ public class WikiPage implements Comparable<WikiPage>
 		closeArchive();
 		entrymap.clear();
 		zipname = null;
+		packed = false;
 		
 		revisions.clear();
 		images.clear();
@@ -413,7 +458,7 @@ public class WikiPage implements Comparable<WikiPage>
 		else
 		{
 			// они отсортированы по возрастанию revid, поэтому
-			return revisions.lastEntry().getValue().getID();
+			return revisions.lastValue().getID();
 		}
 	}
 	
@@ -482,9 +527,22 @@ public class WikiPage implements Comparable<WikiPage>
 		this.actual = actual;
 	}
 	
+	public int getContentLength()
+	{
+		return contentLength;
+	}
+	
+	public void setContentLength(int length)
+	{
+		contentLength = length;
+	}
+	
+	/**
+	 * Есть ли у страницы сохраненный текст: ZIP архив или RevisionStore.
+	 */
 	public boolean hasZipName()
 	{
-		return zipname != null || useDefaultZipName;
+		return packed || zipname != null || useDefaultZipName;
 	}
 	
 	public String getDefaultZipName()
@@ -604,9 +662,28 @@ public class WikiPage implements Comparable<WikiPage>
 //		}
 //	}
 	
+	public boolean isPacked()
+	{
+		return packed;
+	}
+
+	public void setPacked(boolean packed)
+	{
+		this.packed = packed;
+
+		if(packed)
+		{
+			zipname = null;
+			useDefaultZipName = false;
+		}
+	}
+
+	/**
+	 * Открыть архив страницы; для страниц в RevisionStore ничего не делает.
+	 */
 	public void openArchive(File file) throws IOException
 	{
-		if(zip == null)
+		if(zip == null && !packed)
 		{
 			zip = new ZipFile(file);
 		}
@@ -635,7 +712,19 @@ public class WikiPage implements Comparable<WikiPage>
 	
 	public void inflateRevision(WikiRevision rv) throws IOException
 	{
-		if(rv.hasEntryName())
+		if(rv.hasEntryName() && packed)
+		{
+			byte[] data = project.getRevisionStore().read(rv.getID());
+
+			if(data == null)
+			{
+				throw new IOException("revision " + rv.getID() + " not found in revision store");
+			}
+
+			rv.setText(new String(data, "UTF-8"));
+			rv.setEncodedTextLength(data.length);
+		}
+		else if(rv.hasEntryName())
 		{
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -643,6 +732,12 @@ public class WikiPage implements Comparable<WikiPage>
 			int len;
 			
 			ZipEntry entry = zip.getEntry(rv.getEntryName());
+
+			if(entry == null)
+			{
+				throw new IOException("entry " + rv.getEntryName() + " not found in " + zip.getName());
+			}
+
 			InputStream is = zip.getInputStream(entry);
 
 			while(is.available() > 0)
@@ -668,6 +763,54 @@ public class WikiPage implements Comparable<WikiPage>
 		}
 	}
 	
+	/**
+	 * Выгрузить ревизию в дамп, передав ее текст из архива потоком байт
+	 * (см. XMLDumpWriter.appendUTF8()); длина текста берется из каталога
+	 * архива, так что текст не декодируется и в String не собирается.
+	 */
+	protected void dumpRevision(XMLDumpWriter xml, WikiRevision rv) throws IOException
+	{
+		if(packed)
+		{
+			byte[] data = project.getRevisionStore().read(rv.getID());
+
+			if(data == null)
+			{
+				throw new IOException("revision " + rv.getID() + " not found in revision store");
+			}
+
+			rv.dump(xml, new ByteArrayInputStream(data), data.length);
+			return;
+		}
+
+		ZipEntry entry = zip.getEntry(rv.getEntryName());
+
+		if(entry == null)
+		{
+			throw new IOException("entry " + rv.getEntryName() + " not found in " + zip.getName());
+		}
+
+		if(entry.getSize() < 0 || entry.getSize() > Integer.MAX_VALUE)
+		{
+			inflateRevision(rv);
+			rv.dump(xml);
+
+			rv.setText(null);
+			return;
+		}
+
+		InputStream is = zip.getInputStream(entry);
+
+		try
+		{
+			rv.dump(xml, is, (int)entry.getSize());
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
 	/**
 	 * Достать текст ревизий из архива.
 	 * 
@@ -676,12 +819,35 @@ public class WikiPage implements Comparable<WikiPage>
 	 * Сюда нужно передать файл, который чтобы создать, надо проверить hasZipName().
 	 * Так что прочитать несуществующий файл тоже в принципе не должно получиться.
 	 * 
-	 * @param file собственно ZIP архив
+	 * @param file собственно ZIP архив (для страниц в RevisionStore не используется)
 	 * @param mode что читать: все / не загруженные / только последнюю
 	 * @throws IOException 
 	 */
 	public void inflate(File file, int mode) throws IOException
 	{
+		if(packed)
+		{
+			for(WikiRevision rv : revisions.values())
+			{
+				if(mode == INFLATE_LATEST)
+				{
+					rv = revisions.lastValue();
+				}
+
+				if(mode != INFLATE_NOT_UPLOADED || !rv.isUploaded())
+				{
+					inflateRevision(rv);
+				}
+
+				if(mode == INFLATE_LATEST)
+				{
+					break;
+				}
+			}
+
+			return;
+		}
+
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
 		byte[] buf = new byte[0x10000];
@@ -698,7 +864,7 @@ public class WikiPage implements Comparable<WikiPage>
 			{
 				if(lastRevOnly)
 				{
-					rv = revisions.lastEntry().getValue();
+					rv = revisions.lastValue();
 				}
 				
 				if(rv.hasEntryName() && (lastRevOnly || !rv.isUploaded()))
@@ -772,6 +938,12 @@ public class WikiPage implements Comparable<WikiPage>
 	
 	public void deflate(File file) throws IOException
 	{
+		if(packed)
+		{
+			pack();
+			return;
+		}
+
 		File dir = file.getParentFile();
 		
 		if(!dir.exists())
@@ -799,11 +971,107 @@ public class WikiPage implements Comparable<WikiPage>
 		zos.close();
 	}
 	
+	/**
+	 * Дописать в существующий архив ревизии, у которых есть текст,
+	 * не трогая уже записанные (см. ZipAppender).
+	 * 
+	 * @throws IOException в том числе если архив нельзя дописать;
+	 * тогда ни одной записи в нем не изменено, и его надо переписать
+	 * через inflate() / deflate()
+	 */
+	public void append(File file) throws IOException
+	{
+		if(packed)
+		{
+			pack();
+			return;
+		}
+
+		closeArchive();
+		
+		ZipAppender zos = new ZipAppender(file);
+		
+		try
+		{
+			for(WikiRevision rv : revisions.values())
+			{
+				if(rv.hasText())
+				{
+					String entryname = rv.getEntryName();
+
+					zos.putEntry(entryname, rv.getText().getBytes("UTF-8"));
+
+					rv.setEntryName(entryname);
+					rv.setText(null);
+				}
+			}
+		}
+		finally
+		{
+			zos.close();
+		}
+	}
+	
+	/**
+	 * Сложить в RevisionStore проекта ревизии, у которых есть текст.
+	 * Ревизии там ищутся по ID, так что уже сохраненные не трогаются,
+	 * а страница с этого момента считается перенесенной в хранилище.
+	 */
+	public void pack() throws IOException
+	{
+		RevisionStore store = project.getRevisionStore();
+
+		for(WikiRevision rv : revisions.values())
+		{
+			if(rv.hasText())
+			{
+				store.put(rv.getID(), rv.getParentID(), rv.getText().getBytes("UTF-8"));
+
+				rv.setEntryName(rv.getEntryName());
+				rv.setText(null);
+			}
+		}
+
+		setPacked(true);
+	}
+
+	/**
+	 * Перенести ревизии из ZIP архива страницы в RevisionStore,
+	 * по одной, чтобы не держать в памяти всю историю.
+	 * Сам архив не удаляется: это можно сделать только после того,
+	 * как страница с флагом packed будет сохранена в проекте.
+	 */
+	public void moveToStore(File file) throws IOException
+	{
+		RevisionStore store = project.getRevisionStore();
+
+		openArchive(file);
+
+		try
+		{
+			for(WikiRevision rv : revisions.values())
+			{
+				if(rv.hasEntryName())
+				{
+					inflateRevision(rv);
+					store.put(rv.getID(), rv.getParentID(), rv.getText().getBytes("UTF-8"));
+					rv.setText(null);
+				}
+			}
+		}
+		finally
+		{
+			closeArchive();
+		}
+
+		setPacked(true);
+	}
+
 	public boolean needsRefactoring()
 	{
 		for(WikiRevision rv : revisions.values())
 		{
-			if(rv.needsRefactoring())
+			if(!packed && rv.needsRefactoring())
 			{
 				return true;
 			}
@@ -817,7 +1085,7 @@ public class WikiPage implements Comparable<WikiPage>
 			}
 		}
 		
-		return hasZipName() && !getDefaultZipName().equals(getZipName());
+		return !packed && hasZipName() && !getDefaultZipName().equals(getZipName());
 	}
 	
 	public void refactor(File oldZip, File newZip, ProgressMonitor progress) throws IOException
@@ -1091,7 +1359,7 @@ public class WikiPage implements Comparable<WikiPage>
 		{
 			if(inflateMode == INFLATE_LATEST)
 			{
-				rv = revisions.lastEntry().getValue();
+				rv = revisions.lastValue();
 			}
 			
 			if(inflateMode != INFLATE_NOT_UPLOADED || !rv.isUploaded())
@@ -1107,10 +1375,18 @@ public class WikiPage implements Comparable<WikiPage>
 					opened = true;
 				}
 				
-				inflateRevision(rv);
-				rv.dump(xml);
+				if(xml instanceof XMLDumpWriter && rv.hasEntryName())
+				{
+					dumpRevision((XMLDumpWriter)xml, rv);
+				}
+				else
+				{
+					inflateRevision(rv);
+					rv.dump(xml);
+					
+					rv.setText(null);
+				}
 				
-				rv.setText(null);
 				xml.flush();
 				
 				count++;
@@ -1246,7 +1522,53 @@ public class WikiPage implements Comparable<WikiPage>
 			result |= VERIFICATION_NOT_DOWNLOADED;
 		}
 		
-		if(checkRevisions)
+		if(checkRevisions && packed)
+		{
+			try
+			{
+				RevisionStore store = project.getRevisionStore();
+				boolean flag = true;
+
+				for(WikiRevision rv : revisions.values())
+				{
+					boolean stored = store.contains(rv.getID());
+
+					if(!rv.hasEntryName() && stored)
+					{
+						result |= VERIFICATION_ORPHANED_ENTRY;
+						rv.setEntryName(rv.getEntryName());
+					}
+
+					if(rv.hasEntryName() && !stored)
+					{
+						result |= VERIFICATION_MISSING_ENTRY;
+
+						rv.setEntryName(null);
+						flag = false;
+					}
+
+					progress.progressPage(1);
+				}
+
+				if(flag && missing)
+				{
+					result |= VERIFICATION_FALSE_MISSING;
+					missing = false;
+				}
+			}
+			catch(IOException ex)
+			{
+				result |= VERIFICATION_MISSING_ARCHIVE;
+
+				for(WikiRevision rv : revisions.values())
+				{
+					rv.setEntryName(null);
+				}
+
+				setPacked(false);
+			}
+		}
+		else if(checkRevisions)
 		{
 			String filename = getZipName();
 
@@ -19,19 +19,12 @@ package mediawiki.content.replicator;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 
 public class WikiRevision implements Comparable<WikiRevision>
 {
-	public static final HashMap<String, String> TEXT_ATTRIBUTES;
-	
-	static
-	{
-		TEXT_ATTRIBUTES = new HashMap();
-		TEXT_ATTRIBUTES.put("xml:space", "preserve");
-	}
-	
 	private WikiPage page;
 	
 	private int id;
@@ -290,6 +283,55 @@ public class WikiRevision implements Comparable<WikiRevision>
 	}
 	
 	public void dump(XMLStringBuilder xml)
+	{
+		dumpInfo(xml);
+
+		if(text != null)
+		{
+			xml.append("model", "wikitext");
+			xml.append("format", "text/x-wiki");
+
+			xml.append("text", text, getTextAttributes(getEncodedTextLength()));
+		}
+
+		xml.closeTag();
+	}
+
+	/**
+	 * То же, что dump(), но текст берется прямо из архива, без String.
+	 *
+	 * @param content текст ревизии в UTF-8
+	 * @param length его длина в байтах
+	 */
+	public void dump(XMLDumpWriter xml, InputStream content, int length) throws IOException
+	{
+		dumpInfo(xml);
+
+		xml.append("model", "wikitext");
+		xml.append("format", "text/x-wiki");
+
+		setEncodedTextLength(length);
+
+		xml.appendUTF8("text", content, getTextAttributes(length));
+
+		xml.closeTag();
+	}
+
+	/**
+	 * Атрибуты тега text; свои на каждый вызов, потому что
+	 * страницы могут выгружаться в дамп из нескольких потоков.
+	 */
+	protected static HashMap<String, String> getTextAttributes(int length)
+	{
+		HashMap<String, String> attributes = new HashMap();
+		
+		attributes.put("xml:space", "preserve");
+		attributes.put("bytes", Integer.toString(length));
+		
+		return attributes;
+	}
+
+	protected void dumpInfo(XMLStringBuilder xml)
 	{
 		xml.openTag("revision");
 
@@ -316,17 +358,5 @@ public class WikiRevision implements Comparable<WikiRevision>
 		{
 			xml.append("comment", comment);
 		}
-		
-		if(text != null)
-		{
-			xml.append("model", "wikitext");
-			xml.append("format", "text/x-wiki");
-			
-			TEXT_ATTRIBUTES.put("bytes", Integer.toString(getEncodedTextLength()));
-			
-			xml.append("text", text, TEXT_ATTRIBUTES);
-		}
-		
-		xml.closeTag();
 	}
 }
\ No newline at end of file
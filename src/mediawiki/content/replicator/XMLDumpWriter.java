@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * XMLStringBuilder, который пишет сразу в поток.
+ *
+ * Теги и текст попадают в один переиспользуемый буфер char[BUFFER_SIZE],
+ * который сбрасывается в Writer по заполнении; текст экранируется
+ * прямо при копировании в буфер. Таким образом ни документ целиком,
+ * ни экранированная копия текста ревизии в памяти не собираются.
+ *
+ * Текст ревизии можно передать и потоком байт в UTF-8 (appendUTF8()):
+ * тогда он экранируется и пишется в поток прямо в байтах, без String.
+ *
+ * Вывод совпадает с XMLStringBuilder байт в байт.
+ * Ошибки записи внутри println() / openTag() / append() выбрасываются
+ * как UncheckedIOException, а из flush() и close() - как обычный IOException.
+ */
+public class XMLDumpWriter extends XMLStringBuilder
+{
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	protected static final byte[] AMP = "&amp;".getBytes(StandardCharsets.US_ASCII);
+	protected static final byte[] LT = "&lt;".getBytes(StandardCharsets.US_ASCII);
+	protected static final byte[] GT = "&gt;".getBytes(StandardCharsets.US_ASCII);
+	protected static final byte[] APOS = "&apos;".getBytes(StandardCharsets.US_ASCII);
+	protected static final byte[] QUOT = "&quot;".getBytes(StandardCharsets.US_ASCII);
+
+	protected char[] chars;
+	protected int count;
+
+	/**
+	 * Вывод в UTF-8, и текст из appendUTF8() можно копировать как есть.
+	 */
+	protected final boolean utf8;
+	protected byte[] bytes;
+
+	public XMLDumpWriter(OutputStream os, String encoding) throws UnsupportedEncodingException
+	{
+		super(os, encoding);
+
+		if(writer == null)
+		{
+			throw new IllegalArgumentException("output stream required");
+		}
+
+		chars = new char[BUFFER_SIZE];
+		count = 0;
+
+		utf8 = Charset.forName(encoding).equals(StandardCharsets.UTF_8);
+	}
+
+	protected void drain()
+	{
+		try
+		{
+			writer.write(chars, 0, count);
+		}
+		catch(IOException ex)
+		{
+			throw new UncheckedIOException(ex);
+		}
+
+		count = 0;
+	}
+
+	protected void write(char c)
+	{
+		if(count == chars.length)
+		{
+			drain();
+		}
+
+		chars[count++] = c;
+	}
+
+	protected void write(String text)
+	{
+		write(text, 0, text.length());
+	}
+
+	protected void write(String text, int start, int end)
+	{
+		while(start < end)
+		{
+			if(count == chars.length)
+			{
+				drain();
+			}
+
+			int len = Math.min(end - start, chars.length - count);
+			text.getChars(start, start + len, chars, count);
+
+			count += len;
+			start += len;
+		}
+	}
+
+	/**
+	 * То же, что write(escapeText(text)), но без промежуточных строк:
+	 * участки без спецсимволов копируются в буфер целиком.
+	 */
+	protected void writeEscaped(String text)
+	{
+		int length = text.length();
+		int start = 0;
+
+		for(int i = 0; i < length; i++)
+		{
+			String entity;
+
+			switch(text.charAt(i))
+			{
+				case '&':
+					entity = "&amp;";
+					break;
+
+				case '<':
+					entity = "&lt;";
+					break;
+
+				case '>':
+					entity = "&gt;";
+					break;
+
+				case '\'':
+					entity = "&apos;";
+					break;
+
+				case '\"':
+					entity = "&quot;";
+					break;
+
+				default:
+					continue;
+			}
+
+			write(text, start, i);
+			write(entity);
+
+			start = i + 1;
+		}
+
+		write(text, start, length);
+	}
+
+	protected void writeAttributes(Map<String, String> attributes)
+	{
+		if(attributes != null)
+		{
+			for(Map.Entry<String, String> entry : attributes.entrySet())
+			{
+				write(' ');
+				write(entry.getKey());
+				write("=\"");
+				write(entry.getValue());
+				write('\"');
+			}
+		}
+	}
+
+	public void println(String text)
+	{
+		write(tabs.get(indentation));
+		write(text);
+		write("\r\n");
+	}
+
+	public void openTag(String tag, Map<String, String> attributes)
+	{
+		write(tabs.get(indentation));
+		write('<');
+		write(open.push(tag));
+
+		writeAttributes(attributes);
+
+		write(">\r\n");
+		increaseIndentation();
+	}
+
+	public void closeTag()
+	{
+		decreaseIndentation();
+
+		write(tabs.get(indentation));
+		write("</");
+		write(open.pop());
+		write(">\r\n");
+	}
+
+	public void append(String tag, String text, Map<String, String> attributes)
+	{
+		write(tabs.get(indentation));
+		write('<');
+		write(tag);
+
+		writeAttributes(attributes);
+
+		write('>');
+		writeEscaped(text);
+		write("</");
+		write(tag);
+		write(">\r\n");
+	}
+
+	/**
+	 * То же, что append(), но текст читается из потока байт в UTF-8.
+	 *
+	 * Байты ASCII в UTF-8 не встречаются внутри многобайтовых символов,
+	 * поэтому спецсимволы заменяются прямо в байтах, а остальное
+	 * копируется в выходной поток без декодирования. Если вывод
+	 * не в UTF-8, текст все же декодируется целиком.
+	 */
+	public void appendUTF8(String tag, InputStream in, Map<String, String> attributes) throws IOException
+	{
+		write(tabs.get(indentation));
+		write('<');
+		write(tag);
+
+		writeAttributes(attributes);
+
+		write('>');
+
+		if(utf8)
+		{
+			flush();
+
+			try
+			{
+				writeEscaped(in, stream);
+			}
+			catch(IOException ex)
+			{
+				/*
+				 * Начало текста уже в потоке: закрываем тег,
+				 * чтобы вызывающий мог закрыть и остальные.
+				 */
+
+				write("</");
+				write(tag);
+				write(">\r\n");
+
+				throw ex;
+			}
+		}
+		else
+		{
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			byte[] buf = new byte[Util.BUFFER_SIZE];
+			int len;
+
+			while((len = in.read(buf)) >= 0)
+			{
+				text.write(buf, 0, len);
+			}
+
+			writeEscaped(new String(text.toByteArray(), StandardCharsets.UTF_8));
+		}
+
+		write("</");
+		write(tag);
+		write(">\r\n");
+	}
+
+	protected void writeEscaped(InputStream in, OutputStream out) throws IOException
+	{
+		if(bytes == null)
+		{
+			bytes = new byte[BUFFER_SIZE];
+		}
+
+		byte[] buf = new byte[Util.BUFFER_SIZE];
+		int size = 0;
+		int len;
+
+		while((len = in.read(buf)) >= 0)
+		{
+			for(int i = 0; i < len; i++)
+			{
+				/*
+				 * Самая длинная замена - 6 байт.
+				 */
+
+				if(size > bytes.length - 6)
+				{
+					out.write(bytes, 0, size);
+					size = 0;
+				}
+
+				byte b = buf[i];
+
+				switch(b)
+				{
+					case '&':
+						size = put(size, AMP);
+						break;
+
+					case '<':
+						size = put(size, LT);
+						break;
+
+					case '>':
+						size = put(size, GT);
+						break;
+
+					case '\'':
+						size = put(size, APOS);
+						break;
+
+					case '\"':
+						size = put(size, QUOT);
+						break;
+
+					default:
+						bytes[size++] = b;
+				}
+			}
+		}
+
+		out.write(bytes, 0, size);
+	}
+
+	protected int put(int size, byte[] entity)
+	{
+		System.arraycopy(entity, 0, bytes, size, entity.length);
+		return size + entity.length;
+	}
+
+	/**
+	 * Только то, что еще не ушло в поток.
+	 */
+	public String toString()
+	{
+		return new String(chars, 0, count);
+	}
+
+	public void reset()
+	{
+		count = 0;
+	}
+
+	/**
+	 * Сбросить буфер и Writer в поток.
+	 * После этого можно писать прямо в getOutputStream().
+	 */
+	public void flush() throws IOException
+	{
+		if(writer == null)
+		{
+			return;
+		}
+
+		try
+		{
+			drain();
+		}
+		catch(UncheckedIOException ex)
+		{
+			throw ex.getCause();
+		}
+
+		writer.flush();
+	}
+}
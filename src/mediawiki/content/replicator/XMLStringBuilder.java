@@ -134,6 +134,26 @@ public class XMLStringBuilder
 		buffer.append(tabs.get(indentation)).append("</").append(open.pop()).append(">\r\n");
 	}
 	
+	/**
+	 * Сколько тегов сейчас открыто.
+	 */
+	public int getDepth()
+	{
+		return open.size();
+	}
+	
+	/**
+	 * Закрыть теги, открытые сверх depth, например
+	 * после ошибки посреди выгрузки страницы.
+	 */
+	public void closeTags(int depth)
+	{
+		while(open.size() > depth)
+		{
+			closeTag();
+		}
+	}
+	
 	public void append(String tag, String text)
 	{
 		append(tag, text, null);
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015 Kulikov Dmitriy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mediawiki.content.replicator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Дописывание записей в существующий ZIP архив.
+ *
+ * Старые записи не читаются и не пережимаются: новые пишутся на место
+ * центрального каталога, а за ними заново пишется каталог со старыми
+ * и новыми записями. Поэтому обновление архива страницы стоит
+ * столько, сколько новые ревизии, а не вся история.
+ *
+ * Поддерживаются только обычные архивы (без ZIP64), какие пишет
+ * ZipOutputStream для архива страницы; для остальных конструктор
+ * выбрасывает IOException, и тогда архив надо переписать целиком.
+ */
+public class ZipAppender
+{
+	protected static final int LOCAL_HEADER = 0x04034b50;
+	protected static final int CENTRAL_HEADER = 0x02014b50;
+	protected static final int END_HEADER = 0x06054b50;
+
+	protected static final int LOCAL_HEADER_SIZE = 30;
+	protected static final int CENTRAL_HEADER_SIZE = 46;
+	protected static final int END_HEADER_SIZE = 22;
+
+	protected static final int VERSION_NEEDED = 20;
+	protected static final int FLAG_UTF8 = 0x0800;
+	protected static final int METHOD_DEFLATED = 8;
+
+	protected final RandomAccessFile file;
+
+	/**
+	 * Записи центрального каталога: сначала старые, как есть, потом новые.
+	 */
+	protected final ArrayList<byte[]> entries = new ArrayList();
+	protected final ArrayList<String> names = new ArrayList();
+
+	protected long position;
+
+	protected final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+	protected final CRC32 crc = new CRC32();
+
+	public ZipAppender(File file) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			readCentralDirectory();
+		}
+		catch(IOException ex)
+		{
+			this.file.close();
+			throw ex;
+		}
+	}
+
+	protected void readCentralDirectory() throws IOException
+	{
+		long length = file.length();
+		int tail = (int)Math.min(length, END_HEADER_SIZE + 0xFFFF);
+
+		if(tail < END_HEADER_SIZE)
+		{
+			throw new IOException("not a ZIP archive");
+		}
+
+		byte[] buf = new byte[tail];
+
+		file.seek(length - tail);
+		file.readFully(buf);
+
+		ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = -1;
+
+		for(int i = tail - END_HEADER_SIZE; i >= 0; i--)
+		{
+			if(bb.getInt(i) == END_HEADER && i + END_HEADER_SIZE + (bb.getShort(i + 20) & 0xFFFF) == tail)
+			{
+				end = i;
+				break;
+			}
+		}
+
+		if(end < 0)
+		{
+			throw new IOException("end of central directory not found");
+		}
+
+		int count = bb.getShort(end + 10) & 0xFFFF;
+		long size = bb.getInt(end + 12) & 0xFFFFFFFFL;
+		long offset = bb.getInt(end + 16) & 0xFFFFFFFFL;
+
+		if(count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL || offset + size != length - tail + end)
+		{
+			throw new IOException("unsupported ZIP archive");
+		}
+
+		byte[] directory = new byte[(int)size];
+
+		file.seek(offset);
+		file.readFully(directory);
+
+		bb = ByteBuffer.wrap(directory).order(ByteOrder.LITTLE_ENDIAN);
+
+		int pos = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			if(pos + CENTRAL_HEADER_SIZE > directory.length || bb.getInt(pos) != CENTRAL_HEADER)
+			{
+				throw new IOException("corrupt central directory");
+			}
+
+			int nameLength = bb.getShort(pos + 28) & 0xFFFF;
+			int recordLength = CENTRAL_HEADER_SIZE + nameLength + (bb.getShort(pos + 30) & 0xFFFF) + (bb.getShort(pos + 32) & 0xFFFF);
+
+			if(pos + recordLength > directory.length)
+			{
+				throw new IOException("corrupt central directory");
+			}
+
+			byte[] entry = new byte[recordLength];
+			System.arraycopy(directory, pos, entry, 0, recordLength);
+
+			entries.add(entry);
+			names.add(new String(directory, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8"));
+
+			pos += recordLength;
+		}
+
+		position = offset;
+	}
+
+	/**
+	 * Есть ли уже запись с таким именем.
+	 */
+	public boolean hasEntry(String name)
+	{
+		return names.contains(name);
+	}
+
+	/**
+	 * Дописать запись. Одноименная старая запись выпадает из каталога,
+	 * а ее данные остаются в архиве мусором до его полной перезаписи.
+	 */
+	public void putEntry(String name, byte[] data) throws IOException
+	{
+		int index = names.indexOf(name);
+
+		if(index >= 0)
+		{
+			names.remove(index);
+			entries.remove(index);
+		}
+
+		crc.reset();
+		crc.update(data);
+
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+		byte[] buf = new byte[0x10000];
+
+		while(!deflater.finished())
+		{
+			int len = deflater.deflate(buf);
+			compressed.write(buf, 0, len);
+		}
+
+		byte[] nameBytes = name.getBytes("UTF-8");
+		int time = getDosTime(System.currentTimeMillis());
+
+		ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+
+		local.putInt(LOCAL_HEADER);
+		local.putShort((short)VERSION_NEEDED);
+		local.putShort((short)FLAG_UTF8);
+		local.putShort((short)METHOD_DEFLATED);
+		local.putInt(time);
+		local.putInt((int)crc.getValue());
+		local.putInt(compressed.size());
+		local.putInt(data.length);
+		local.putShort((short)nameBytes.length);
+		local.putShort((short)0);
+		local.put(nameBytes);
+
+		ByteBuffer central = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+
+		central.putInt(CENTRAL_HEADER);
+		central.putShort((short)VERSION_NEEDED);
+		central.putShort((short)VERSION_NEEDED);
+		central.putShort((short)FLAG_UTF8);
+		central.putShort((short)METHOD_DEFLATED);
+		central.putInt(time);
+		central.putInt((int)crc.getValue());
+		central.putInt(compressed.size());
+		central.putInt(data.length);
+		central.putShort((short)nameBytes.length);
+		central.putShort((short)0);
+		central.putShort((short)0);
+		central.putShort((short)0);
+		central.putShort((short)0);
+		central.putInt(0);
+		central.putInt((int)position);
+		central.put(nameBytes);
+
+		if(position + local.capacity() + compressed.size() >= 0xFFFFFFFFL || entries.size() >= 0xFFFF)
+		{
+			throw new IOException("archive too large to append to");
+		}
+
+		file.seek(position);
+		file.write(local.array());
+		file.write(compressed.toByteArray());
+
+		position = file.getFilePointer();
+
+		entries.add(central.array());
+		names.add(name);
+	}
+
+	/**
+	 * Записать каталог и закрыть архив.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream directory = new ByteArrayOutputStream();
+
+			for(byte[] entry : entries)
+			{
+				directory.write(entry);
+			}
+
+			ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			end.putInt(END_HEADER);
+			end.putShort((short)0);
+			end.putShort((short)0);
+			end.putShort((short)entries.size());
+			end.putShort((short)entries.size());
+			end.putInt(directory.size());
+			end.putInt((int)position);
+			end.putShort((short)0);
+
+			directory.write(end.array());
+
+			file.seek(position);
+			file.write(directory.toByteArray());
+			file.setLength(file.getFilePointer());
+		}
+		finally
+		{
+			deflater.end();
+			file.close();
+		}
+	}
+
+	protected static int getDosTime(long time)
+	{
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+
+		return ((c.get(Calendar.YEAR) - 1980) << 25) |
+			   ((c.get(Calendar.MONTH) + 1) << 21) |
+			   (c.get(Calendar.DAY_OF_MONTH) << 16) |
+			   (c.get(Calendar.HOUR_OF_DAY) << 11) |
+			   (c.get(Calendar.MINUTE) << 5) |
+			   (c.get(Calendar.SECOND) >> 1);
+	}
+}